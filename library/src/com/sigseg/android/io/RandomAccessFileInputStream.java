@@ -1,46 +1,113 @@
-// *** WARNING ***
-// This piece of code is guaranteed incorrect and not doing what you
-// expect - it has been deliberately botched to work around bugs in 
-// other software.
-
 package com.sigseg.android.io;
 
 import java.io.File;
-import java.io.InputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import android.util.Log;
 
+/**
+ * An InputStream over a file that supports mark/reset anywhere in the file,
+ * positional reads and cheap duplicates.
+ *
+ * Files up to {@link #MAX_MAP_SIZE} bytes are memory mapped, so reads are
+ * just copies out of the page cache. Larger files are read with positional
+ * reads through a buffer of the requested size. Either way the file is opened
+ * and mapped once; {@link #duplicate()} returns another stream over the same
+ * mapping with its own position and mark, so several decoders can read the
+ * same file without copying it. The file is closed when the last of them is.
+ *
+ * A single stream is no more thread safe than any other InputStream, but
+ * {@link #read(long, byte[], int, int)} doesn't touch the stream's position
+ * and may be called from any number of threads at once.
+ */
 public class RandomAccessFileInputStream extends InputStream {
+    private static final String TAG = RandomAccessFileInputStream.class.getSimpleName();
+
+    public static int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    /** Files larger than this are read with positional reads instead of being mapped */
+    public static long MAX_MAP_SIZE = Integer.MAX_VALUE;
+
+    /** The open file, shared between a stream and its duplicates */
+    private static class Source {
+        final RandomAccessFile file;
+        final FileChannel channel;
+        final long length;
+        /** null if the file was too big to map */
+        final MappedByteBuffer mapped;
+        private int references = 1;
+
+        Source(File f) throws IOException {
+            file = new RandomAccessFile(f, "r");
+            try {
+                channel = file.getChannel();
+                length = channel.size();
+                mapped = length <= MAX_MAP_SIZE
+                        ? channel.map(FileChannel.MapMode.READ_ONLY, 0, length)
+                        : null;
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        synchronized void retain(){
+            references++;
+        }
+
+        synchronized void release() throws IOException {
+            if (--references == 0)
+                file.close();
+        }
+
+        /** Positional read. Safe to call from several threads at once. */
+        int read(long position, byte[] b, int off, int len) throws IOException {
+            if (position >= length)
+                return -1;
+            len = (int) Math.min(len, length - position);
+            if (mapped != null){
+                // A duplicate has its own position, so this doesn't disturb anyone else
+                ByteBuffer view = mapped.duplicate();
+                view.position((int) position);
+                view.get(b, off, len);
+                return len;
+            }
+            return channel.read(ByteBuffer.wrap(b, off, len), position);
+        }
+    }
+
+    private final Source source;
+    /** This stream's own view of the mapping, or null if the file isn't mapped */
+    private final ByteBuffer view;
+    /** Read ahead buffer for files that aren't mapped */
+    private final ByteBuffer buffer;
+    /** The file offset of buffer's first byte */
+    private long bufferStart = 0;
+    private long position = 0;
+    private long markPos = 0;
+    private boolean closed = false;
 
-    public static  int DEFAULT_BUFFER_SIZE = 16 * 1024;
-    RandomAccessFile fp;
-    long markPos=-1;
-    long fileLength = -1;
-        String TAG="WorldMapActivityRAIFS";
-    
     public RandomAccessFileInputStream(File file, int bufferSize)
             throws FileNotFoundException {
-        fp = new RandomAccessFile(file, "r");
-        try {
-            fileLength = fp.length();
-        } catch(IOException e) { Log.e(TAG, e.getMessage()); }
-        Log.d(TAG,"opened, len = "+fileLength);
-    }
-    
-    public int available() {
-        long pos=0;
-        int res;
         try {
-        pos=fp.getFilePointer();
-        } catch(IOException e){ Log.e(TAG, "available "+e.getMessage()); }
-        res = (int)(fileLength - pos);
-        Log.d(TAG,"available "+res);
-        return res;
+            source = new Source(file);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.e(TAG, "can't open " + file + ": " + e.getMessage());
+            FileNotFoundException fnf = new FileNotFoundException(file.getPath());
+            fnf.initCause(e);
+            throw fnf;
+        }
+        view = source.mapped == null ? null : source.mapped.duplicate();
+        buffer = source.mapped == null ? emptyBuffer(bufferSize) : null;
     }
-    
+
     public RandomAccessFileInputStream(File file)
     throws FileNotFoundException {
         this(file, DEFAULT_BUFFER_SIZE);
@@ -51,67 +118,148 @@ public class RandomAccessFileInputStream extends InputStream {
         this(new File(filename), DEFAULT_BUFFER_SIZE);
     }
 
+    private RandomAccessFileInputStream(Source source, int bufferSize){
+        source.retain();
+        this.source = source;
+        view = source.mapped == null ? null : source.mapped.duplicate();
+        buffer = source.mapped == null ? emptyBuffer(bufferSize) : null;
+    }
+
+    private static ByteBuffer emptyBuffer(int size){
+        ByteBuffer b = ByteBuffer.allocate(Math.max(1, size));
+        b.limit(0);
+        return b;
+    }
+
+    /**
+     * Another stream over the same file, positioned at its start. It shares
+     * this stream's mapping and doesn't copy anything.
+     */
+    public RandomAccessFileInputStream duplicate() throws IOException {
+        ensureOpen();
+        return new RandomAccessFileInputStream(source, buffer == null ? DEFAULT_BUFFER_SIZE : buffer.capacity());
+    }
+
+    /** The length of the file */
+    public long length(){
+        return source.length;
+    }
+
+    /** Move the stream to an absolute position in the file */
+    public void seek(long pos) throws IOException {
+        ensureOpen();
+        if (pos < 0)
+            throw new IOException("negative seek " + pos);
+        position = Math.min(pos, source.length);
+    }
+
+    public long getPosition(){
+        return position;
+    }
+
+    /**
+     * Read up to len bytes starting at an absolute position in the file. This
+     * doesn't move the stream, and may be called from several threads at once.
+     * @return the number of bytes read, or -1 at the end of the file
+     */
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        return source.read(position, b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        return (int) Math.min(Integer.MAX_VALUE, source.length - position);
+    }
 
     @Override
     public int read() throws IOException {
-        int res=fp.read();
-        //Log.d(TAG,"read single byte, res "+res);
-        return res;
+        ensureOpen();
+        if (position >= source.length)
+            return -1;
+        if (view != null)
+            return view.get((int) position++) & 0xff;
+        if (!fillBuffer())
+            return -1;
+        return buffer.get((int) (position++ - bufferStart)) & 0xff;
     }
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        int res=fp.read(b, off, len);
-        // Log.d(TAG,"read bol, res "+res);
-        return res;
+        ensureOpen();
+        if (len == 0)
+            return 0;
+        if (position >= source.length)
+            return -1;
+        len = (int) Math.min(len, source.length - position);
+        if (view != null){
+            view.position((int) position);
+            view.get(b, off, len);
+        } else if (len >= buffer.capacity()){
+            // Big reads go straight to the file
+            len = source.read(position, b, off, len);
+            if (len < 0)
+                return -1;
+        } else {
+            if (!fillBuffer())
+                return -1;
+            len = Math.min(len, buffer.limit() - (int) (position - bufferStart));
+            buffer.position((int) (position - bufferStart));
+            buffer.get(b, off, len);
+        }
+        position += len;
+        return len;
+    }
+
+    /** Make sure the buffer holds the byte at position. Only used when the file isn't mapped. */
+    private boolean fillBuffer() throws IOException {
+        if (position >= bufferStart && position < bufferStart + buffer.limit())
+            return true;
+        buffer.clear();
+        int n = source.channel.read(buffer, position);
+        buffer.flip();
+        bufferStart = position;
+        return n > 0;
     }
-    
+
     @Override
-    public int read(byte[] b) throws IOException {
-        int res=fp.read(b);
-        //Log.d(TAG,"read buf, res "+res);
-        return res;
+    public long skip(long n) throws IOException {
+        ensureOpen();
+        if (n <= 0)
+            return 0;
+        long skipped = Math.min(n, source.length - position);
+        position += skipped;
+        return skipped;
     }
-    
+
+    @Override
     public void close() throws IOException {
-        fp.close();
-    }
-    
-    
-    public int skip(int n) throws IOException {
-        int res=fp.skipBytes(n);
-        long pos=fp.getFilePointer();
-        Log.d(TAG,"skip "+n+" res "+res+" pos now "+pos);
-        return res;
+        if (!closed){
+            closed = true;
+            source.release();
+        }
     }
-    
+
+    @Override
     public void mark(int readLimit) {
-        try {
-        markPos = fp.getFilePointer();
-        /* attempted workaround that did not work */
-        /*
-        if (markPos >= fileLength) {
-            markPos=0;
-            Log.d(TAG,"mark at EOF requested - setting mark at 0 instead");
-        }
-        */
-        } catch (IOException e) {
-        Log.e(TAG, e.getMessage());
-        }
-        Log.d(TAG,"mark at "+markPos+" readLimit "+readLimit);
+        // We can always go back, so readLimit doesn't matter
+        markPos = position;
     }
-      
+
+    @Override
     public void reset() throws IOException {
-        long oldpos=fp.getFilePointer();
-        //fp.seek(markPos);
-        // apparently the only things that works is to reset to zero
-        // regardless of markPos
-        fp.seek(0);
-        long pos=fp.getFilePointer();
-        Log.d(TAG,"reset oldPos"+oldpos+" to "+markPos+" resulting pos "+pos);
-    }       
+        ensureOpen();
+        position = markPos;
+    }
 
+    @Override
     public boolean markSupported() {
         return true;
     }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("stream closed");
+    }
 }
@@ -1,30 +1,65 @@
 package com.sigseg.android.map;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.PointF;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.*;
 import android.view.GestureDetector.OnGestureListener;
 import android.widget.Scroller;
 import com.sigseg.android.view.InputStreamScene;
+import com.sigseg.android.view.MemoryGovernor;
+import com.sigseg.android.view.Scene;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callback, OnGestureListener  {
     private final static String TAG = ImageSurfaceView.class.getSimpleName();
 
-    private InputStreamScene scene;
+    /** Scenes are opened one at a time, off the UI thread */
+    private final static ExecutorService OPENER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "sceneOpener");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Null until a scene has been opened; only set on the UI thread */
+    private volatile InputStreamScene scene;
+    /** How far along opening the scene is, for the placeholder */
+    private volatile float openProgress;
+    /** How much memory the scenes may use; it follows the device, and the trim level */
+    private MemoryGovernor memoryGovernor;
+    /** The open in flight, if any */
+    private OpenTask opening;
+    private boolean surfaceAlive;
+    private int surfaceWidth;
+    private int surfaceHeight;
     private final Touch touch;
     private GestureDetector gestureDectector;
     private ScaleGestureDetector scaleGestureDetector;
     private long lastScaleTime = 0;
     private long SCALE_MOVE_GUARD = 500; // milliseconds after scale to ignore move events
 
-    private DrawThread drawThread;
+    private volatile DrawThread drawThread;
 
     //region getters and setters
     public void getViewport(Point p){
@@ -45,8 +80,178 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
         scene.getViewport().setOrigin(x, y);
     }
 
+    /** The scene being shown, or null while the first one is still being opened */
+    public Scene getScene(){
+        return scene;
+    }
+
+    /** How much memory the scenes may use, for their current budget and what trimming it has evicted */
+    public MemoryGovernor getMemoryGovernor(){
+        return memoryGovernor;
+    }
+
+    /**
+     * Pass on {@link android.content.ComponentCallbacks2#onTrimMemory(int)}:
+     * the scene's cache shrinks to suit the level
+     */
+    public void onTrimMemory(int level){
+        Scene scene = this.scene;
+        if (memoryGovernor.onTrimMemory(level) && scene!=null)
+            scene.applyMemoryBudget();
+    }
+
+    /** Decode an image on this thread and show it */
     public void setInputStream(InputStream inputStream) throws IOException {
-        scene = new InputStreamScene(inputStream);
+        setScene(new InputStreamScene(inputStream, Scene.OpenProgress.NONE, memoryGovernor));
+    }
+
+    /** Hears how an open is going. Every call is made on the UI thread. */
+    public interface OpenListener {
+        /** @param fraction From 0 to 1 */
+        void onOpenProgress(float fraction);
+        /** The scene is now being shown */
+        void onSceneOpened(Scene scene);
+        void onOpenFailed(IOException e);
+    }
+
+    /**
+     * Decode an image in the background and show it once it's ready. This
+     * returns straight away; until the scene is ready a placeholder with a
+     * progress bar is drawn instead (or the old scene, if there was one).
+     * Opening another image, or {@link #cancelOpen()}, cancels this one. Call
+     * on the UI thread.
+     */
+    public void openInputStream(InputStream inputStream, OpenListener listener){
+        cancelOpen();
+        if (scene==null)
+            openProgress = 0;
+        opening = new OpenTask(inputStream, listener);
+        opening.future = OPENER.submit(opening);
+    }
+
+    /** Stop opening the image, if one is being opened. Nothing more is heard from its listener. */
+    public void cancelOpen(){
+        OpenTask task = opening;
+        opening = null;
+        if (task!=null){
+            task.cancelled = true;
+            task.future.cancel(true);
+        }
+    }
+
+    private class OpenTask implements Runnable, Scene.OpenProgress {
+        private final InputStream inputStream;
+        private final OpenListener listener;
+        /** Only read and written on the UI thread, or before the task is submitted */
+        Future<?> future;
+        volatile boolean cancelled;
+        /** The last progress passed on, so the UI thread sees at most a hundred posts */
+        private int percent = -1;
+
+        OpenTask(InputStream inputStream, OpenListener listener){
+            this.inputStream = inputStream;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onProgress(final float fraction) {
+            int p = (int) (fraction * 100);
+            if (p==percent || cancelled)
+                return;
+            percent = p;
+            if (scene==null){
+                openProgress = fraction;
+                requestRender();
+            }
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!cancelled)
+                        listener.onOpenProgress(fraction);
+                }
+            });
+        }
+
+        /**
+         * Anything that goes wrong is passed on to the listener, as an
+         * IOException if it wasn't one already; left to the executor it would
+         * be swallowed, and the placeholder shown forever.
+         */
+        @Override
+        public void run() {
+            try {
+                final InputStreamScene opened = new InputStreamScene(inputStream, this, memoryGovernor);
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (cancelled){
+                            OPENER.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    opened.release();
+                                }
+                            });
+                            return;
+                        }
+                        opening = null;
+                        setScene(opened);
+                        listener.onSceneOpened(opened);
+                    }
+                });
+            } catch (InterruptedIOException e) {
+                Log.d(TAG, "opening the scene was cancelled");
+            } catch (IOException e) {
+                failed(e);
+            } catch (OutOfMemoryError e) {
+                Log.e(TAG, "not enough memory to open the scene", e);
+                failed(new IOException("not enough memory to open the scene", e));
+            } catch (RuntimeException e) {
+                Log.e(TAG, "can't open the scene", e);
+                failed(new IOException("can't open the scene", e));
+            } catch (Error e) {
+                Log.e(TAG, "can't open the scene", e);
+                failed(new IOException("can't open the scene", e));
+            }
+        }
+
+        private void failed(final IOException e){
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (cancelled)
+                        return;
+                    opening = null;
+                    listener.onOpenFailed(e);
+                }
+            });
+        }
+    }
+
+    /** Show a scene in place of the current one. Call on the UI thread. */
+    private void setScene(InputStreamScene scene){
+        scene.setListener(new Scene.Listener() {
+            @Override
+            public void onSceneChanged() {
+                requestRender();
+            }
+        });
+        Scene old = this.scene;
+        if (surfaceWidth > 0 && surfaceHeight > 0)
+            scene.getViewport().setSize(surfaceWidth, surfaceHeight);
+        if (surfaceAlive){
+            if (old!=null)
+                old.stop();
+            scene.start();
+        }
+        this.scene = scene;
+        requestRender();
+    }
+
+    /** Ask the draw thread for a new frame, if there is a surface to draw on */
+    private void requestRender(){
+        DrawThread thread = drawThread;
+        if (thread!=null)
+            thread.markDirty();
     }
 
     //endregion
@@ -54,6 +259,8 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
     //region extends SurfaceView
     @Override
     public boolean onTouchEvent(MotionEvent me) {
+        if (scene==null)
+            return true; // Nothing to move yet
         boolean consumed = gestureDectector.onTouchEvent(me);
         if (consumed)
             return true;
@@ -91,6 +298,11 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
     }
     
     private void init(Context context){
+        // isLowRamDevice() came in KitKat, after this library's target
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        memoryGovernor = activityManager!=null
+                ? new MemoryGovernor(activityManager.getMemoryClass(), false)
+                : MemoryGovernor.forHeap();
         gestureDectector = new GestureDetector(context,this);
         getHolder().addCallback(this);
         scaleGestureDetector = new ScaleGestureDetector(context, new ScaleListener());
@@ -122,34 +334,38 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
     //region implements SurfaceHolder.Callback
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
-        scene.getViewport().setSize(width, height);
+        surfaceWidth = width;
+        surfaceHeight = height;
+        Scene scene = this.scene;
+        if (scene!=null)
+            scene.getViewport().setSize(width, height);
+        requestRender();
         Log.d(TAG,String.format("onSizeChanged(w=%d,h=%d)",width,height));
     }
 
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
-        drawThread = new DrawThread(holder);
-        drawThread.setName("drawThread");
-        drawThread.setRunning(true);
-        drawThread.start();
-        scene.start();
-        touch.start();
+        DrawThread thread = new DrawThread(holder);
+        thread.startDrawing();
+        drawThread = thread;
+        surfaceAlive = true;
+        Scene scene = this.scene;
+        // Back in the foreground, so back to the full budget
+        if (memoryGovernor.relax() && scene!=null)
+            scene.applyMemoryBudget();
+        if (scene!=null)
+            scene.start();
     }
 
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
-        touch.stop();
-        scene.stop();
-        drawThread.setRunning(false);
-        boolean retry = true;
-        while (retry) {
-            try {
-                drawThread.join();
-                retry = false;
-            } catch (InterruptedException e) {
-                // we will try it again and again...
-            }
-        }
+        surfaceAlive = false;
+        Scene scene = this.scene;
+        if (scene!=null)
+            scene.stop();
+        DrawThread thread = drawThread;
+        drawThread = null;
+        thread.stopDrawing();
     }
     //endregion
 
@@ -187,47 +403,130 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
 
     //region class DrawThread
 
-    class DrawThread extends Thread {
+    /**
+     * Draws the scene on the surface, paced by {@link Choreographer} frame callbacks
+     * (or a 16ms timer before Jelly Bean). Nothing is drawn unless the scene has
+     * been marked dirty since the last frame, and no frame is even scheduled
+     * while it is clean, so an idle map costs nothing. A fling is stepped at
+     * the start of each frame, and asks for the next one until it comes to rest.
+     */
+    class DrawThread extends HandlerThread implements Choreographer.FrameCallback {
+        private static final long FRAME_MILLIS = 16;
         private SurfaceHolder surfaceHolder;
+        /** Only touched on this thread */
+        private Choreographer choreographer;
+        private boolean frameRequested = false;
+        private Handler handler;
+        private final AtomicBoolean dirty = new AtomicBoolean(true);
+        private final Paint progressTrack = new Paint();
+        private final Paint progressBar = new Paint();
+        private final Runnable requestFrame = new Runnable() {
+            @Override
+            public void run() {
+                if (!frameRequested){
+                    frameRequested = true;
+                    if (choreographer!=null)
+                        choreographer.postFrameCallback(DrawThread.this);
+                    else
+                        handler.postDelayed(timerFrame, FRAME_MILLIS);
+                }
+            }
+        };
+        private final Runnable timerFrame = new Runnable() {
+            @Override
+            public void run() {
+                doFrame(System.nanoTime());
+            }
+        };
 
-        private boolean running = false;
-        public void setRunning(boolean value){ running = value; }
-        
         public DrawThread(SurfaceHolder surfaceHolder){
+            super("drawThread", Process.THREAD_PRIORITY_DISPLAY);
             this.surfaceHolder = surfaceHolder;
+            progressTrack.setColor(Color.DKGRAY);
+            progressBar.setColor(Color.WHITE);
         }
-        
+
         @Override
-        public void run() {
-            Canvas c;
-            while (running) {
-                try {
-                    // Don't hog the entire CPU
-                    Thread.sleep(5);
-                } catch (InterruptedException e) {}
-                c = null;
+        protected void onLooperPrepared() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+                choreographer = Choreographer.getInstance();
+        }
+
+        /** Start the thread and draw the first frame */
+        void startDrawing(){
+            start();
+            handler = new Handler(getLooper());
+            handler.post(requestFrame);
+        }
+
+        /** Stop drawing and wait for the thread to finish its frame */
+        void stopDrawing(){
+            quit();
+            boolean retry = true;
+            while (retry) {
                 try {
-                    c = surfaceHolder.lockCanvas();
-                    if (c!=null){
-                        synchronized (surfaceHolder) {
+                    join();
+                    retry = false;
+                } catch (InterruptedException e) {
+                    // we will try it again and again...
+                }
+            }
+        }
+
+        /** Request a frame. This can be called from any thread. */
+        void markDirty(){
+            if (!dirty.getAndSet(true) && handler!=null)
+                handler.post(requestFrame);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            frameRequested = false;
+            if (ImageSurfaceView.this.scene!=null && touch.step())
+                requestFrame.run();
+            if (!dirty.getAndSet(false))
+                return;
+            Canvas c = null;
+            try {
+                c = surfaceHolder.lockCanvas();
+                if (c!=null){
+                    synchronized (surfaceHolder) {
+                        Scene scene = ImageSurfaceView.this.scene;
+                        if (scene!=null)
                             scene.draw(c);// draw it
-                        }
-                    }
-                } finally {
-                    if (c != null) {
-                        surfaceHolder.unlockCanvasAndPost(c);
+                        else
+                            drawPlaceholder(c);
                     }
                 }
-            }        
+            } finally {
+                if (c != null) {
+                    surfaceHolder.unlockCanvasAndPost(c);
+                }
+            }
+        }
+
+        /** What's shown while the scene is opened: a bar across the middle of the screen */
+        private void drawPlaceholder(Canvas c){
+            c.drawColor(Color.BLACK);
+            float height = 4 * getResources().getDisplayMetrics().density;
+            float left = c.getWidth() / 4f;
+            float right = c.getWidth() - left;
+            float top = (c.getHeight() - height) / 2;
+            c.drawRect(left, top, right, top + height, progressTrack);
+            c.drawRect(left, top, left + (right - left) * openProgress, top + height, progressBar);
         }
     }
     //endregion
 
     //region class Touch
 
-    enum TouchState {UNTOUCHED,IN_TOUCH,START_FLING,IN_FLING};
+    enum TouchState {UNTOUCHED,IN_TOUCH,IN_FLING};
+    /**
+     * Turns gestures into viewport moves. A fling is animated one step per
+     * frame by the draw thread, so between frames it costs nothing.
+     */
     class Touch {
-        TouchState state = TouchState.UNTOUCHED;
+        volatile TouchState state = TouchState.UNTOUCHED;
         /** Where on the view did we initially touch */
         final Point viewDown = new Point(0,0);
         /** What was the coordinates of the viewport origin? */
@@ -235,34 +534,10 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
         
         final Scroller scroller;
         
-        TouchThread touchThread;
-        
         Touch(Context context){
             scroller = new Scroller(context);
         }
         
-        void start(){
-            touchThread = new TouchThread(this);
-            touchThread.setName("touchThread");
-            touchThread.start();
-        }
-        
-        void stop(){
-            touchThread.running = false;
-            touchThread.interrupt();
-
-            boolean retry = true;
-            while (retry) {
-                try {
-                    touchThread.join();
-                    retry = false;
-                } catch (InterruptedException e) {
-                    // we will try it again and again...
-                }
-            }
-            touchThread = null;
-        }
-        
         Point fling_viewOrigin = new Point();
         Point fling_viewSize = new Point();
         Point fling_sceneSize = new Point();
@@ -272,8 +547,7 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
             scene.getSceneSize(fling_sceneSize);
 
             synchronized(this){
-                state = TouchState.START_FLING;
-                scene.setSuspend(true);
+                state = TouchState.IN_FLING;
                 scroller.fling(
                     fling_viewOrigin.x,
                     fling_viewOrigin.y,
@@ -283,8 +557,11 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
                     fling_sceneSize.x-fling_viewSize.x, 
                     0,
                     fling_sceneSize.y-fling_viewSize.y);
-                touchThread.interrupt();
+                // Keep caching, and tell the cache where we're headed
+                scene.startFling(fling_viewOrigin.x, fling_viewOrigin.y, scroller.getFinalX(), scroller.getFinalY());
             }
+            // The first step is taken on the next frame
+            requestRender();
 //            Log.d(TAG,String.format("scroller.fling(%d,%d,%d,%d,%d,%d,%d,%d)",
 //                    fling_viewOrigin.x,
 //                    fling_viewOrigin.y,
@@ -297,9 +574,10 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
             return true;
         }
         boolean down(MotionEvent event){
-            scene.setSuspend(false);    // If we were suspended because of a fling
+            scene.endFling();    // If we were in a fling
             synchronized(this){
                 state = TouchState.IN_TOUCH;
+                scroller.forceFinished(true);
                 viewDown.x = (int) event.getX();
                 viewDown.y = (int) event.getY();
                 Point p = new Point();
@@ -318,7 +596,7 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
                 float newY = ((float)(viewportOriginAtDown.y - deltaY));
                 
                 scene.getViewport().setOrigin((int)newX, (int)newY);
-                invalidate();
+                requestRender();
             }
             return true;
         }
@@ -337,43 +615,24 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
             return true;
         }
         
-        class TouchThread extends Thread {
-            final Touch touch;
-            boolean running = false;
-            void setRunning(boolean value){ running = value; }
-            
-            TouchThread(Touch touch){ this.touch = touch; }
-            @Override
-            public void run() {
-                running=true;
-                while(running){
-                    while(touch.state!=TouchState.START_FLING && touch.state!=TouchState.IN_FLING){
-                        try {
-                            Thread.sleep(Integer.MAX_VALUE);
-                        } catch (InterruptedException e) {}
-                        if (!running)
-                            return;
-                    }
-                    synchronized (touch) {
-                        if (touch.state==TouchState.START_FLING){
-                            touch.state = TouchState.IN_FLING;
-                        }
-                    }
-                    if (touch.state==TouchState.IN_FLING){
-                        scroller.computeScrollOffset();
-                        scene.getViewport().setOrigin(scroller.getCurrX(), scroller.getCurrY());
-                        if (scroller.isFinished()){
-                            scene.setSuspend(false);
-                            synchronized (touch) {
-                                touch.state = TouchState.UNTOUCHED;
-                                try{
-                                    Thread.sleep(5);
-                                } catch (InterruptedException e) {}
-                            }
-                        }
-                    }
-                }
+        /**
+         * Move a fling on by a frame. The draw thread calls this just before
+         * it draws, inside its frame callback, so the Scroller reads the
+         * frame's own time and the viewport moves exactly once per frame drawn.
+         * @return true if the fling needs another frame
+         */
+        boolean step(){
+            synchronized (this){
+                if (state!=TouchState.IN_FLING)
+                    return false;
+                scroller.computeScrollOffset();
+                scene.getViewport().setOrigin(scroller.getCurrX(), scroller.getCurrY());
+                if (!scroller.isFinished())
+                    return true;
+                state = TouchState.UNTOUCHED;
             }
+            scene.endFling();
+            return false;
         }
     }
     //endregion
@@ -1,5 +1,6 @@
 package com.sigseg.android.map;
 
+import android.content.ComponentCallbacks2;
 import android.content.Intent;
 import android.net.Uri;
 import java.io.InputStream;
@@ -12,6 +13,7 @@ import android.view.Window;
 import android.view.WindowManager;
 import com.sigseg.android.io.RandomAccessFileInputStream;
 import com.sigseg.android.map.lib.R;
+import com.sigseg.android.view.Scene;
 
 
 public class ImageViewerActivity extends Activity {
@@ -22,6 +24,8 @@ public class ImageViewerActivity extends Activity {
     
     private ImageSurfaceView imageSurfaceView;
     private String filename = null;
+    /** Where the viewport was before a restart, kept until the scene is open to put it back */
+    private Point restoredOrigin = null;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -44,12 +48,12 @@ public class ImageViewerActivity extends Activity {
                 fn = (String) savedInstanceState.get(KEY_FN);
 
             try {
+                restoredOrigin = new Point(x, y);
                 if (fn == null || fn.length()==0) {
-                    imageSurfaceView.setInputStream(getAssets().open("world.jpg"));
+                    imageSurfaceView.openInputStream(getAssets().open("world.jpg"), openListener);
                 } else {
-                    imageSurfaceView.setInputStream(new RandomAccessFileInputStream(fn));
+                    imageSurfaceView.openInputStream(new RandomAccessFileInputStream(fn), openListener);
                 }
-                imageSurfaceView.setViewport(new Point(x, y));
             } catch (java.io.IOException e) {
                 Log.e(TAG, e.getMessage());
             }
@@ -69,27 +73,73 @@ public class ImageViewerActivity extends Activity {
                     is = getAssets().open("world.jpg");
                 }
 
-                imageSurfaceView.setInputStream(is);
+                imageSurfaceView.openInputStream(is, openListener);
             } catch (java.io.IOException e) {
                 Log.e(TAG, e.getMessage());
             }
-            imageSurfaceView.setViewportCenter();
         }
     }
-    
+
+    /** Puts the viewport back where it was, or in the middle, once the image is open */
+    private final ImageSurfaceView.OpenListener openListener = new ImageSurfaceView.OpenListener() {
+        @Override
+        public void onOpenProgress(float fraction) {
+        }
+
+        @Override
+        public void onSceneOpened(Scene scene) {
+            if (restoredOrigin!=null)
+                imageSurfaceView.setViewport(restoredOrigin);
+            else
+                imageSurfaceView.setViewportCenter();
+            restoredOrigin = null;
+        }
+
+        @Override
+        public void onOpenFailed(java.io.IOException e) {
+            Log.e(TAG, e.getMessage());
+        }
+    };
+
+    @Override
+    protected void onDestroy() {
+        imageSurfaceView.cancelOpen();
+        super.onDestroy();
+    }
+
      @Override
 	protected void onResume() {
 		super.onResume();
 		
-		imageSurfaceView.setViewport(new Point(imageSurfaceView.getWidth()/2, imageSurfaceView.getHeight()/2));
+		if (imageSurfaceView.getScene()!=null)
+			imageSurfaceView.setViewport(new Point(imageSurfaceView.getWidth()/2, imageSurfaceView.getHeight()/2));
 	}
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        imageSurfaceView.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        // Only ever sent while the app is in the foreground, where the cache is still wanted
+        imageSurfaceView.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
-        Point p = new Point();
-        imageSurfaceView.getViewport(p);
-        outState.putInt(KEY_X, p.x);
-        outState.putInt(KEY_Y, p.y);
+        // Still opening, the viewport hasn't moved from wherever it was
+        Point p = restoredOrigin;
+        if (imageSurfaceView.getScene()!=null){
+            p = new Point();
+            imageSurfaceView.getViewport(p);
+        }
+        if (p!=null){
+            outState.putInt(KEY_X, p.x);
+            outState.putInt(KEY_Y, p.y);
+        }
         if (filename!=null)
             outState.putString(KEY_FN, filename);
         super.onSaveInstanceState(outState);
@@ -18,11 +18,11 @@ public class InputStreamScene extends Scene {
     /** How many bytes does one pixel use? */
     private final int BYTES_PER_PIXEL = 4;
 
-    /** What percent of total memory should we use for the cache? The bigger the cache,
-     * the longer it takes to read -- 1.2 secs for 25%, 600ms for 10%, 500ms for 5%.
-     * User experience seems to be best for smaller values. 
+    /**
+     * The downsample size of the sample image: {@link #DOWN_SAMPLE_SHIFT}, or
+     * more if that doesn't fit the governor's sample budget
      */
-    private int percent = 5; // Above 25 and we get OOMs
+    private int sampleShift = DOWN_SAMPLE_SHIFT;
 
     private BitmapRegionDecoder decoder;
     private Bitmap sampleBitmap;
@@ -31,22 +31,63 @@ public class InputStreamScene extends Scene {
         options.inPreferredConfig = Bitmap.Config.RGB_565;
     }
 
-    public InputStreamScene(InputStream inputStream) throws IOException {
-        BitmapFactory.Options tmpOptions = new BitmapFactory.Options();
-
-        this.decoder = BitmapRegionDecoder.newInstance(inputStream, false);
+    /** How much of opening the scene is reading the source into the decoder */
+    private static final float READ_PROGRESS = 0.5f;
 
-        // Grab the bounds for the scene dimensions
-        tmpOptions.inJustDecodeBounds = true;
-        BitmapFactory.decodeStream(inputStream, null, tmpOptions);
-        setSceneSize(tmpOptions.outWidth, tmpOptions.outHeight);
+    public InputStreamScene(InputStream inputStream) throws IOException {
+        this(inputStream, OpenProgress.NONE);
+    }
 
-        // Create the sample image
-        tmpOptions.inJustDecodeBounds = false;
-        tmpOptions.inSampleSize = (1<< DOWN_SAMPLE_SHIFT);
-        sampleBitmap = BitmapFactory.decodeStream(inputStream, null, tmpOptions);
+    /**
+     * Open a scene, saying how far along it is as it goes. This decodes the
+     * whole image, so call it off the UI thread.
+     */
+    public InputStreamScene(InputStream inputStream, OpenProgress progress) throws IOException {
+        this(inputStream, progress, MemoryGovernor.forHeap());
+    }
 
-        initialize();
+    /**
+     * Open a scene whose cache and sample keep to a governor's budgets. The
+     * cache is smaller the less memory the app has, rather than finding out
+     * by running out of it.
+     *
+     * <p>The source is read once, by the region decoder, so any stream will
+     * do, seekable or not: the scene's size comes from the decoder, and the
+     * sample is decoded through it too. If the open fails or is cancelled
+     * after that, the decoder is recycled before this throws.</p>
+     */
+    public InputStreamScene(InputStream inputStream, OpenProgress progress, MemoryGovernor governor) throws IOException {
+        setMemoryGovernor(governor);
+        this.decoder = BitmapRegionDecoder.newInstance(inputStream, false);
+        boolean opened = false;
+        try {
+            progress.onProgress(READ_PROGRESS);
+            checkCancelled();
+
+            int width = decoder.getWidth();
+            int height = decoder.getHeight();
+            setSceneSize(width, height);
+
+            // Create the sample image, as big as the budget lets it be
+            while ((long) (width >> sampleShift) * (height >> sampleShift) * BYTES_PER_PIXEL
+                    > governor.getSampleBytes())
+                sampleShift++;
+            BitmapFactory.Options sampleOptions = new BitmapFactory.Options();
+            sampleOptions.inSampleSize = (1<< sampleShift);
+            sampleBitmap = decoder.decodeRegion(new Rect(0, 0, width, height), sampleOptions);
+            if (sampleBitmap==null)
+                throw new IOException("can't decode the sample");
+            progress.onProgress(1);
+
+            initialize();
+            opened = true;
+        } finally {
+            if (!opened){
+                decoder.recycle();
+                if (sampleBitmap!=null)
+                    sampleBitmap.recycle();
+            }
+        }
     }
 
     @Override
@@ -66,10 +107,10 @@ public class InputStreamScene extends Scene {
     protected void drawSampleRectIntoBitmap(Bitmap bitmap, Rect rectOfSample) {
         if (bitmap!=null){
             Canvas c = new Canvas(bitmap);
-            int left   = (rectOfSample.left>> DOWN_SAMPLE_SHIFT);
-            int top    = (rectOfSample.top>> DOWN_SAMPLE_SHIFT);
-            int right  = left + (rectOfSample.width()>> DOWN_SAMPLE_SHIFT);
-            int bottom = top + (rectOfSample.height()>> DOWN_SAMPLE_SHIFT);
+            int left   = (rectOfSample.left>> sampleShift);
+            int top    = (rectOfSample.top>> sampleShift);
+            int right  = left + (rectOfSample.width()>> sampleShift);
+            int bottom = top + (rectOfSample.height()>> sampleShift);
             Rect srcRect = new Rect( left, top, right, bottom );
             Rect identity= new Rect(0,0,c.getWidth(),c.getHeight());
             c.drawBitmap(
@@ -89,67 +130,34 @@ public class InputStreamScene extends Scene {
 //    }
 
     private Rect calculatedCacheWindowRect = new Rect();
+    private final PointF panVelocity = new PointF();
     @Override
     protected Rect calculateCacheWindow(Rect viewportRect) {
-        long bytesToUse = Runtime.getRuntime().maxMemory() * percent / 100;
-        Point size = getSceneSize();
+        long bytesToUse = getMemoryGovernor().getCacheBytes();
 
-        int vw = viewportRect.width();
-        int vh = viewportRect.height();
-        
-        // Calculate the max size of the margins to fit in our memory budget
-        int tw=0;
-        int th=0;
-        int mw = tw;
-        int mh = th;
-        while((vw+tw) * (vh+th) * BYTES_PER_PIXEL < bytesToUse){
-            mw = tw++;
-            mh = th++;
-        }
-        
-        // Trim the margins if they're too big.
-        if (vw+mw > size.x) // viewport width + margin width > width of the image
-            mw = Math.max(0, size.x-vw);
-        if (vh+mh > size.y) // viewport height + margin height > height of the image
-            mh = Math.max(0, size.y-vh);
-        
-        // Figure out the left & right based on the margin. We assume our viewportRect
-        // is <= our size. If that's not the case, then this logic breaks.
-        int left = viewportRect.left - (mw>>1);
-        int right = viewportRect.right + (mw>>1);
-        if (left<0){
-            right = right - left; // Add's the overage on the left side back to the right
-            left = 0;
-        }
-        if (right>size.x){
-            left = left - (right-size.x); // Adds overage on right side back to left
-            right = size.x;
-        }
-
-        // Figure out the top & bottom based on the margin. We assume our viewportRect
-        // is <= our size. If that's not the case, then this logic breaks.
-        int top = viewportRect.top - (mh>>1); 
-        int bottom = viewportRect.bottom + (mh>>1);
-        if (top<0){
-            bottom = bottom - top; // Add's the overage on the top back to the bottom
-            top = 0;
-        }
-        if (bottom>size.y){
-            top = top - (bottom-size.y); // Adds overage on bottom back to top
-            bottom = size.y;
-        }
-        
-        // Set the origin based on our new calculated values.
-        calculatedCacheWindowRect.set(left, top, right, bottom);
-        if (DEBUG) Log.d(TAG,"new cache.originRect = "+calculatedCacheWindowRect.toShortString()+" size="+size.toString());
+        // Most of the margin goes where the viewport is heading
+        getPanVelocity(panVelocity);
+        MotionWindow.calculate(viewportRect, bytesToUse / BYTES_PER_PIXEL, panVelocity,
+                getSceneSize(), calculatedCacheWindowRect);
+        if (DEBUG) Log.d(TAG,"new cache.originRect = "+calculatedCacheWindowRect.toShortString()+" velocity="+panVelocity);
         return calculatedCacheWindowRect;
     }
 
     @Override
     protected void fillCacheOutOfMemoryError(OutOfMemoryError error) {
-        if (percent>0)
-            percent -= 1;
-        Log.e(TAG,String.format("caught oom -- cache now at %d percent.",percent));
+        MemoryGovernor governor = getMemoryGovernor();
+        if (governor.onOutOfMemory())
+            applyMemoryBudget();
+        Log.e(TAG,"caught oom -- "+governor);
+    }
+
+    /** Recycles the decoder and the sample too */
+    @Override
+    public void release() {
+        super.release();
+        decoder.recycle();
+        if (sampleBitmap!=null)
+            sampleBitmap.recycle();
     }
 
     @Override
@@ -0,0 +1,167 @@
+package com.sigseg.android.view;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+/**
+ * Decides how much memory a {@link Scene} may hold, so that it never has to
+ * find out by running out. The budgets for the cache and the sample follow
+ * from the app's heap -- what {@code ActivityManager.getMemoryClass()} says
+ * it may use -- and are smaller on a low RAM device.
+ *
+ * <p>When the system asks the app to trim its memory, the cache budget
+ * shrinks in stages, down to nothing but the sample once the app is in the
+ * background and next in line to be killed. The sample is never given up;
+ * it's what is drawn when there's nothing else. {@link #relax()} goes back to
+ * the full budget when the app is in the foreground again.</p>
+ */
+public class MemoryGovernor {
+    private static final String TAG = MemoryGovernor.class.getSimpleName();
+    private static final long MB = 1024 * 1024;
+
+    /** How much of the cache budget a stage keeps, in quarters */
+    public enum Stage {
+        /** Nothing to worry about */
+        FULL(4),
+        /** Running, and memory is getting low */
+        RUNNING_MODERATE(3),
+        /** Running, and memory is low */
+        RUNNING_LOW(2),
+        /** Running, and the system is killing background apps */
+        RUNNING_CRITICAL(1),
+        /** Nothing is showing; keep enough to come back to */
+        UI_HIDDEN(2),
+        /** In the background, on the list to be killed */
+        BACKGROUND(1),
+        /** In the background and next to be killed: keep nothing but the sample */
+        COMPLETE(0);
+
+        final int cacheQuarters;
+
+        Stage(int cacheQuarters){
+            this.cacheQuarters = cacheQuarters;
+        }
+
+        /** The stage for a level passed to {@link ComponentCallbacks2#onTrimMemory(int)} */
+        public static Stage forTrimLevel(int level){
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE)
+                return COMPLETE;
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+                return BACKGROUND;
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+                return UI_HIDDEN;
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+                return RUNNING_CRITICAL;
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+                return RUNNING_LOW;
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE)
+                return RUNNING_MODERATE;
+            return FULL;
+        }
+    }
+
+    private final long heapBytes;
+    private final boolean lowRam;
+    private final long cacheBytes;
+    private final long sampleBytes;
+    private volatile Stage stage = Stage.FULL;
+    private long trims = 0;
+    private long evictions = 0;
+    private long releasedBytes = 0;
+
+    /**
+     * @param memoryClass The heap the app may use, in megabytes, from
+     * {@code ActivityManager.getMemoryClass()}
+     * @param lowRam From {@code ActivityManager.isLowRamDevice()}
+     */
+    public MemoryGovernor(int memoryClass, boolean lowRam){
+        this(memoryClass * MB, lowRam);
+    }
+
+    private MemoryGovernor(long heapBytes, boolean lowRam){
+        this.heapBytes = heapBytes;
+        this.lowRam = lowRam;
+        // 1/20th of the heap for the cache and an eighth for the sample; half that on a low RAM device
+        cacheBytes = heapBytes / (lowRam ? 40 : 20);
+        sampleBytes = heapBytes / (lowRam ? 16 : 8);
+    }
+
+    /**
+     * For when there's no ActivityManager to ask: the budgets follow from the
+     * most the VM will let the heap grow to, which on Android is the memory
+     * class anyway.
+     */
+    public static MemoryGovernor forHeap(){
+        return new MemoryGovernor(Runtime.getRuntime().maxMemory(), false);
+    }
+
+    /**
+     * Move to the stage for a trim level, if it's a different one
+     * @return true if the budget changed
+     */
+    public boolean onTrimMemory(int level){
+        return setStage(Stage.forTrimLevel(level));
+    }
+
+    /** Back to the full budget, now that the app is in the foreground again */
+    public boolean relax(){
+        return setStage(Stage.FULL);
+    }
+
+    /**
+     * An allocation failed anyway. That shouldn't happen within these
+     * budgets, so go straight to the running stage that keeps least, and if
+     * that wasn't enough, keep nothing.
+     */
+    public synchronized boolean onOutOfMemory(){
+        return setStage(stage.cacheQuarters > Stage.RUNNING_CRITICAL.cacheQuarters
+                ? Stage.RUNNING_CRITICAL : Stage.COMPLETE);
+    }
+
+    private synchronized boolean setStage(Stage next){
+        if (stage==next)
+            return false;
+        Log.i(TAG, String.format("stage %s -> %s: cache %dKB",
+                stage, next, cacheBytes * next.cacheQuarters / 4 / 1024));
+        if (next.cacheQuarters < stage.cacheQuarters)
+            trims++;
+        stage = next;
+        return true;
+    }
+
+    /** Note that a scene gave up its cache to fit the budget, for the statistics */
+    synchronized void released(long bytes){
+        evictions++;
+        releasedBytes += bytes;
+        Log.i(TAG, String.format("%s: evicted the cache, released %dKB", stage, bytes / 1024));
+    }
+
+    //region budgets
+    public Stage getStage(){ return stage; }
+    public boolean isLowRam(){ return lowRam; }
+    public long getHeapBytes(){ return heapBytes; }
+    /**
+     * Bytes the cache window may take, at four bytes a pixel. With no budget
+     * at all the window is just the viewport.
+     */
+    public long getCacheBytes(){ return cacheBytes * stage.cacheQuarters / 4; }
+    /** Bytes the sample may take; it's decoded once and kept whatever the stage */
+    public long getSampleBytes(){ return sampleBytes; }
+    //endregion
+
+    //region statistics
+    /** How many times the budget has shrunk */
+    public synchronized long getTrimCount(){ return trims; }
+    /** How many times a cache was thrown away because the budget shrank */
+    public synchronized long getEvictionCount(){ return evictions; }
+    /** Bytes given up because the budget shrank */
+    public synchronized long getReleasedBytes(){ return releasedBytes; }
+
+    @Override
+    public String toString(){
+        return String.format("%s%s: cache %dKB, sample %dKB; %d trims, %d evictions, %dKB released",
+                stage, lowRam ? " (low RAM)" : "", getCacheBytes() / 1024, sampleBytes / 1024,
+                getTrimCount(), getEvictionCount(), getReleasedBytes() / 1024);
+    }
+    //endregion
+}
@@ -0,0 +1,126 @@
+package com.sigseg.android.view;
+
+import android.graphics.Point;
+import android.graphics.PointF;
+import android.graphics.Rect;
+
+/**
+ * Which way, and how fast, the viewport has been panning, worked out from
+ * the last few origins it was moved to; and a cache window placed to suit.
+ * A viewport that's standing still sits in the middle of the window, as it
+ * always did. One that's moving gets most of the margin ahead of it and
+ * little behind.
+ * <p>
+ * The window stays the size it would be anyway: the cache is a ring buffer
+ * the size of the window, and a window of another size has to be read all
+ * over again.
+ */
+final class MotionWindow {
+    /** Origins older than this, next to the newest, say nothing about where the viewport is going */
+    static final long HISTORY_NANOS = 150000000L;
+    /** Slower than this, in scene pixels a second, the viewport is standing still */
+    static final float MIN_SPEED = 100;
+    /** The share of an axis's margin that goes ahead, when the motion is all along that axis */
+    static final float MAX_AHEAD = 0.85f;
+    private static final int SAMPLES = 8;
+
+    private final int[] xs = new int[SAMPLES];
+    private final int[] ys = new int[SAMPLES];
+    private final long[] times = new long[SAMPLES];
+    /** Where the next origin goes */
+    private int next = 0;
+    private int count = 0;
+
+    /** Note where the viewport has been moved to */
+    synchronized void record(int x, int y, long nanos){
+        xs[next] = x;
+        ys[next] = y;
+        times[next] = nanos;
+        next = (next + 1) % SAMPLES;
+        if (count < SAMPLES)
+            count++;
+    }
+
+    /** Forget the origins, when the viewport jumps instead of panning */
+    synchronized void clear(){
+        count = 0;
+    }
+
+    /**
+     * How fast the viewport is panning, in scene pixels a second; zero if it
+     * hasn't moved lately
+     */
+    synchronized void getVelocity(long nowNanos, PointF out){
+        out.set(0, 0);
+        if (count < 2)
+            return;
+        int newest = (next + SAMPLES - 1) % SAMPLES;
+        if (nowNanos - times[newest] > HISTORY_NANOS)
+            return;
+        int oldest = newest;
+        for (int i=1; i<count; i++){
+            int j = (newest + SAMPLES - i) % SAMPLES;
+            if (times[newest] - times[j] > HISTORY_NANOS)
+                break;
+            oldest = j;
+        }
+        long dt = times[newest] - times[oldest];
+        if (dt <= 0)
+            return;
+        out.set((xs[newest] - xs[oldest]) * 1e9f / dt, (ys[newest] - ys[oldest]) * 1e9f / dt);
+    }
+
+    /**
+     * Lay out a cache window round a viewport, in no more than a given number
+     * of scene pixels and inside the scene.
+     * @param viewportRect The window has to contain this
+     * @param pixels How many scene pixels the window may cover
+     * @param velocity Which way the viewport is going, from {@link #getVelocity};
+     * zero to put it in the middle
+     * @param size The size of the scene
+     * @param out Gets the window
+     */
+    static void calculate(Rect viewportRect, long pixels, PointF velocity, Point size, Rect out){
+        int vw = viewportRect.width();
+        int vh = viewportRect.height();
+
+        // The biggest margin, the same both ways, that fits: (vw + m) * (vh + m) = pixels
+        double b = vw + vh;
+        double c = (double) vw * vh - pixels;
+        int m = c >= 0 ? 0 : (int) ((-b + Math.sqrt(b * b - 4 * c)) / 2);
+        int mw = m;
+        int mh = m;
+
+        // Trim the margins if they're too big.
+        if (vw+mw > size.x)
+            mw = Math.max(0, size.x-vw);
+        if (vh+mh > size.y)
+            mh = Math.max(0, size.y-vh);
+
+        // Most of each margin goes ahead of the motion along that axis
+        float ax = Math.abs(velocity.x);
+        float ay = Math.abs(velocity.y);
+        boolean moving = Math.max(ax, ay) >= MIN_SPEED;
+        int right = (int) (mw * (0.5f + (MAX_AHEAD - 0.5f) * (moving ? ax / (ax + ay) : 0)));
+        int bottom = (int) (mh * (0.5f + (MAX_AHEAD - 0.5f) * (moving ? ay / (ax + ay) : 0)));
+        if (velocity.x < 0)
+            right = mw - right;
+        if (velocity.y < 0)
+            bottom = mh - bottom;
+        out.set(
+                viewportRect.left - (mw - right),
+                viewportRect.top - (mh - bottom),
+                viewportRect.right + right,
+                viewportRect.bottom + bottom);
+
+        // Shift it back inside the scene. The margins were trimmed to fit, so it does.
+        if (out.left < 0)
+            out.offset(-out.left, 0);
+        if (out.right > size.x)
+            out.offset(size.x - out.right, 0);
+        if (out.top < 0)
+            out.offset(0, -out.top);
+        if (out.bottom > size.y)
+            out.offset(0, size.y - out.bottom);
+    }
+}
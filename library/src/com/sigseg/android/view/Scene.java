@@ -5,6 +5,8 @@ import android.graphics.Bitmap.Config;
 import android.os.Debug;
 import android.util.Log;
 
+import java.io.InterruptedIOException;
+
 /*
  * +-------------------------------------------------------------------+
  * |                                        |                          |
@@ -43,6 +45,45 @@ public abstract class Scene {
     private final Viewport viewport = new Viewport();
     /** The cache */
     private final Cache cache = new Cache();
+    /** Where the viewport has been panned to lately */
+    private final MotionWindow motion = new MotionWindow();
+    /** Who to tell when the scene needs to be redrawn */
+    private volatile Listener listener;
+    /** How much memory the cache may take */
+    private volatile MemoryGovernor memoryGovernor = MemoryGovernor.forHeap();
+
+    /**
+     * Notified whenever something that shows on screen changes: the viewport
+     * moved or zoomed, or the cache was refilled. This is called from
+     * whatever thread made the change, so keep it short.
+     */
+    public interface Listener {
+        void onSceneChanged();
+    }
+
+    /**
+     * Where a scene that takes a while to open says how far along it is.
+     * Scenes are opened off the UI thread; interrupting the thread that's
+     * opening one cancels it, and its constructor throws an
+     * {@link InterruptedIOException}.
+     */
+    public interface OpenProgress {
+        /** For when nobody is watching */
+        OpenProgress NONE = new OpenProgress() {
+            @Override
+            public void onProgress(float fraction) {
+            }
+        };
+
+        /** @param fraction How much of the work is done, from 0 to 1 */
+        void onProgress(float fraction);
+    }
+
+    /** Give up opening the scene if the thread opening it has been interrupted */
+    protected static void checkCancelled() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted())
+            throw new InterruptedIOException("opening the scene was cancelled");
+    }
     
     //region [gs]etSceneSize
     /** Set the size of the scene */
@@ -63,6 +104,22 @@ public abstract class Scene {
     public Viewport getViewport(){return viewport;}
     //endregion
 
+    //region setListener()/markDirty()
+    public void setListener(Listener listener){
+        this.listener = listener;
+    }
+    /**
+     * Tell the listener the scene needs to be drawn again. The Scene calls this
+     * itself for viewport and cache changes; subclasses call it when whatever
+     * they draw in {@link #drawComplete(Canvas)} changes.
+     */
+    public void markDirty(){
+        Listener l = listener;
+        if (l!=null)
+            l.onSceneChanged();
+    }
+    //endregion
+
     //region initialize/start/stop/suspend/invalidate the cache
     /** Initializes the cache */
     public void initialize(){
@@ -80,6 +137,22 @@ public abstract class Scene {
     public void stop(){
         cache.stop();
     }
+    /**
+     * Stops the cache thread, if it was started, and recycles the cache. The
+     * scene can't be shown again afterwards.
+     */
+    public void release(){
+        if (cache.cacheThread!=null)
+            cache.stop();
+        synchronized(cache){
+            if (cache.buffer!=null)
+                cache.buffer.recycle();
+            cache.buffer = null;
+            cache.bufferCanvas = null;
+            cache.window.setEmpty();
+            cache.setState(CacheState.UNINITIALIZED);
+        }
+    }
     /** 
      * Suspends or unsuspends the cache thread. This can be
      * used to temporarily stop the cache from updating
@@ -96,13 +169,90 @@ public abstract class Scene {
                 synchronized(cache){
                     cache.setState(CacheState.INITIALIZED);
                 }
+                // The cache only wakes up when the next frame is drawn
+                markDirty();
+            }
+        }
+    }
+    /**
+     * The viewport is about to fling from one origin to another. Rather than
+     * stopping, the cache is refilled around the place the fling will come to
+     * rest, so the full resolution bitmap is there by the time it slows down.
+     * While the fling lasts the viewport may leave the cache window without
+     * restarting the cache; the sample fills in until it arrives.
+     * @param fromX The viewport origin when the fling starts
+     * @param fromY The viewport origin when the fling starts
+     * @param toX The viewport origin when the fling ends
+     * @param toY The viewport origin when the fling ends
+     */
+    public void startFling(int fromX, int fromY, int toX, int toY){
+        synchronized(cache){
+            cache.flinging = true;
+            cache.flingTo.set(toX, toY);
+            if (cache.getState()!=CacheState.UNINITIALIZED && cache.getState()!=CacheState.SUSPEND){
+                cache.setState(CacheState.START_UPDATE);
+                cache.cacheThread.interrupt();
             }
         }
     }
+    /**
+     * The fling is over (or was interrupted by a touch). The cache goes back to
+     * following the viewport.
+     */
+    public void endFling(){
+        synchronized(cache){
+            if (!cache.flinging)
+                return;
+            cache.flinging = false;
+        }
+        markDirty();
+    }
     /** Invalidate the cache. This causes it to refill */
     @SuppressWarnings("unused")
     public void invalidate(){
         cache.invalidate();
+        markDirty();
+    }
+    //endregion
+
+    //region memory budget
+    /**
+     * Use a governor's budgets from now on, applying them straight away. By
+     * default they follow from the heap.
+     */
+    public void setMemoryGovernor(MemoryGovernor governor){
+        memoryGovernor = governor;
+        applyMemoryBudget();
+    }
+    public MemoryGovernor getMemoryGovernor(){
+        return memoryGovernor;
+    }
+    /**
+     * Fit the cache to the governor's budget, after its stage has changed. A
+     * buffer bigger than the budget is given up there and then, rather than
+     * when the viewport next leaves it, and the cache is refilled with one
+     * that fits.
+     */
+    public void applyMemoryBudget(){
+        MemoryGovernor governor = memoryGovernor;
+        long released = 0;
+        synchronized(cache){
+            Bitmap buffer = cache.buffer;
+            if (buffer!=null && (long) buffer.getWidth() * buffer.getHeight() * 4 > governor.getCacheBytes()){
+                released = (long) buffer.getRowBytes() * buffer.getHeight();
+                cache.window.setEmpty();
+                cache.bufferCanvas = null;
+                cache.buffer = null;
+                buffer.recycle();
+                CacheState state = cache.getState();
+                if (state!=CacheState.UNINITIALIZED && state!=CacheState.SUSPEND)
+                    cache.setState(CacheState.INITIALIZED);
+            }
+        }
+        if (released > 0){
+            governor.released(released);
+            markDirty();
+        }
     }
     //endregion
 
@@ -122,11 +272,14 @@ public abstract class Scene {
     //region protected abstract
     /**
      * This method must return a high resolution Bitmap that the Scene 
-     * will use to fill out the viewport bitmap upon request. This bitmap
-     * is normally larger than the viewport so that the viewport can be
-     * scrolled without having to refresh the cache. This method runs
+     * will use to fill out the viewport bitmap upon request. The cache
+     * keeps whatever part of its window it already has when the window
+     * moves, so this is only asked for the part that's new: when the
+     * viewport pans past the edge of the cache, that's a strip or two along
+     * the side it's panning towards. This method runs
      * on a thread other than the UI thread, and it is not under a lock, so
      * it is expected that this method can run for a long time (seconds?). 
+     * The Scene copies the bitmap into its cache and recycles it.
      * @param rectOfCache The Rect representing the area of the Scene that
      * the Scene wants cached.
      * @return the Bitmap representing the requested area of the larger bitmap
@@ -138,7 +291,9 @@ public abstract class Scene {
      * OutOfMemoryError, we're pretty hosed and are going down. For instance, if
      * we're trying to decode a bitmap region with
      * {@link android.graphics.BitmapRegionDecoder} and we run out of memory, 
-     * we're going to die somewhere in the C code with a SIGSEGV. 
+     * we're going to die somewhere in the C code with a SIGSEGV. Staying within
+     * the {@link MemoryGovernor}'s budget is what keeps it from happening; this
+     * is the last resort. It's called with the cache locked.
      * @param error The OutOfMemoryError exception data
      */
     protected abstract void fillCacheOutOfMemoryError( OutOfMemoryError error );
@@ -151,6 +306,19 @@ public abstract class Scene {
      * @return The Rect that will be used to fill the cache
      */
     protected abstract Rect calculateCacheWindow(Rect viewportRect);
+    /**
+     * Which way, and how fast, the viewport has been panning lately, in scene
+     * pixels a second, for placing the cache window; zero if it's standing
+     * still. Zooming starts it afresh, and a fling counts as standing still,
+     * because the window is laid out round where it will come to rest. Call
+     * it from {@link #calculateCacheWindow(Rect)}.
+     */
+    protected void getPanVelocity(PointF out){
+        if (cache.flinging)
+            out.set(0, 0);
+        else
+            motion.getVelocity(System.nanoTime(), out);
+    }
     /**
      * This method fills the passed-in bitmap with sample data. This function must
      * return as fast as possible so it shouldn't have to do any IO at all -- the
@@ -171,6 +339,8 @@ public abstract class Scene {
     public class Viewport {
         /** The bitmap of the current viewport */
         Bitmap bitmap = null;
+        /** Draws into bitmap; it's made along with it, rather than for every frame */
+        Canvas canvas = null;
         /** A Rect that defines where the Viewport is within the scene */
         final Rect window = new Rect(0,0,0,0);
         float zoom = 1.0f;
@@ -193,8 +363,12 @@ public abstract class Scene {
                 if (y + h > size.y)
                     y = size.y - h;
     
+                if (x==window.left && y==window.top)
+                    return;
                 window.set(x, y, x+w, y+h);
+                motion.record(x, y, System.nanoTime());
             }
+            markDirty();
         }
         public void setSize( int w, int h ){
             synchronized (this) {
@@ -203,12 +377,14 @@ public abstract class Scene {
                     bitmap = null;
                 }
                 bitmap = Bitmap.createBitmap(w, h, Config.RGB_565);
+                canvas = new Canvas(bitmap);
                 window.set(
                         window.left,
                         window.top,
                         window.left + w,
                         window.top + h);
             }
+            markDirty();
         }
         public void getOrigin(Point p){
             synchronized (this) {
@@ -289,6 +465,7 @@ public abstract class Scene {
                     }
                     window.set((int)w2.left,(int)w2.top,(int)w2.right,(int)w2.bottom);
                     zoom = newZoom;
+                    motion.clear();
 //                    Log.d(TAG,String.format(
 //                            "f=%.2f, z=%.2f, scrf(%.0f,%.0f), scnf(%.0f,%.0f) w1s(%.0f,%.0f) w2s(%.0f,%.0f) w1(%.0f,%.0f,%.0f,%.0f) w2(%.0f,%.0f,%.0f,%.0f)",
 //                            factor,
@@ -303,6 +480,7 @@ public abstract class Scene {
 //                            w2.left,w2.top,w2.right,w2.bottom
 //                            ));
                 }
+                markDirty();
             }
         }
         void draw(Canvas c){
@@ -321,14 +499,31 @@ public abstract class Scene {
 
     private enum CacheState {UNINITIALIZED,INITIALIZED,START_UPDATE,IN_UPDATE,READY,SUSPEND}
     /**
-     * Keep track of the cached bitmap
+     * Keep track of the cached bitmap. It's a ring buffer in both directions:
+     * the pixel at (x,y) in the scene is kept at (x mod width, y mod height)
+     * in the bitmap, whichever window it's part of. So when the window
+     * moves, the part it still covers stays where it is, and what's new goes
+     * where the part that's been left behind was. Only the new part has to
+     * be read, and reading costs as much as the distance panned, not the
+     * size of the window.
      */
     private class Cache {
-        /** A Rect that defines where the Cache is within the scene */
+        /**
+         * A Rect that defines where the Cache is within the scene: the part
+         * of the buffer that holds what it should. While the cache is being
+         * updated that's only the part of the old window that the new one
+         * keeps.
+         */
         final Rect window = new Rect(0,0,0,0);
-        /** The bitmap of the current cache */
-        Bitmap bitmapRef = null;
+        /** Where the window is going, while the cache is being updated */
+        final Rect target = new Rect(0,0,0,0);
+        /** The ring buffer of the current cache; it's the size of the window */
+        Bitmap buffer = null;
+        Canvas bufferCanvas = null;
         CacheState state = CacheState.UNINITIALIZED;
+        /** Set from {@link Scene#startFling} until {@link Scene#endFling} */
+        boolean flinging = false;
+        final Point flingTo = new Point();
 
         void setState(CacheState newState){
             if (Debug.isDebuggerConnected())
@@ -368,14 +563,109 @@ public abstract class Scene {
         }
         void invalidate(){
             synchronized(this){
+                window.setEmpty();
                 setState(CacheState.INITIALIZED);
                 cacheThread.interrupt();
             }
         }
+
+        /**
+         * Get the buffer ready for a new window and work out which parts of it
+         * have to be read. A window of another size needs another buffer, and
+         * all of it is read. Call with the cache locked.
+         * @param next The new window
+         * @param exposed Gets the parts of next that aren't in the buffer
+         * @return How many rects of exposed were set, from 0 to 4
+         */
+        int beginUpdate(Rect next, Rect[] exposed){
+            if (buffer==null || buffer.getWidth()!=next.width() || buffer.getHeight()!=next.height()){
+                window.setEmpty();
+                bufferCanvas = null;
+                if (buffer!=null)
+                    buffer.recycle();
+                buffer = null;
+                buffer = Bitmap.createBitmap(next.width(), next.height(), Config.RGB_565);
+                bufferCanvas = new Canvas(buffer);
+            }
+            // Whatever of the old window the new one keeps is still good
+            if (!window.intersect(next))
+                window.setEmpty();
+            target.set(next);
+            if (window.isEmpty()){
+                exposed[0].set(next);
+                return 1;
+            }
+            // The new window is what's kept, and up to four strips round it
+            int n = 0;
+            if (window.top > next.top)
+                exposed[n++].set(next.left, next.top, next.right, window.top);
+            if (window.bottom < next.bottom)
+                exposed[n++].set(next.left, window.bottom, next.right, next.bottom);
+            if (window.left > next.left)
+                exposed[n++].set(next.left, window.top, window.left, window.bottom);
+            if (window.right < next.right)
+                exposed[n++].set(window.right, window.top, next.right, window.bottom);
+            return n;
+        }
+
+        /**
+         * Copy a bitmap of part of the target window into the buffer, wrapping
+         * round its edges. Call with the cache locked.
+         */
+        void putIntoBuffer(Bitmap bitmap, Rect rectOfBitmap){
+            int n = wrap(rectOfBitmap, writePieces);
+            for (int i=0; i<n; i++){
+                Rect piece = writePieces[i];
+                writeSrc.set(
+                        piece.left - rectOfBitmap.left,
+                        piece.top - rectOfBitmap.top,
+                        piece.right - rectOfBitmap.left,
+                        piece.bottom - rectOfBitmap.top);
+                toBuffer(piece, writeDst);
+                bufferCanvas.drawBitmap(bitmap, writeSrc, writeDst, null);
+            }
+        }
+        final Rect[] writePieces = {new Rect(), new Rect(), new Rect(), new Rect()};
+        final Rect writeSrc = new Rect(0,0,0,0);
+        final Rect writeDst = new Rect(0,0,0,0);
+
+        /**
+         * Split a rect of the scene where it crosses the edges of the buffer, so
+         * every piece is in one piece in the buffer too. The rect must be no
+         * bigger than the buffer.
+         * @return How many rects of pieces were set, from 1 to 4
+         */
+        int wrap(Rect rect, Rect[] pieces){
+            int w = buffer.getWidth();
+            int h = buffer.getHeight();
+            int splitX = (rect.left / w + 1) * w;
+            int splitY = (rect.top / h + 1) * h;
+            int n = 0;
+            for (int y=0; y<2; y++){
+                int top = y==0 ? rect.top : splitY;
+                int bottom = y==0 ? Math.min(rect.bottom, splitY) : rect.bottom;
+                if (top >= bottom)
+                    continue;
+                for (int x=0; x<2; x++){
+                    int left = x==0 ? rect.left : splitX;
+                    int right = x==0 ? Math.min(rect.right, splitX) : rect.right;
+                    if (left >= right)
+                        continue;
+                    pieces[n++].set(left, top, right, bottom);
+                }
+            }
+            return n;
+        }
+
+        /** Where a piece of the scene that doesn't cross an edge of the buffer is in it */
+        void toBuffer(Rect piece, Rect out){
+            int left = piece.left % buffer.getWidth();
+            int top = piece.top % buffer.getHeight();
+            out.set(left, top, left + piece.width(), top + piece.height());
+        }
         
         /** Fill the bitmap with the part of the scene referenced by the viewport Rect */
         void update(Viewport viewport){
-            Bitmap bitmap = null;    // If this is null at the bottom, then load from the sample
             synchronized(this){
                 switch(getState()){
                 case UNINITIALIZED:
@@ -390,19 +680,26 @@ public abstract class Scene {
                     // I already told the thread to start
                     break;
                 case IN_UPDATE:
-                    // Already reading some data, just use the sample 
+                    // Already reading some data, but what's kept of the
+                    // old window can still be shown
+                    if (buffer!=null && window.contains(viewport.window)){
+                        loadBitmapIntoViewport();
+                        return;
+                    }
                     break;
                 case SUSPEND:
                     // Loading from cache suspended.
                     break;
                 case READY:
                     // I have some data to show
-                    if (bitmapRef==null){
+                    if (buffer==null || window.isEmpty()){
                         // Start the cache off right
                         if (Debug.isDebuggerConnected())
-                            Log.d(TAG,"bitmapRef is null");
+                            Log.d(TAG,"buffer is empty");
                         setState(CacheState.START_UPDATE);
                         cacheThread.interrupt();
+                    } else if (flinging && !window.contains(viewport.window)){
+                        // On the way to the cache, just use the sample
                     } else if (!window.contains(viewport.window)){
                         if (Debug.isDebuggerConnected())
                             Log.d(TAG,"viewport not in cache");
@@ -410,46 +707,44 @@ public abstract class Scene {
                         cacheThread.interrupt();
                     } else {
                         // Happy case -- the cache already contains the Viewport
-                        bitmap = bitmapRef;
+                        loadBitmapIntoViewport();
+                        return;
                     }
                     break;
                 }
             }
-            if (bitmap==null)
-                loadSampleIntoViewport();
-            else
-                loadBitmapIntoViewport(bitmap);
+            loadSampleIntoViewport();
         }
         
-        void loadBitmapIntoViewport(Bitmap bitmap){
-            if (bitmap!=null){
-                synchronized(viewport){
-                    int left   = viewport.window.left - window.left;
-                    int top    = viewport.window.top  - window.top;
-                    int right  = left + viewport.window.width();
-                    int bottom = top  + viewport.window.height();
-                    viewport.getPhysicalSize(dstSize);
-                    srcRect.set( left, top, right, bottom );
-                    dstRect.set(0, 0, dstSize.x, dstSize.y);
-                    Canvas c = new Canvas(viewport.bitmap);
-                    c.drawColor(Color.BLACK);
-                    c.drawBitmap(
-                            bitmap,
-                            srcRect,
-                            dstRect,
-                            null);
-//                    try {
-//                        FileOutputStream fos = new FileOutputStream("/sdcard/viewport.png");
-//                        viewport.bitmap.compress(Bitmap.CompressFormat.PNG, 99, fos);
-//                        Thread.sleep(1000);
-//                    } catch  (Exception e){
-//                        System.out.print(e.getMessage());
-//                    }
+        /**
+         * Copy the viewport out of the buffer, a piece at a time where it
+         * wraps round. The pieces cover the whole viewport, so nothing needs
+         * clearing first. Call with the cache locked, so the cache thread
+         * isn't writing to the buffer at the same time.
+         */
+        void loadBitmapIntoViewport(){
+            synchronized(viewport){
+                viewport.getPhysicalSize(dstSize);
+                Rect vw = viewport.window;
+                float scaleX = (float) dstSize.x / vw.width();
+                float scaleY = (float) dstSize.y / vw.height();
+                Canvas c = viewport.canvas;
+                int n = wrap(vw, readPieces);
+                for (int i=0; i<n; i++){
+                    Rect piece = readPieces[i];
+                    toBuffer(piece, srcRect);
+                    dstRect.set(
+                            (piece.left - vw.left) * scaleX,
+                            (piece.top - vw.top) * scaleY,
+                            (piece.right - vw.left) * scaleX,
+                            (piece.bottom - vw.top) * scaleY);
+                    c.drawBitmap(buffer, srcRect, dstRect, null);
                 }
             }
         }
+        final Rect[] readPieces = {new Rect(), new Rect(), new Rect(), new Rect()};
         final Rect srcRect = new Rect(0,0,0,0);
-        final Rect dstRect = new Rect(0,0,0,0);
+        final RectF dstRect = new RectF(0,0,0,0);
         final Point dstSize = new Point();
         
         void loadSampleIntoViewport(){
@@ -469,9 +764,10 @@ public abstract class Scene {
     /**
      * <p>The CacheThread's job is to wait until the {@link Cache#state} is 
      * {@link CacheState#START_UPDATE} and then update the {@link Cache} given
-     * the current {@link Viewport#window}. It does not want to hold the cache
-     * lock during the call to {@link Scene#fillCache(Rect)} because the call 
-     * can take a long time. If we hold the lock, the user experience is very 
+     * the current {@link Viewport#window}. Only the parts of the new window
+     * that the cache doesn't already have are read. It does not want to hold
+     * the cache lock during the calls to {@link Scene#fillCache(Rect)} because
+     * they can take a long time. If we hold the lock, the user experience is very 
      * jumpy.</p>
      * <p>The CacheThread and the {@link Cache} work hand in hand, both using the 
      * cache itself to synchronize on and using the {@link Cache#state}. 
@@ -486,6 +782,8 @@ public abstract class Scene {
         final Cache cache;
         boolean running = false;
         void setRunning(boolean value){ running = value; }
+        /** The parts of the window to be read */
+        final Rect[] exposed = {new Rect(), new Rect(), new Rect(), new Rect()};
         
         CacheThread(Cache cache){ this.cache = cache; }
         
@@ -493,6 +791,7 @@ public abstract class Scene {
         public void run() {
             running=true;
             Rect viewportRect = new Rect(0,0,0,0);
+            Rect windowRect = new Rect(0,0,0,0);
             while(running){
                 while(running && cache.getState()!=CacheState.START_UPDATE)
                     try {
@@ -506,7 +805,6 @@ public abstract class Scene {
                 synchronized (cache) {
                     if (cache.getState()==CacheState.START_UPDATE){
                         cache.setState(CacheState.IN_UPDATE);
-                        cache.bitmapRef = null;
                         cont = true;
                     }
                 }
@@ -514,40 +812,55 @@ public abstract class Scene {
                     synchronized(viewport){
                         viewportRect.set(viewport.window);
                     }
-                    synchronized (cache) {
-                        if (cache.getState()==CacheState.IN_UPDATE)
-                            //cache.setWindowRect(viewportRect);
-                            cache.window.set(calculateCacheWindow(viewportRect));
-                        else
-                            cont = false;
-                    }
-                    if (cont){
-                        try{
-                            Bitmap bitmap = fillCache(cache.window);
-                            if (bitmap!=null){
-                                synchronized (cache){
-                                    if (cache.getState()==CacheState.IN_UPDATE){
-                                        cache.bitmapRef = bitmap;
-                                        cache.setState(CacheState.READY);
-                                    } else {
-                                        Log.w(TAG,"fillCache operation aborted");
-                                    }
-                                }
+                    try{
+                        int parts = 0;
+                        synchronized (cache) {
+                            if (cache.flinging){
+                                // Cache around where the fling will come to rest
+                                viewportRect.offsetTo(cache.flingTo.x, cache.flingTo.y);
                             }
-                            long done = System.currentTimeMillis();
-                            if (Debug.isDebuggerConnected())
-                                Log.d(TAG,String.format("fillCache in %dms",done-start));
-                        } catch (OutOfMemoryError e){
-                                    Log.d(TAG,"CacheThread out of memory");
-                            /*
-                             *  Attempt to recover. Experience shows that if we
-                             *  do get an OutOfMemoryError, we're pretty hosed and are going down.
-                             */
+                            if (cache.getState()==CacheState.IN_UPDATE){
+                                windowRect.set(calculateCacheWindow(viewportRect));
+                                parts = cache.beginUpdate(windowRect, exposed);
+                            } else
+                                cont = false;
+                        }
+                        long pixels = 0;
+                        for (int i=0; i<parts && cont; i++){
+                            Bitmap bitmap = fillCache(exposed[i]);
+                            if (bitmap==null)
+                                continue;
+                            pixels += (long) exposed[i].width() * exposed[i].height();
                             synchronized (cache){
-                                fillCacheOutOfMemoryError(e);
-                                if (cache.getState()==CacheState.IN_UPDATE){
-                                    cache.setState(CacheState.START_UPDATE);
-                                }
+                                if (cache.getState()==CacheState.IN_UPDATE)
+                                    cache.putIntoBuffer(bitmap, exposed[i]);
+                                else
+                                    cont = false;
+                            }
+                            bitmap.recycle();
+                        }
+                        synchronized (cache){
+                            if (cont && cache.getState()==CacheState.IN_UPDATE){
+                                cache.window.set(cache.target);
+                                cache.setState(CacheState.READY);
+                            } else {
+                                Log.w(TAG,"fillCache operation aborted");
+                            }
+                        }
+                        markDirty();
+                        long done = System.currentTimeMillis();
+                        if (Debug.isDebuggerConnected())
+                            Log.d(TAG,String.format("fillCache %d parts, %d pixels in %dms",parts,pixels,done-start));
+                    } catch (OutOfMemoryError e){
+                                Log.d(TAG,"CacheThread out of memory");
+                        /*
+                         *  Attempt to recover. Experience shows that if we
+                         *  do get an OutOfMemoryError, we're pretty hosed and are going down.
+                         */
+                        synchronized (cache){
+                            fillCacheOutOfMemoryError(e);
+                            if (cache.getState()==CacheState.IN_UPDATE){
+                                cache.setState(CacheState.START_UPDATE);
                             }
                         }
                     }
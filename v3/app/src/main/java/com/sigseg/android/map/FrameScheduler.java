@@ -0,0 +1,115 @@
+package com.sigseg.android.map;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.view.Choreographer;
+
+import com.sigseg.android.view.WorkerPool;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs everything the view does off the UI thread, in order of priority.
+ * There's a frame clock, paced by {@link Choreographer}, that steps input
+ * first and then draws. And there's a bounded {@link WorkerPool} for the
+ * scene, which works out the cache window as soon as the viewport moves,
+ * then decodes the tiles on screen, then prefetches.
+ *
+ * <p>Nothing is drawn unless a frame has been requested since the last one,
+ * and no frame callback is even posted until then, so an idle map costs
+ * nothing. It lives as long as the surface: {@link #shutdown()} stops the
+ * frame clock and the workers and waits for all of them.</p>
+ */
+class FrameScheduler implements Choreographer.FrameCallback {
+    /** What gets done every frame, on the frame thread */
+    interface Client {
+        /**
+         * Step whatever input is animating, a fling say. This comes before the
+         * frame is drawn, so the frame shows where it has got to.
+         * @return true if it needs another frame
+         */
+        boolean onInput(long frameTimeNanos);
+        /** Draw the frame */
+        void onDraw(long frameTimeNanos);
+    }
+
+    private final Client client;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final WorkerPool workers;
+    private final AtomicBoolean dirty = new AtomicBoolean(true);
+    /** Only touched on the frame thread */
+    private Choreographer choreographer;
+    private boolean frameRequested = false;
+    private long frames = 0;
+    private final Runnable requestFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (!frameRequested){
+                frameRequested = true;
+                choreographer.postFrameCallback(FrameScheduler.this);
+            }
+        }
+    };
+
+    /**
+     * Start the frame thread and the workers, and ask for the first frame
+     * @param workers How many workers the pool gets
+     */
+    FrameScheduler(Client client, int workers){
+        this.client = client;
+        this.workers = new WorkerPool("decodeThread", workers);
+        thread = new HandlerThread("frameThread", Process.THREAD_PRIORITY_DISPLAY);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        // The choreographer belongs to the thread that gets it
+        handler.post(() -> choreographer = Choreographer.getInstance());
+        handler.post(requestFrame);
+    }
+
+    /** The pool for the scene's decodes, and for its statistics */
+    WorkerPool getWorkers(){
+        return workers;
+    }
+
+    /** How many frames have been drawn */
+    long getFrameCount(){
+        return frames;
+    }
+
+    /** Ask for a frame. This can be called from any thread. */
+    void requestFrame(){
+        if (!dirty.getAndSet(true))
+            handler.post(requestFrame);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        frameRequested = false;
+        if (client.onInput(frameTimeNanos))
+            requestFrame.run();
+        if (!dirty.getAndSet(false))
+            return;
+        client.onDraw(frameTimeNanos);
+        frames++;
+    }
+
+    /**
+     * Stop the frame clock, then the workers, and wait for every thread to
+     * finish. Nothing is drawn or decoded once this returns.
+     */
+    void shutdown(){
+        thread.quit();
+        boolean retry = true;
+        while (retry) {
+            try {
+                thread.join();
+                retry = false;
+            } catch (InterruptedException e) {
+                // we will try it again and again...
+            }
+        }
+        workers.shutdown();
+    }
+}
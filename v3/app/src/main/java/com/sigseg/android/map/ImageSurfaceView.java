@@ -1,7 +1,10 @@
 package com.sigseg.android.map;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.util.AttributeSet;
@@ -13,22 +16,61 @@ import android.view.ScaleGestureDetector;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
+import com.sigseg.android.view.DiskTileCache;
 import com.sigseg.android.view.InputStreamScene;
-
+import com.sigseg.android.view.MemoryGovernor;
+import com.sigseg.android.view.Scene;
+import com.sigseg.android.view.TileArchiveScene;
+import com.sigseg.android.view.TileSource;
+import com.sigseg.android.view.TileSourceScene;
+import com.sigseg.android.view.WorkerPool;
+import com.sigseg.android.view.archive.TileArchive;
+
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callback, OnGestureListener  {
+public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callback, OnGestureListener, FrameScheduler.Client {
     private final static String TAG = ImageSurfaceView.class.getSimpleName();
-
-    private InputStreamScene scene;
+    /** How much of the app's cache directory decoded tiles may take */
+    private final static long DISK_CACHE_BYTES = 64 * 1024 * 1024;
+    /** How many sources' tiles are kept on disk: the one shown and the one before, with a share each */
+    private final static int DISK_CACHES = 2;
+
+    /** Scenes are opened one at a time, off the UI thread */
+    private final static ExecutorService OPENER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "sceneOpener");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Null until a scene has been opened; only set on the UI thread */
+    private volatile Scene scene;
+    /** How far along opening the scene is, for the placeholder */
+    private volatile float openProgress;
+    /** The open in flight, if any */
+    private OpenTask opening;
+    private int surfaceWidth;
+    private int surfaceHeight;
     private final TouchController touch;
     private GestureDetector gestureDectector;
     private ScaleGestureDetector scaleGestureDetector;
     private long lastScaleTime = 0;
     private long SCALE_MOVE_GUARD = 500; // milliseconds after scale to ignore move events
 
-    private DrawThread drawThread;
+    /** Sizes every scene's caches to the device, and shrinks them when the system asks */
+    private MemoryGovernor memoryGovernor;
+
+    /** The frame clock and the decode workers; null while there's no surface */
+    private volatile FrameScheduler scheduler;
+    private SurfaceHolder surfaceHolder;
+    private final Paint progressTrack = new Paint();
+    private final Paint progressBar = new Paint();
 
     //region getters and setters
     public void getViewport(Point p){
@@ -49,8 +91,263 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
         scene.getViewport().setOrigin(x, y);
     }
 
+    /**
+     * The workers that decode the scene's tiles, for their queue depth and
+     * utilization; null while there's no surface
+     */
+    public WorkerPool getWorkerPool(){
+        FrameScheduler s = scheduler;
+        return s!=null ? s.getWorkers() : null;
+    }
+
+    /**
+     * How much memory the scenes may use, for their current budgets and what
+     * trimming them has evicted. Give it to scenes made in a
+     * {@link SceneOpener}, so that the sample is sized to the device too.
+     */
+    public MemoryGovernor getMemoryGovernor(){
+        return memoryGovernor;
+    }
+
+    /**
+     * Pass on {@link android.content.ComponentCallbacks2#onTrimMemory(int)}:
+     * the scene's caches shrink to suit the level
+     */
+    public void onTrimMemory(int level){
+        Scene scene = this.scene;
+        if (memoryGovernor.onTrimMemory(level) && scene!=null)
+            scene.applyMemoryBudget();
+    }
+
+    /** The scene being shown, or null while the first one is still being opened */
+    public Scene getScene(){
+        return scene;
+    }
+
+    /** Decode an image on this thread and show it */
     public void setInputStream(InputStream inputStream) throws IOException {
-        scene = new InputStreamScene(inputStream);
+        setScene(prepare(new InputStreamScene(inputStream)));
+    }
+
+    /**
+     * Show a pyramid made by the tiler instead of decoding the whole image.
+     * The scene owns the archive, and closes it once another replaces it.
+     */
+    public void setTileArchive(TileArchive archive) throws IOException {
+        setScene(prepare(new TileArchiveScene(archive)));
+    }
+
+    /** Show any source of tiles, decoding its sample on this thread */
+    public void setTileSource(TileSource source) throws IOException {
+        setScene(prepare(new TileSourceScene(source, Scene.OpenProgress.NONE, memoryGovernor)));
+    }
+
+    /**
+     * Makes a scene; it's called on a background thread and may take a while.
+     * Give the scene its layers here, before its disk cache is opened.
+     */
+    public interface SceneOpener {
+        /**
+         * @param progress Report how far along opening is
+         * @throws InterruptedIOException if the open was cancelled
+         */
+        Scene open(Scene.OpenProgress progress) throws IOException;
+    }
+
+    /** Hears how an open is going. Every call is made on the UI thread. */
+    public interface OpenListener {
+        /** @param fraction From 0 to 1 */
+        void onOpenProgress(float fraction);
+        /** The scene is now being shown */
+        void onSceneOpened(Scene scene);
+        void onOpenFailed(IOException e);
+    }
+
+    /**
+     * Open a scene in the background and show it once it's ready. This
+     * returns straight away; until the scene is ready a placeholder with a
+     * progress bar is drawn instead (or the old scene, if there was one).
+     * Opening another scene, or {@link #cancelOpen()}, cancels this one. Call
+     * on the UI thread.
+     */
+    public void openScene(SceneOpener opener, OpenListener listener){
+        cancelOpen();
+        if (scene==null)
+            openProgress = 0;
+        opening = new OpenTask(opener, listener);
+        opening.future = OPENER.submit(opening);
+    }
+
+    /** {@link #openScene} an image, decoding it in the background */
+    public void openInputStream(final InputStream inputStream, OpenListener listener){
+        openScene(progress -> new InputStreamScene(inputStream, progress), listener);
+    }
+
+    /** Stop opening the scene, if one is being opened. Nothing more is heard from its listener. */
+    public void cancelOpen(){
+        OpenTask task = opening;
+        opening = null;
+        if (task!=null){
+            task.cancelled = true;
+            task.future.cancel(true);
+        }
+    }
+
+    private class OpenTask implements Runnable, Scene.OpenProgress {
+        private final SceneOpener opener;
+        private final OpenListener listener;
+        /** Only read and written on the UI thread, or before the task is submitted */
+        Future<?> future;
+        volatile boolean cancelled;
+        /** The last progress passed on, so the UI thread sees at most a hundred posts */
+        private int percent = -1;
+
+        OpenTask(SceneOpener opener, OpenListener listener){
+            this.opener = opener;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onProgress(final float fraction) {
+            int p = (int) (fraction * 100);
+            if (p==percent || cancelled)
+                return;
+            percent = p;
+            if (scene==null){
+                openProgress = fraction;
+                requestRender();
+            }
+            post(() -> {
+                if (!cancelled)
+                    listener.onOpenProgress(fraction);
+            });
+        }
+
+        /**
+         * Anything that goes wrong is passed on to the listener, as an
+         * IOException if it wasn't one already; left to the executor it would
+         * be swallowed, and the placeholder shown forever.
+         */
+        @Override
+        public void run() {
+            try {
+                final Scene opened = opener.open(this);
+                try {
+                    prepare(opened);
+                } catch (RuntimeException | Error e) {
+                    opened.release();
+                    throw e;
+                }
+                post(() -> {
+                    if (cancelled){
+                        OPENER.execute(opened::release);
+                        return;
+                    }
+                    opening = null;
+                    setScene(opened);
+                    listener.onSceneOpened(opened);
+                });
+            } catch (InterruptedIOException e) {
+                Log.d(TAG, "opening the scene was cancelled");
+            } catch (IOException e) {
+                failed(e);
+            } catch (OutOfMemoryError e) {
+                Log.e(TAG, "not enough memory to open the scene", e);
+                failed(new IOException("not enough memory to open the scene", e));
+            } catch (RuntimeException | Error e) {
+                Log.e(TAG, "can't open the scene", e);
+                failed(new IOException("can't open the scene", e));
+            }
+        }
+
+        private void failed(final IOException e){
+            post(() -> {
+                if (cancelled)
+                    return;
+                opening = null;
+                listener.onOpenFailed(e);
+            });
+        }
+    }
+
+    /** Get a new scene ready to show; this does I/O, so it's called off the UI thread when it can be */
+    private Scene prepare(Scene scene){
+        scene.setListener(this::requestRender);
+        scene.setMemoryGovernor(memoryGovernor);
+        long fingerprint = scene.getTileFingerprint();
+        if (fingerprint!=0){
+            // A file per source, so that opening one never resets the file another is writing to
+            File dir = new File(getContext().getCacheDir(), "tiles");
+            File file = new File(dir, Long.toHexString(scene.getSourceFingerprint()));
+            closeDiskCache(file);
+            try {
+                scene.setDiskCache(DiskTileCache.open(file, fingerprint, DISK_CACHE_BYTES / DISK_CACHES));
+                file.setLastModified(System.currentTimeMillis());
+            } catch (IOException e) {
+                // Not fatal, everything just gets decoded
+                Log.w(TAG, "can't open tile cache " + file, e);
+            }
+            pruneDiskCaches(dir);
+        }
+        return scene;
+    }
+
+    /**
+     * The scene being shown may be over the same source as the one being
+     * opened, and so have the same file. Its disk cache is closed first, so
+     * that the two never write to it at once; it does without one until it's
+     * replaced.
+     */
+    private void closeDiskCache(File file){
+        Scene current = scene;
+        DiskTileCache disk = current!=null ? current.getDiskCache() : null;
+        if (disk!=null && disk.getFile().equals(file)){
+            current.setDiskCache(null);
+            disk.close();
+        }
+    }
+
+    /** Delete all but the {@link #DISK_CACHES} most recently opened disk caches */
+    private static void pruneDiskCaches(File dir){
+        File[] files = dir.listFiles();
+        if (files==null || files.length <= DISK_CACHES)
+            return;
+        Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+        for (int i = DISK_CACHES; i < files.length; i++)
+            if (!files[i].delete())
+                Log.w(TAG, "can't delete tile cache " + files[i]);
+    }
+
+    /**
+     * Show a scene in place of the current one, and release that one: its
+     * disk cache, its decoders and its sample. Call on the UI thread.
+     */
+    private void setScene(Scene scene){
+        Scene old = this.scene;
+        if (surfaceWidth > 0 && surfaceHeight > 0)
+            scene.getViewport().setSize(surfaceWidth, surfaceHeight);
+        FrameScheduler s = scheduler;
+        if (s!=null){
+            if (old!=null)
+                old.stop();
+            scene.start(s.getWorkers());
+        }
+        // Frames are drawn holding the holder's lock, so once the scene has
+        // been swapped holding it too, no frame is drawing the old one
+        synchronized (getHolder()){
+            this.scene = scene;
+        }
+        // Off the UI thread, since it waits for the old scene's running decodes
+        if (old!=null)
+            OPENER.execute(old::release);
+        requestRender();
+    }
+
+    /** Ask for a new frame, if there is a surface to draw on */
+    private void requestRender(){
+        FrameScheduler s = scheduler;
+        if (s!=null)
+            s.requestFrame();
     }
 
     //endregion
@@ -58,6 +355,8 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
     //region extends SurfaceView
     @Override
     public boolean onTouchEvent(MotionEvent me) {
+        if (scene==null)
+            return true; // Nothing to move yet
         boolean consumed = gestureDectector.onTouchEvent(me);
         if (consumed)
             return true;
@@ -78,23 +377,29 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
     //region SurfaceHolder.Callback constructors
     public ImageSurfaceView(Context context) {
         super(context);
-        touch = new TouchController(context, ()->scene, this::invalidate);
+        touch = new TouchController(context, ()->scene, this::requestRender);
         init(context);
     }
     
     public ImageSurfaceView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
-        touch = new TouchController(context, ()->scene, this::invalidate);
+        touch = new TouchController(context, ()->scene, this::requestRender);
         init(context);
     }
 
     public ImageSurfaceView(Context context, AttributeSet attrs) {
         super(context, attrs);
-        touch = new TouchController(context, ()->scene, this::invalidate);
+        touch = new TouchController(context, ()->scene, this::requestRender);
         init(context);
     }
 
     private void init(Context context){
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        memoryGovernor = activityManager!=null
+                ? new MemoryGovernor(activityManager.getMemoryClass(), activityManager.isLowRamDevice())
+                : MemoryGovernor.forHeap();
+        progressTrack.setColor(Color.DKGRAY);
+        progressBar.setColor(Color.WHITE);
         gestureDectector = new GestureDetector(context,this);
         getHolder().addCallback(this);
         scaleGestureDetector = new ScaleGestureDetector(context, new ScaleListener());
@@ -126,34 +431,36 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
     //region implements SurfaceHolder.Callback
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
-        scene.getViewport().setSize(width, height);
+        surfaceWidth = width;
+        surfaceHeight = height;
+        Scene scene = this.scene;
+        if (scene!=null)
+            scene.getViewport().setSize(width, height);
+        requestRender();
         Log.d(TAG,String.format("onSizeChanged(w=%d,h=%d)",width,height));
     }
 
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
-        drawThread = new DrawThread(holder);
-        drawThread.setName("drawThread");
-        drawThread.setRunning(true);
-        drawThread.start();
-        scene.start();
-        touch.start();
+        surfaceHolder = holder;
+        FrameScheduler s = new FrameScheduler(this, Runtime.getRuntime().availableProcessors());
+        scheduler = s;
+        Scene scene = this.scene;
+        // Back in the foreground, so whatever was trimmed may come back
+        if (memoryGovernor.relax() && scene!=null)
+            scene.applyMemoryBudget();
+        if (scene!=null)
+            scene.start(s.getWorkers());
     }
 
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
-        touch.stop();
-        scene.stop();
-        drawThread.setRunning(false);
-        boolean retry = true;
-        while (retry) {
-            try {
-                drawThread.join();
-                retry = false;
-            } catch (InterruptedException e) {
-                // we will try it again and again...
-            }
-        }
+        FrameScheduler s = scheduler;
+        scheduler = null;
+        Scene scene = this.scene;
+        if (scene!=null)
+            scene.stop();
+        s.shutdown();
     }
     //endregion
 
@@ -189,46 +496,43 @@ public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callb
 
     //endregion
 
-    //region class DrawThread
-
-    class DrawThread extends Thread {
-        private SurfaceHolder surfaceHolder;
+    //region implements FrameScheduler.Client
+    @Override
+    public boolean onInput(long frameTimeNanos) {
+        return scene!=null && touch.step();
+    }
 
-        private boolean running = false;
-        public void setRunning(boolean value){ running = value; }
-        
-        public DrawThread(SurfaceHolder surfaceHolder){
-            this.surfaceHolder = surfaceHolder;
-        }
-        
-        @Override
-        public void run() {
-            Canvas c;
-            while (running) {
-                try {
-                    // Don't hog the entire CPU
-                    Thread.sleep(5);
-                } catch (InterruptedException e) {}
-                c = null;
-                try {
-                    c = surfaceHolder.lockCanvas();
-                    if (c!=null){
-                        synchronized (surfaceHolder) {
-                            scene.draw(c);// draw it
-                        }
-                    }
-                } finally {
-                    if (c != null) {
-                        surfaceHolder.unlockCanvasAndPost(c);
-                    }
+    @Override
+    public void onDraw(long frameTimeNanos) {
+        Canvas c = null;
+        try {
+            c = surfaceHolder.lockCanvas();
+            if (c!=null){
+                synchronized (surfaceHolder) {
+                    Scene scene = this.scene;
+                    if (scene!=null)
+                        scene.draw(c);// draw it
+                    else
+                        drawPlaceholder(c);
                 }
-            }        
+            }
+        } finally {
+            if (c != null) {
+                surfaceHolder.unlockCanvasAndPost(c);
+            }
         }
     }
-    //endregion
-
-    //region class Touch
 
+    /** What's shown while the scene is opened: a bar across the middle of the screen */
+    private void drawPlaceholder(Canvas c){
+        c.drawColor(Color.BLACK);
+        float height = 4 * getResources().getDisplayMetrics().density;
+        float left = c.getWidth() / 4f;
+        float right = c.getWidth() - left;
+        float top = (c.getHeight() - height) / 2;
+        c.drawRect(left, top, right, top + height, progressTrack);
+        c.drawRect(left, top, left + (right - left) * openProgress, top + height, progressBar);
+    }
     //endregion
 
 }
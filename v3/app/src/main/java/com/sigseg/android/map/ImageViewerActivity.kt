@@ -1,43 +1,106 @@
 package com.sigseg.android.map
 
 import android.app.Activity
+import android.content.ComponentCallbacks2
 import android.graphics.Point
 import android.os.Bundle
+import android.util.Log
 import android.view.Window
 import android.view.WindowManager
+import com.sigseg.android.view.AssetTileSource
+import com.sigseg.android.view.Scene
+import com.sigseg.android.view.TileSource
+import com.sigseg.android.view.TileSourceScene
+import com.sigseg.android.view.layer.AssetLayers
 import com.sigseg.android.worldmap.R
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.util.Locale
+
+private const val TAG = "ImageViewerActivity"
 
 private const val KEY_X = "X"
 private const val KEY_Y = "Y"
 private const val MAP_FILE = "world.jpg"
+/** The tiler's pyramid of [MAP_FILE]; it has to be stored uncompressed to be read in place */
+private const val MAP_ARCHIVE = "world.wmta"
+/** How much of opening the map is opening the source, before its sample is decoded */
+private const val SOURCE_PROGRESS = 0.4f
+/** Patches to the map for a language live in a directory named after it */
+private const val LAYERS_DIR = "layers"
 
 class ImageViewerActivity : Activity() {
     private val imageSurfaceView by lazy { findViewById<ImageSurfaceView>(R.id.worldview) }
+    /** Where the viewport was before a restart, kept until the scene is open to put it back */
+    private var restoredOrigin: Point? = null
 
     override fun onCreate(bundle: Bundle?) {
         super.onCreate(bundle)
         requestWindowFeature(Window.FEATURE_NO_TITLE)
         window.addFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN)
         setContentView(R.layout.main)
-        with(imageSurfaceView) {
-            setInputStream(assets.open(MAP_FILE))
-            post {
-                val p = bundle?.takeIf { it.containsKey(KEY_X) && it.containsKey(KEY_Y) }?.let {
-                    Point(it.getInt(KEY_X), it.getInt(KEY_Y))
+        restoredOrigin = bundle?.takeIf { it.containsKey(KEY_X) && it.containsKey(KEY_Y) }?.let {
+            Point(it.getInt(KEY_X), it.getInt(KEY_Y))
+        }
+        imageSurfaceView.openScene(
+            { progress ->
+                // The layers first: they're only read into memory, so there's nothing to release if the scene fails
+                val layers = AssetLayers.open(assets, "$LAYERS_DIR/${Locale.getDefault().language}")
+                TileSourceScene(openMap(progress.part(0f, SOURCE_PROGRESS)), progress.part(SOURCE_PROGRESS, 1f),
+                    imageSurfaceView.memoryGovernor).also { it.layers = layers }
+            },
+            object : ImageSurfaceView.OpenListener {
+                override fun onOpenProgress(fraction: Float) {}
+
+                override fun onSceneOpened(scene: Scene) {
+                    val p = restoredOrigin
+                    restoredOrigin = null
+                    if (p != null) {
+                        imageSurfaceView.setViewport(p)
+                    } else {
+                        imageSurfaceView.setViewportCenter()
+                    }
                 }
-                if (p != null) {
-                    imageSurfaceView.setViewport(p)
-                } else {
-                    imageSurfaceView.setViewportCenter()
+
+                override fun onOpenFailed(e: IOException) {
+                    Log.e(TAG, "can't open $MAP_FILE", e)
+                    finish()
                 }
-            }
-        }
+            })
+    }
+
+    /** Use the tile archive if the app ships one, otherwise decode the image itself */
+    private fun openMap(progress: Scene.OpenProgress): TileSource = try {
+        AssetTileSource.open(assets, MAP_ARCHIVE, progress)
+    } catch (e: InterruptedIOException) {
+        throw e
+    } catch (e: IOException) {
+        AssetTileSource.open(assets, MAP_FILE, progress)
+    }
+
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        imageSurfaceView.onTrimMemory(level)
+    }
+
+    override fun onLowMemory() {
+        super.onLowMemory()
+        // Only ever sent while the app is in the foreground, where the tiles on screen are still wanted
+        imageSurfaceView.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+    }
+
+    override fun onDestroy() {
+        imageSurfaceView.cancelOpen()
+        super.onDestroy()
     }
 
     override fun onSaveInstanceState(outState: Bundle) {
-        val p = Point().apply { imageSurfaceView.getViewport(this) }
-        outState.putInt(KEY_X, p.x)
-        outState.putInt(KEY_Y, p.y)
+        // Still opening, the viewport hasn't moved from wherever it was
+        val p = if (imageSurfaceView.scene != null) Point().apply { imageSurfaceView.getViewport(this) } else restoredOrigin
+        if (p != null) {
+            outState.putInt(KEY_X, p.x)
+            outState.putInt(KEY_Y, p.y)
+        }
         super.onSaveInstanceState(outState)
     }
 }
@@ -6,11 +6,16 @@ import android.view.MotionEvent
 import android.widget.Scroller
 import com.sigseg.android.view.Scene
 
+/**
+ * Turns gestures into viewport moves. A fling is animated one [step] per
+ * frame by the [FrameScheduler], so between frames it costs nothing.
+ */
 internal class TouchController(
     context: Context,
     private val scene: () -> Scene,
-    private val doInvalidate: Runnable
+    private val requestFrame: Runnable
 ) {
+    @Volatile
     private var state = TouchState.UNTOUCHED
 
     /** Where on the view did we initially touch  */
@@ -18,66 +23,43 @@ internal class TouchController(
 
     /** What was the coordinates of the viewport origin?  */
     private val viewportOriginAtDown = Point(0, 0)
-    private val scroller = Scroller(context)
-    private var touchThread: TouchThread? = null
-
-    fun start() {
-        touchThread = TouchThread(this).apply {
-            start()
-        }
-    }
-
-    fun stop() {
-        val thread = touchThread
-        if (thread!= null) {
-            thread.stopThread()
-            var retry = true
-            while (retry) {
-                try {
-                    thread.join()
-                    retry = false
-                } catch (e: InterruptedException) {
-                    // we will try it again and again...
-                }
-            }
-            touchThread = null
-        }
-    }
 
+    /** Scratch for [fling], so a gesture allocates nothing */
+    private val flingOrigin = Point()
+    private val flingViewSize = Point()
+    private val flingSceneSize = Point()
+    private val scroller = Scroller(context)
 
     fun fling(velocityX: Float, velocityY: Float): Boolean {
-        val thread = touchThread
-        if (thread != null ){
-            val origin = Point().apply { scene().viewport.getOrigin(this) }
-            val viewSize = Point().apply { scene().viewport.getSize(this) }
-            val sceneSize = Point().apply { scene().getSceneSize(this) }
-
-            synchronized(this) {
-                state = TouchState.START_FLING
-                scene().setSuspend(true)
-                scroller.fling(
-                    origin.x,
-                    origin.y, -velocityX.toInt(), -velocityY.toInt(),
-                    0,
-                    sceneSize.x - viewSize.x,
-                    0,
-                    sceneSize.y - viewSize.y
-                )
-                thread.interrupt()
-            }
+        synchronized(this) {
+            val origin = flingOrigin.also { scene().viewport.getOrigin(it) }
+            val viewSize = flingViewSize.also { scene().viewport.getSize(it) }
+            val sceneSize = flingSceneSize.also { scene().getSceneSize(it) }
+            state = TouchState.IN_FLING
+            scroller.fling(
+                origin.x,
+                origin.y, -velocityX.toInt(), -velocityY.toInt(),
+                0,
+                sceneSize.x - viewSize.x,
+                0,
+                sceneSize.y - viewSize.y
+            )
+            // Keep caching, and tell the cache where we're headed
+            scene().startFling(origin.x, origin.y, scroller.finalX, scroller.finalY)
         }
+        // The first step is taken on the next frame
+        requestFrame.run()
         return true
     }
 
     fun down(event: MotionEvent): Boolean {
-        scene().setSuspend(false) // If we were suspended because of a fling
+        scene().endFling() // If we were in a fling
         synchronized(this) {
             state = TouchState.IN_TOUCH
+            scroller.forceFinished(true)
             viewDown.x = event.x.toInt()
             viewDown.y = event.y.toInt()
-            val p = Point()
-            scene().viewport.getOrigin(p)
-            viewportOriginAtDown[p.x] = p.y
+            scene().viewport.getOrigin(viewportOriginAtDown)
         }
         return true
     }
@@ -91,7 +73,7 @@ internal class TouchController(
                 (viewportOriginAtDown.x - deltaX).toInt(),
                 (viewportOriginAtDown.y - deltaY).toInt()
             )
-            doInvalidate.run()
+            requestFrame.run()
         }
         return true
     }
@@ -110,27 +92,25 @@ internal class TouchController(
         return true
     }
 
-    fun inFling() = state in setOf(TouchState.START_FLING, TouchState.IN_FLING)
+    fun inFling() = state == TouchState.IN_FLING
 
-    fun startFling() {
+    /**
+     * Move a fling on by a frame. The [FrameScheduler] calls this as input,
+     * just before it draws, inside its frame callback, so the Scroller reads
+     * the frame's own time and the viewport moves exactly once per frame drawn.
+     * @return true if the fling needs another frame
+     */
+    fun step(): Boolean {
         synchronized(this) {
-            if (state == TouchState.START_FLING) {
-                state = TouchState.IN_FLING
-            }
-        }
-        if (state == TouchState.IN_FLING) {
+            if (state != TouchState.IN_FLING)
+                return false
             scroller.computeScrollOffset()
             scene().viewport.setOrigin(scroller.currX, scroller.currY)
-            if (scroller.isFinished) {
-                scene().setSuspend(false)
-                synchronized(this) {
-                    state = TouchState.UNTOUCHED
-                    try {
-                        Thread.sleep(5)
-                    } catch (e: InterruptedException) {
-                    }
-                }
-            }
+            if (!scroller.isFinished)
+                return true
+            state = TouchState.UNTOUCHED
         }
+        scene().endFling()
+        return false
     }
 }
@@ -1,3 +1,3 @@
 package com.sigseg.android.map;
 
-enum TouchState {UNTOUCHED, IN_TOUCH, START_FLING, IN_FLING}
+enum TouchState {UNTOUCHED, IN_TOUCH, IN_FLING}
@@ -0,0 +1,118 @@
+package com.sigseg.android.view;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+import com.sigseg.android.view.archive.TileArchive;
+
+import java.io.IOException;
+
+/**
+ * A {@link TileSource} over a {@link TileArchive} made by the tiler. Every
+ * tile is found through the archive's index and read with a positional read
+ * (or straight out of its mapping), so any tile at any level costs the same
+ * and nothing depends on how big the original image was.
+ */
+public class ArchiveTileSource implements TileSource {
+    private final TileArchive archive;
+    /** Every decode thread reads encoded tiles into a buffer of its own */
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>(){
+        @Override
+        protected byte[] initialValue() {
+            return new byte[archive.getMaxTileLength()];
+        }
+    };
+
+    public ArchiveTileSource(TileArchive archive) throws IOException {
+        if (archive.getTileFormat()!=TileArchive.FORMAT_JPEG)
+            throw new IOException("unsupported tile format " + archive.getTileFormat());
+        this.archive = archive;
+    }
+
+    public TileArchive getArchive(){
+        return archive;
+    }
+
+    @Override
+    public int getWidth() {
+        return archive.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return archive.getHeight();
+    }
+
+    /** The pyramid already has every level down to a single tile */
+    @Override
+    public int getLevels() {
+        return archive.getLevels();
+    }
+
+    @Override
+    public int getTileSize() {
+        return archive.getTileSize();
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
+
+    @Override
+    public boolean isRandomAccess() {
+        return true;
+    }
+
+    @Override
+    public long getFingerprint() {
+        return archive.getFingerprint();
+    }
+
+    /** Closes the archive: the source owns it once it has it */
+    @Override
+    public void close() throws IOException {
+        archive.close();
+    }
+
+    /** The archive's tile at (x,y) of a level, decoded into inBitmap if it isn't null */
+    private Bitmap decodeArchiveTile(int level, int x, int y, Bitmap inBitmap) throws IOException {
+        byte[] buffer = buffers.get();
+        int length = archive.readTile(level, x, y, buffer);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inBitmap = inBitmap;
+        return BitmapFactory.decodeByteArray(buffer, 0, length, options);
+    }
+
+    @Override
+    public Bitmap decodeTile(Rect rect, int level, Bitmap into) throws IOException {
+        int tileSize = archive.getTileSize();
+        // Where the rect is within the level's image
+        int left = rect.left >> level;
+        int top = rect.top >> level;
+        int right = (rect.right + (1 << level) - 1) >> level;
+        int bottom = (rect.bottom + (1 << level) - 1) >> level;
+        if (left % tileSize==0 && top % tileSize==0
+                && right==Math.min(left + tileSize, TileArchive.levelSize(archive.getWidth(), level))
+                && bottom==Math.min(top + tileSize, TileArchive.levelSize(archive.getHeight(), level))){
+            // The rect is one of the archive's tiles, decode straight into the bitmap
+            return decodeArchiveTile(level, left / tileSize, top / tileSize, into);
+        }
+        // Otherwise stitch together every archive tile the rect touches
+        Bitmap bitmap = into!=null ? into : Bitmap.createBitmap(right - left, bottom - top, Bitmap.Config.RGB_565);
+        Canvas c = new Canvas(bitmap);
+        for (int y = top / tileSize; y <= (bottom - 1) / tileSize; y++){
+            for (int x = left / tileSize; x <= (right - 1) / tileSize; x++){
+                Bitmap tile = decodeArchiveTile(level, x, y, null);
+                if (tile!=null){
+                    c.drawBitmap(tile, x * tileSize - left, y * tileSize - top, null);
+                    tile.recycle();
+                }
+            }
+        }
+        return bitmap;
+    }
+}
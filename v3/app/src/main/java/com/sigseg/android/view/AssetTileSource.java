@@ -0,0 +1,56 @@
+package com.sigseg.android.view;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import com.sigseg.android.view.archive.TileArchive;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Opens an image shipped in the app's assets as a {@link TileSource}. A tile
+ * archive that's stored uncompressed is read in place, through its file
+ * descriptor; anything else is read into memory and decoded by region.
+ */
+public final class AssetTileSource {
+    private AssetTileSource(){}
+
+    /**
+     * @param progress How much of the asset has been read; an archive is
+     * read in place, so it's done straight away
+     */
+    public static TileSource open(AssetManager assets, String name, Scene.OpenProgress progress) throws IOException {
+        TileArchive archive = openArchive(assets, name);
+        if (archive!=null){
+            progress.onProgress(1);
+            return new ArchiveTileSource(archive);
+        }
+        InputStream stream = assets.open(name);
+        try {
+            return RegionDecoderTileSource.read(stream, progress);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /** The asset as a tile archive, or null if it's compressed or isn't one */
+    private static TileArchive openArchive(AssetManager assets, String name) {
+        FileInputStream stream = null;
+        try {
+            AssetFileDescriptor fd = assets.openFd(name);
+            stream = fd.createInputStream();
+            return TileArchive.open(stream.getChannel(), stream, fd.getStartOffset(), fd.getLength());
+        } catch (IOException e) {
+            if (stream!=null){
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                    // it was never going to be used
+                }
+            }
+            return null;
+        }
+    }
+}
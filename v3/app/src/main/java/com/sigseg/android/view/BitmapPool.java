@@ -0,0 +1,101 @@
+package com.sigseg.android.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * A pool of mutable bitmaps, bucketed by width, height and config, so that
+ * decodes can reuse pixel buffers through {@link android.graphics.BitmapFactory.Options#inBitmap}
+ * instead of allocating several megabytes at a time and leaving the old ones
+ * to the garbage collector.
+ *
+ * The pool keeps at most {@link #getMaxBytes()} bytes of idle bitmaps. A
+ * bitmap released while the pool is full is recycled.
+ */
+public class BitmapPool {
+    private final HashMap<Long,ArrayDeque<Bitmap>> buckets = new HashMap<>();
+    private long maxBytes;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    BitmapPool(long maxBytes){
+        this.maxBytes = maxBytes;
+    }
+
+    private static long key(int width, int height, Config config){
+        return ((long)width << 34) | ((long)height << 4) | config.ordinal();
+    }
+
+    private static int bytesOf(Bitmap bitmap){
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Get a mutable bitmap of exactly this size and config. It's taken from the
+     * pool if there is one; otherwise a new one is created. Its contents are
+     * whatever the last user left there.
+     */
+    public Bitmap get(int width, int height, Config config){
+        synchronized (this){
+            ArrayDeque<Bitmap> bucket = buckets.get(key(width, height, config));
+            Bitmap bitmap = bucket==null ? null : bucket.poll();
+            if (bitmap!=null){
+                hits++;
+                bytes -= bytesOf(bitmap);
+                return bitmap;
+            }
+            misses++;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /** Give a bitmap back to the pool. The caller must not touch it afterwards. */
+    public void release(Bitmap bitmap){
+        if (bitmap==null || bitmap.isRecycled())
+            return;
+        if (!bitmap.isMutable()){
+            bitmap.recycle();
+            return;
+        }
+        int size = bytesOf(bitmap);
+        synchronized (this){
+            if (bytes + size <= maxBytes){
+                long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+                ArrayDeque<Bitmap> bucket = buckets.get(key);
+                if (bucket==null){
+                    bucket = new ArrayDeque<>();
+                    buckets.put(key, bucket);
+                }
+                bucket.push(bitmap);
+                bytes += size;
+                return;
+            }
+        }
+        bitmap.recycle();
+    }
+
+    synchronized void setMaxBytes(long maxBytes){
+        this.maxBytes = maxBytes;
+        for (ArrayDeque<Bitmap> bucket : buckets.values()){
+            while (bytes > maxBytes && !bucket.isEmpty()){
+                Bitmap bitmap = bucket.pop();
+                bytes -= bytesOf(bitmap);
+                bitmap.recycle();
+            }
+        }
+    }
+
+    //region statistics
+    /** How many times {@link #get} was satisfied from the pool */
+    public synchronized long getHitCount(){ return hits; }
+    /** How many times {@link #get} had to allocate a new bitmap */
+    public synchronized long getMissCount(){ return misses; }
+    /** The bytes held by idle bitmaps in the pool */
+    public synchronized long getBytes(){ return bytes; }
+    public synchronized long getMaxBytes(){ return maxBytes; }
+    //endregion
+}
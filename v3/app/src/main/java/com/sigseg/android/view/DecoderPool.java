@@ -0,0 +1,122 @@
+package com.sigseg.android.view;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A fixed set of {@link BitmapRegionDecoder}s over the same encoded source.
+ * A single BitmapRegionDecoder serializes its callers, so to decode
+ * independent regions at the same time each caller borrows a decoder of its
+ * own. Every decoder keeps track of how much it has decoded and how long
+ * that took, so we can see how throughput scales with the number of cores.
+ */
+public class DecoderPool {
+    /** One decoder and its throughput counters */
+    public static class Decoder {
+        final BitmapRegionDecoder decoder;
+        private long regions = 0;
+        private long pixels = 0;
+        private long nanos = 0;
+
+        Decoder(BitmapRegionDecoder decoder){
+            this.decoder = decoder;
+        }
+
+        public synchronized long getRegionCount(){ return regions; }
+        public synchronized long getPixelCount(){ return pixels; }
+        public synchronized long getDecodeNanos(){ return nanos; }
+        /** Decoded pixels per second of decoding time, or 0 if nothing has been decoded yet */
+        public synchronized double getPixelsPerSecond(){
+            return nanos==0 ? 0 : pixels * 1e9 / nanos;
+        }
+
+        synchronized void record(long pixels, long nanos){
+            this.regions++;
+            this.pixels += pixels;
+            this.nanos += nanos;
+        }
+    }
+
+    private final Decoder[] decoders;
+    private final BlockingQueue<Decoder> idle;
+
+    /**
+     * @param source The encoded image. It is not copied, so don't modify it.
+     * @param size How many decoders to create. If one can't be, those already
+     * made are recycled before this throws.
+     */
+    public DecoderPool(byte[] source, int size) throws IOException {
+        decoders = new Decoder[size];
+        idle = new ArrayBlockingQueue<>(size);
+        int i = 0;
+        try {
+            for (; i<size; i++){
+                decoders[i] = new Decoder(BitmapRegionDecoder.newInstance(source, 0, source.length, false));
+                idle.add(decoders[i]);
+            }
+        } finally {
+            if (i < size)
+                for (int j=0; j<i; j++)
+                    decoders[j].decoder.recycle();
+        }
+    }
+
+    /** A pool with one decoder for every available processor */
+    public DecoderPool(byte[] source) throws IOException {
+        this(source, Runtime.getRuntime().availableProcessors());
+    }
+
+    public int size(){ return decoders.length; }
+
+    public Decoder getDecoder(int i){ return decoders[i]; }
+
+    public int getWidth(){ return decoders[0].decoder.getWidth(); }
+
+    public int getHeight(){ return decoders[0].decoder.getHeight(); }
+
+    /** Decoded pixels per second summed over every decoder in the pool */
+    public double getPixelsPerSecond(){
+        double total = 0;
+        for (Decoder d : decoders)
+            total += d.getPixelsPerSecond();
+        return total;
+    }
+
+    /**
+     * Decode a region with the next idle decoder, waiting for one if they're all busy.
+     * @return the decoded Bitmap, or null if the decode failed or we were interrupted
+     */
+    public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options){
+        Decoder d;
+        try {
+            d = idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        try {
+            long start = System.nanoTime();
+            Bitmap bitmap = d.decoder.decodeRegion(rect, options);
+            if (bitmap!=null){
+                // What was decoded, not the bitmap: a pooled inBitmap may be bigger than the region
+                int sample = Math.max(1, options.inSampleSize);
+                long pixels = (long) ((rect.width() + sample - 1) / sample) * ((rect.height() + sample - 1) / sample);
+                d.record(pixels, System.nanoTime() - start);
+            }
+            return bitmap;
+        } finally {
+            idle.add(d);
+        }
+    }
+
+    public void recycle(){
+        for (Decoder d : decoders)
+            d.decoder.recycle();
+    }
+}
@@ -0,0 +1,245 @@
+package com.sigseg.android.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * +------------------------------------------------------------------+
+ * | header   magic "WMDC", version, fingerprint, slots, slotBytes    |
+ * | index    for every slot: tile key (long), last used (long)       |
+ * | slab     for every slot: one tile of raw RGB_565 pixels          |
+ * +------------------------------------------------------------------+
+ */
+/**
+ * The second tier behind the {@link TileCache}: decoded tiles kept on disk as
+ * raw RGB_565 pixels in a single memory mapped file, so they survive the
+ * process. Reading a tile back is a copy out of the mapping into a pooled
+ * bitmap, which is far cheaper than decoding it again.
+ *
+ * The file holds a fixed number of tile sized slots, so it never grows past
+ * its budget; when it's full the least recently used tile is overwritten. The
+ * file remembers the fingerprint of the scene it was filled from and starts
+ * over empty if it's opened for anything else.
+ *
+ * Only whole {@link TileCache#TILE_SIZE} square RGB_565 bitmaps are stored,
+ * which is what the scenes decode into. Every method is synchronized, so it
+ * can be used from all the decode threads at once.
+ */
+public class DiskTileCache {
+    private static final String TAG = DiskTileCache.class.getSimpleName();
+
+    private static final int MAGIC = 0x574d4443; // "WMDC"
+    private static final int VERSION = 1;
+    /** magic, version, fingerprint, slots, slotBytes */
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4;
+    /** key, last used */
+    private static final int INDEX_ENTRY_BYTES = 8 + 8;
+    /** The slab starts on a page boundary */
+    private static final int PAGE = 4096;
+    /** The key of a slot with nothing in it */
+    private static final long EMPTY = -1;
+    /** One RGB_565 tile */
+    static final int SLOT_BYTES = TileCache.TILE_SIZE * TileCache.TILE_SIZE * 2;
+
+    private final File file;
+    private final MappedByteBuffer map;
+    private final int slots;
+    private final int slabOffset;
+    /** Tile key to slot, access ordered, so iteration starts with the least recently used tile */
+    private final LinkedHashMap<Long,Integer> index = new LinkedHashMap<>(64, 0.75f, true);
+    /** Where to start looking for an empty slot; every slot before it is in use */
+    private int nextFree = 0;
+    /** Stamps each use, so the LRU order survives a restart */
+    private long clock = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long writes = 0;
+    private long evictions = 0;
+    /** Set by {@link #close()}, after which nothing is read or written */
+    private boolean closed = false;
+
+    /**
+     * Open (or create) the cache file for a scene.
+     * @param file Where the cache lives, somewhere under the app's cache directory
+     * @param fingerprint Identifies the scene's source; a file filled from
+     *                    anything else is emptied
+     * @param maxBytes How big the file may get
+     */
+    public static DiskTileCache open(File file, long fingerprint, long maxBytes) throws IOException {
+        File dir = file.getParentFile();
+        if (dir!=null && !dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("can't create " + dir);
+        // The whole mapping has to fit in an int: every slot's index entry as
+        // well as its pixels, the header, and up to a page before the slab
+        int maxSlots = (Integer.MAX_VALUE - HEADER_BYTES - PAGE) / (SLOT_BYTES + INDEX_ENTRY_BYTES);
+        int slots = (int) Math.max(1, Math.min(maxSlots, maxBytes / SLOT_BYTES));
+        return new DiskTileCache(file, fingerprint, slots);
+    }
+
+    private DiskTileCache(File file, long fingerprint, int slots) throws IOException {
+        this.file = file;
+        this.slots = slots;
+        this.slabOffset = (HEADER_BYTES + slots * INDEX_ENTRY_BYTES + PAGE - 1) / PAGE * PAGE;
+        long length = slabOffset + (long) slots * SLOT_BYTES;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            boolean valid = raf.length()==length && readHeader(raf, fingerprint, slots);
+            if (!valid)
+                raf.setLength(length);
+            // The mapping stays valid once the file is closed
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            if (valid)
+                load();
+            else
+                reset(fingerprint);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static boolean readHeader(RandomAccessFile raf, long fingerprint, int slots) throws IOException {
+        raf.seek(0);
+        return raf.readInt()==MAGIC
+                && raf.readInt()==VERSION
+                && raf.readLong()==fingerprint
+                && raf.readInt()==slots
+                && raf.readInt()==SLOT_BYTES;
+    }
+
+    /** Empty every slot, writing the magic last so a half reset file is never trusted */
+    private void reset(long fingerprint){
+        map.putInt(0, 0);
+        for (int slot=0; slot<slots; slot++)
+            map.putLong(indexOffset(slot), EMPTY);
+        map.putInt(4, VERSION);
+        map.putLong(8, fingerprint);
+        map.putInt(16, slots);
+        map.putInt(20, SLOT_BYTES);
+        map.putInt(0, MAGIC);
+        nextFree = 0;
+    }
+
+    /** Rebuild the index, in LRU order, from a file we've written before */
+    private void load(){
+        // Sort the used slots by when they were last used
+        long[] stamps = new long[slots];
+        Integer[] used = new Integer[slots];
+        int n = 0;
+        for (int slot=0; slot<slots; slot++){
+            if (map.getLong(indexOffset(slot))==EMPTY)
+                continue;
+            stamps[slot] = map.getLong(indexOffset(slot) + 8);
+            used[n++] = slot;
+        }
+        Arrays.sort(used, 0, n, (a, b) -> Long.compare(stamps[a], stamps[b]));
+        for (int i=0; i<n; i++){
+            index.put(map.getLong(indexOffset(used[i])), used[i]);
+            clock = Math.max(clock, stamps[used[i]] + 1);
+        }
+        Log.d(TAG, String.format("loaded %d of %d tiles", n, slots));
+    }
+
+    private int indexOffset(int slot){
+        return HEADER_BYTES + slot * INDEX_ENTRY_BYTES;
+    }
+
+    private ByteBuffer slab(int slot){
+        ByteBuffer b = map.duplicate();
+        int offset = slabOffset + slot * SLOT_BYTES;
+        b.position(offset);
+        b.limit(offset + SLOT_BYTES);
+        return b.slice();
+    }
+
+    /** Can this bitmap be stored? */
+    static boolean fits(Bitmap bitmap){
+        return bitmap.getConfig()==Config.RGB_565
+                && bitmap.getWidth()==TileCache.TILE_SIZE
+                && bitmap.getHeight()==TileCache.TILE_SIZE;
+    }
+
+    /**
+     * Copy a tile out of the cache into a bitmap from the pool.
+     * @return null if the tile isn't on disk
+     */
+    public synchronized Bitmap get(int level, int x, int y, BitmapPool pool){
+        if (closed)
+            return null;
+        long key = TileCache.key(level, x, y);
+        Integer slot = index.get(key);
+        if (slot==null){
+            misses++;
+            return null;
+        }
+        hits++;
+        map.putLong(indexOffset(slot) + 8, clock++);
+        Bitmap bitmap = pool.get(TileCache.TILE_SIZE, TileCache.TILE_SIZE, Config.RGB_565);
+        bitmap.copyPixelsFromBuffer(slab(slot));
+        return bitmap;
+    }
+
+    /** Write a freshly decoded tile to the cache, overwriting the least recently used if it's full */
+    public synchronized void put(int level, int x, int y, Bitmap bitmap){
+        if (closed || !fits(bitmap))
+            return;
+        long key = TileCache.key(level, x, y);
+        Integer slot = index.get(key);
+        if (slot==null)
+            slot = allocate();
+        // Forget the slot while its pixels are being replaced
+        int entry = indexOffset(slot);
+        map.putLong(entry, EMPTY);
+        bitmap.copyPixelsToBuffer(slab(slot));
+        map.putLong(entry + 8, clock++);
+        map.putLong(entry, key);
+        index.put(key, slot);
+        writes++;
+    }
+
+    private int allocate(){
+        while (nextFree < slots){
+            int slot = nextFree++;
+            if (map.getLong(indexOffset(slot))==EMPTY)
+                return slot;
+        }
+        Iterator<Map.Entry<Long,Integer>> it = index.entrySet().iterator();
+        int slot = it.next().getValue();
+        it.remove();
+        evictions++;
+        return slot;
+    }
+
+    /**
+     * Write what's been put out to the file and stop using it. Gets after
+     * this miss and puts are dropped, so a scene's decodes that are still
+     * running can't write to a file that has been opened again for another.
+     */
+    public synchronized void close(){
+        if (closed)
+            return;
+        closed = true;
+        map.force();
+    }
+
+    /** Where the cache lives */
+    public File getFile(){ return file; }
+
+    public synchronized long getHitCount(){ return hits; }
+    public synchronized long getMissCount(){ return misses; }
+    public synchronized long getWriteCount(){ return writes; }
+    public synchronized long getEvictionCount(){ return evictions; }
+    public synchronized int getTileCount(){ return index.size(); }
+    public int getMaxTileCount(){ return slots; }
+}
@@ -0,0 +1,188 @@
+package com.sigseg.android.view;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+/**
+ * Decides how much memory a {@link Scene} may hold, so that it never has to
+ * find out by running out. The budgets for the tile cache, the bitmap pool,
+ * the cache window and the sample follow from the app's heap -- what
+ * {@code ActivityManager.getMemoryClass()} says it may use -- and are smaller
+ * on a low RAM device.
+ *
+ * <p>When the system asks the app to trim its memory, the budgets shrink in
+ * stages: a little while the app is running and memory is getting tight,
+ * more the tighter it gets, and all the way to nothing but the sample once
+ * the app is in the background and next in line to be killed. The sample is
+ * never given up; it's what is drawn when there's nothing else. Nor are the
+ * tiles on screen, whatever the budget: the tile cache keeps them anyway.
+ * {@link #relax()} goes back to the full budgets when the app is in the
+ * foreground again.</p>
+ *
+ * <p>A scene that has the governor applies its budgets whenever the stage
+ * changes, trimming its caches there and then, and the governor counts what
+ * that released.</p>
+ */
+public class MemoryGovernor {
+    private static final String TAG = MemoryGovernor.class.getSimpleName();
+    private static final long MB = 1024 * 1024;
+
+    /** How much of the budgets a stage keeps, in quarters */
+    public enum Stage {
+        /** Nothing to worry about */
+        FULL(4, 4),
+        /** Running, and memory is getting low */
+        RUNNING_MODERATE(3, 2),
+        /** Running, and memory is low */
+        RUNNING_LOW(2, 1),
+        /** Running, and the system is killing background apps */
+        RUNNING_CRITICAL(1, 0),
+        /** Nothing is showing; keep enough to come back to */
+        UI_HIDDEN(2, 0),
+        /** In the background, on the list to be killed */
+        BACKGROUND(1, 0),
+        /** In the background and next to be killed: keep nothing but the sample and the tiles on screen */
+        COMPLETE(0, 0);
+
+        final int cacheQuarters;
+        final int poolQuarters;
+
+        Stage(int cacheQuarters, int poolQuarters){
+            this.cacheQuarters = cacheQuarters;
+            this.poolQuarters = poolQuarters;
+        }
+
+        /** The stage for a level passed to {@link ComponentCallbacks2#onTrimMemory(int)} */
+        public static Stage forTrimLevel(int level){
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE)
+                return COMPLETE;
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+                return BACKGROUND;
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+                return UI_HIDDEN;
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+                return RUNNING_CRITICAL;
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+                return RUNNING_LOW;
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE)
+                return RUNNING_MODERATE;
+            return FULL;
+        }
+    }
+
+    private final long heapBytes;
+    private final boolean lowRam;
+    private final long tileCacheBytes;
+    private final long sampleBytes;
+    private volatile Stage stage = Stage.FULL;
+    private long trims = 0;
+    private long evictedTiles = 0;
+    private long releasedBytes = 0;
+
+    /**
+     * @param memoryClass The heap the app may use, in megabytes, from
+     * {@code ActivityManager.getMemoryClass()}
+     * @param lowRam From {@code ActivityManager.isLowRamDevice()}
+     */
+    public MemoryGovernor(int memoryClass, boolean lowRam){
+        this(memoryClass * MB, lowRam);
+    }
+
+    private MemoryGovernor(long heapBytes, boolean lowRam){
+        this.heapBytes = heapBytes;
+        this.lowRam = lowRam;
+        // A tenth of the heap for tiles and an eighth for the sample; half that on a low RAM device
+        tileCacheBytes = heapBytes / (lowRam ? 20 : 10);
+        sampleBytes = heapBytes / (lowRam ? 16 : 8);
+    }
+
+    /**
+     * For when there's no ActivityManager to ask: the budgets follow from the
+     * most the VM will let the heap grow to, which on Android is the memory
+     * class anyway.
+     */
+    public static MemoryGovernor forHeap(){
+        return new MemoryGovernor(Runtime.getRuntime().maxMemory(), false);
+    }
+
+    /**
+     * Move to the stage for a trim level, if it's a different one
+     * @return true if the budgets changed
+     */
+    public boolean onTrimMemory(int level){
+        return setStage(Stage.forTrimLevel(level));
+    }
+
+    /** Back to the full budgets, now that the app is in the foreground again */
+    public boolean relax(){
+        return setStage(Stage.FULL);
+    }
+
+    /**
+     * An allocation failed anyway. That shouldn't happen within these
+     * budgets, so go straight to the running stage that keeps least, and if
+     * that wasn't enough, keep nothing.
+     */
+    public synchronized boolean onOutOfMemory(){
+        return setStage(stage.cacheQuarters > Stage.RUNNING_CRITICAL.cacheQuarters
+                ? Stage.RUNNING_CRITICAL : Stage.COMPLETE);
+    }
+
+    private synchronized boolean setStage(Stage next){
+        if (stage==next)
+            return false;
+        Log.i(TAG, String.format("stage %s -> %s: tile cache %dKB, pool %dKB",
+                stage, next, tileCacheBytes * next.cacheQuarters / 4 / 1024,
+                getPoolBytes(next) / 1024));
+        if (next.cacheQuarters < stage.cacheQuarters)
+            trims++;
+        stage = next;
+        return true;
+    }
+
+    /**
+     * Note what a scene gave up when it applied the budgets, for the
+     * statistics
+     */
+    synchronized void released(long tiles, long bytes){
+        evictedTiles += tiles;
+        releasedBytes += bytes;
+        if (tiles > 0 || bytes > 0)
+            Log.i(TAG, String.format("%s: evicted %d tiles, released %dKB", stage, tiles, bytes / 1024));
+    }
+
+    //region budgets
+    public Stage getStage(){ return stage; }
+    public boolean isLowRam(){ return lowRam; }
+    public long getHeapBytes(){ return heapBytes; }
+    /** Bytes of decoded tiles the tile cache may hold, beyond those on screen */
+    public long getTileCacheBytes(){ return tileCacheBytes * stage.cacheQuarters / 4; }
+    /** Bytes of idle bitmaps the bitmap pool may keep */
+    public long getPoolBytes(){ return getPoolBytes(stage); }
+    private long getPoolBytes(Stage stage){ return tileCacheBytes / 4 * stage.poolQuarters / 4; }
+    /**
+     * Bytes a cache window may take at full resolution: half the tile cache,
+     * so that the tiles of the window just left are still around if the user
+     * pans back. With no budget at all the window is just the viewport.
+     */
+    public long getWindowBytes(){ return getTileCacheBytes() / 2; }
+    /** Bytes the sample may take; it's decoded once and kept whatever the stage */
+    public long getSampleBytes(){ return sampleBytes; }
+    //endregion
+
+    //region statistics
+    /** How many times the budgets have shrunk */
+    public synchronized long getTrimCount(){ return trims; }
+    /** Tiles evicted because the budgets shrank */
+    public synchronized long getEvictedTileCount(){ return evictedTiles; }
+    /** Bytes of tiles and idle bitmaps given up because the budgets shrank */
+    public synchronized long getReleasedBytes(){ return releasedBytes; }
+
+    @Override
+    public String toString(){
+        return String.format("%s%s: tile cache %dKB, pool %dKB, window %dKB, sample %dKB; %d trims, %d tiles evicted, %dKB released",
+                stage, lowRam ? " (low RAM)" : "", getTileCacheBytes() / 1024, getPoolBytes() / 1024,
+                getWindowBytes() / 1024, sampleBytes / 1024, getTrimCount(), getEvictedTileCount(), getReleasedBytes() / 1024);
+    }
+    //endregion
+}
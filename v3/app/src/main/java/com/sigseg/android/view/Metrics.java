@@ -0,0 +1,269 @@
+package com.sigseg.android.view;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms for the Scene's hot paths. Every metric is created
+ * up front, and recording one is a handful of atomic operations with no
+ * locks and no allocation, so it's cheap enough to leave on in production
+ * builds. Clients read them back through {@link #snapshot()} or hand them to
+ * an {@link Exporter} to ship to their own telemetry.
+ */
+public class Metrics {
+    /** Nanoseconds to draw a frame, cache update included */
+    public static final String FRAME_DRAW = "frame.draw";
+    /** Nanoseconds spent drawing the sample where tiles were missing */
+    public static final String SAMPLE_DRAW = "frame.sample";
+    /** Nanoseconds per call to {@link Scene#fillCache(android.graphics.Rect, int)} */
+    public static final String DECODE_LATENCY = "decode.latency";
+    /** Nanoseconds to fill a cache window, from the request to the last tile */
+    public static final String CACHE_FILL = "cache.fill";
+
+    /** Bytes fillCache decoded: the region at its level, not the (pooled) bitmap it went into */
+    public static final String DECODE_BYTES = "decode.bytes";
+    /** Tiles fillCache decoded */
+    public static final String DECODES = "decode.count";
+    /** Decodes dropped before they started because the viewport had moved on */
+    public static final String DECODES_DROPPED = "decode.dropped";
+    /** Nanoseconds spent decoding tiles that were superseded and off screen once decoded */
+    public static final String DECODE_WASTED = "decode.wasted";
+    /** Tiles of a cache window that were already in the tile cache */
+    public static final String TILE_HITS = "tile.hits";
+    /** Tiles of a cache window that had to be read */
+    public static final String TILE_MISSES = "tile.misses";
+    /** Tiles read from the disk cache instead of being decoded */
+    public static final String DISK_HITS = "disk.hits";
+    /** Tiles the disk cache didn't have */
+    public static final String DISK_MISSES = "disk.misses";
+    /** Frames that had to fall back on the sample */
+    public static final String SAMPLE_FRAMES = "frame.sampleFallbacks";
+
+    private final Map<String,Counter> counters = new LinkedHashMap<>();
+    private final Map<String,Histogram> histograms = new LinkedHashMap<>();
+
+    final Histogram frameDraw = histogram(FRAME_DRAW);
+    final Histogram sampleDraw = histogram(SAMPLE_DRAW);
+    final Histogram decodeLatency = histogram(DECODE_LATENCY);
+    final Histogram cacheFill = histogram(CACHE_FILL);
+    final Counter decodeBytes = counter(DECODE_BYTES);
+    final Counter decodes = counter(DECODES);
+    final Counter decodesDropped = counter(DECODES_DROPPED);
+    final Counter decodeWasted = counter(DECODE_WASTED);
+    final Counter tileHits = counter(TILE_HITS);
+    final Counter tileMisses = counter(TILE_MISSES);
+    final Counter diskHits = counter(DISK_HITS);
+    final Counter diskMisses = counter(DISK_MISSES);
+    final Counter sampleFrames = counter(SAMPLE_FRAMES);
+
+    Metrics(){}
+
+    private Counter counter(String name){
+        Counter c = new Counter();
+        counters.put(name, c);
+        return c;
+    }
+
+    private Histogram histogram(String name){
+        Histogram h = new Histogram();
+        histograms.put(name, h);
+        return h;
+    }
+
+    /** The current value of a counter, without taking a snapshot */
+    public long getCount(String name){
+        Counter c = counters.get(name);
+        return c==null ? 0 : c.get();
+    }
+
+    /** Everything recorded so far */
+    public Snapshot snapshot(){
+        return snapshot(false);
+    }
+
+    /**
+     * Everything recorded since the last reset, starting the next interval at
+     * zero. Values recorded while the snapshot is being taken land in one
+     * interval or the other, never both.
+     */
+    public Snapshot snapshotAndReset(){
+        return snapshot(true);
+    }
+
+    private Snapshot snapshot(boolean reset){
+        Map<String,Long> c = new LinkedHashMap<>();
+        for (Map.Entry<String,Counter> e : counters.entrySet())
+            c.put(e.getKey(), reset ? e.getValue().value.getAndSet(0) : e.getValue().get());
+        Map<String,Histogram.Snapshot> h = new LinkedHashMap<>();
+        for (Map.Entry<String,Histogram> e : histograms.entrySet())
+            h.put(e.getKey(), e.getValue().snapshot(reset));
+        return new Snapshot(c, h);
+    }
+
+    /** Take a snapshot and hand it to an exporter */
+    public void export(Exporter exporter, boolean reset){
+        exporter.export(snapshot(reset));
+    }
+
+    /** Ships a snapshot wherever the client keeps its telemetry */
+    public interface Exporter {
+        void export(Snapshot snapshot);
+    }
+
+    /** The metrics at one point in time */
+    public static class Snapshot {
+        private final Map<String,Long> counters;
+        private final Map<String,Histogram.Snapshot> histograms;
+
+        Snapshot(Map<String,Long> counters, Map<String,Histogram.Snapshot> histograms){
+            this.counters = Collections.unmodifiableMap(counters);
+            this.histograms = Collections.unmodifiableMap(histograms);
+        }
+
+        public Map<String,Long> getCounters(){ return counters; }
+        public Map<String,Histogram.Snapshot> getHistograms(){ return histograms; }
+        public long getCounter(String name){
+            Long value = counters.get(name);
+            return value==null ? 0 : value;
+        }
+        public Histogram.Snapshot getHistogram(String name){ return histograms.get(name); }
+
+        @Override
+        public String toString(){
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String,Long> e : counters.entrySet())
+                sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+            for (Map.Entry<String,Histogram.Snapshot> e : histograms.entrySet())
+                sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+            return sb.toString();
+        }
+    }
+
+    /** A count that only goes up */
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment(){ value.incrementAndGet(); }
+        public void add(long n){ value.addAndGet(n); }
+        public long get(){ return value.get(); }
+    }
+
+    /**
+     * A histogram of non-negative longs with a fixed relative precision, like
+     * HdrHistogram: values below {@link #SUB_BUCKETS} each have a bucket of
+     * their own, and every power of two above that is split into
+     * {@link #SUB_BUCKETS} equal buckets, so any value is known to within
+     * 1/{@link #SUB_BUCKETS} (6.25%). That covers every long in under a
+     * thousand buckets.
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        static int bucket(long value){
+            if (value < SUB_BUCKETS)
+                return (int) Math.max(0, value);
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /** The smallest value that lands in a bucket */
+        static long lowestValue(int bucket){
+            if (bucket < SUB_BUCKETS)
+                return bucket;
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+        }
+
+        /** The largest value that lands in a bucket */
+        static long highestValue(int bucket){
+            return bucket + 1 < BUCKETS ? lowestValue(bucket + 1) - 1 : Long.MAX_VALUE;
+        }
+
+        public void record(long value){
+            if (value < 0)
+                value = 0;
+            counts.incrementAndGet(bucket(value));
+            sum.addAndGet(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+                // someone else raised it, try again
+            }
+        }
+
+        Snapshot snapshot(boolean reset){
+            long[] c = new long[BUCKETS];
+            long n = 0;
+            for (int i=0; i<BUCKETS; i++){
+                c[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+                n += c[i];
+            }
+            long s = reset ? sum.getAndSet(0) : sum.get();
+            long m = reset ? max.getAndSet(0) : max.get();
+            return new Snapshot(c, n, s, m);
+        }
+
+        /** A histogram at one point in time */
+        public static class Snapshot {
+            private final long[] counts;
+            private final long count;
+            private final long sum;
+            private final long max;
+
+            Snapshot(long[] counts, long count, long sum, long max){
+                this.counts = counts;
+                this.count = count;
+                this.sum = sum;
+                this.max = max;
+            }
+
+            public long getCount(){ return count; }
+            public long getSum(){ return sum; }
+            public long getMax(){ return max; }
+            public double getMean(){ return count==0 ? 0 : (double) sum / count; }
+
+            /**
+             * The value that percent of the recorded values are at or below, to
+             * within the histogram's precision.
+             * @param percent 0 to 100
+             */
+            public long getValueAtPercentile(double percent){
+                if (count==0)
+                    return 0;
+                long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, percent) / 100));
+                long seen = 0;
+                for (int i=0; i<counts.length; i++){
+                    seen += counts[i];
+                    if (seen >= rank)
+                        return Math.min(highestValue(i), max);
+                }
+                return max;
+            }
+
+            /** How many buckets there are, for exporters that want the whole distribution */
+            public int getNumberOfBuckets(){ return counts.length; }
+            /** How many values landed in a bucket */
+            public long getBucketCount(int bucket){ return counts[bucket]; }
+            public long getBucketLowestValue(int bucket){ return lowestValue(bucket); }
+            public long getBucketHighestValue(int bucket){ return highestValue(bucket); }
+
+            @Override
+            public String toString(){
+                return String.format("count=%d mean=%.0f p50=%d p90=%d p99=%d max=%d",
+                        count, getMean(),
+                        getValueAtPercentile(50), getValueAtPercentile(90), getValueAtPercentile(99),
+                        max);
+            }
+        }
+    }
+}
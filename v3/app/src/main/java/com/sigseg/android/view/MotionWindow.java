@@ -0,0 +1,131 @@
+package com.sigseg.android.view;
+
+import android.graphics.Point;
+import android.graphics.PointF;
+import android.graphics.Rect;
+
+/**
+ * Which way, and how fast, the viewport has been panning, worked out from
+ * the last few origins it was moved to; and a cache window shaped to suit.
+ * A viewport that's standing still gets the same margin all round, as it
+ * always did. One that's moving gets more of the margin along the axis it's
+ * moving on, and most of that ahead of it, for the same number of pixels.
+ */
+final class MotionWindow {
+    /** Origins older than this, next to the newest, say nothing about where the viewport is going */
+    static final long HISTORY_NANOS = 150000000L;
+    /** Slower than this, in scene pixels a second, the viewport is standing still */
+    static final float MIN_SPEED = 100;
+    /** The share of an axis's margin that goes ahead, when the motion is all along that axis */
+    static final float MAX_AHEAD = 0.85f;
+    /** The least an axis gets of the margin, next to the other, however little it's moving along it */
+    static final float MIN_AXIS_WEIGHT = 0.2f;
+    private static final int SAMPLES = 8;
+
+    private final int[] xs = new int[SAMPLES];
+    private final int[] ys = new int[SAMPLES];
+    private final long[] times = new long[SAMPLES];
+    /** Where the next origin goes */
+    private int next = 0;
+    private int count = 0;
+
+    /** Note where the viewport has been moved to */
+    synchronized void record(int x, int y, long nanos){
+        xs[next] = x;
+        ys[next] = y;
+        times[next] = nanos;
+        next = (next + 1) % SAMPLES;
+        if (count < SAMPLES)
+            count++;
+    }
+
+    /** Forget the origins, when the viewport jumps instead of panning */
+    synchronized void clear(){
+        count = 0;
+    }
+
+    /**
+     * How fast the viewport is panning, in scene pixels a second; zero if it
+     * hasn't moved lately
+     */
+    synchronized void getVelocity(long nowNanos, PointF out){
+        out.set(0, 0);
+        if (count < 2)
+            return;
+        int newest = (next + SAMPLES - 1) % SAMPLES;
+        if (nowNanos - times[newest] > HISTORY_NANOS)
+            return;
+        int oldest = newest;
+        for (int i=1; i<count; i++){
+            int j = (newest + SAMPLES - i) % SAMPLES;
+            if (times[newest] - times[j] > HISTORY_NANOS)
+                break;
+            oldest = j;
+        }
+        long dt = times[newest] - times[oldest];
+        if (dt <= 0)
+            return;
+        out.set((xs[newest] - xs[oldest]) * 1e9f / dt, (ys[newest] - ys[oldest]) * 1e9f / dt);
+    }
+
+    /**
+     * Lay out a cache window round a viewport, in no more than a given number
+     * of scene pixels and inside the scene.
+     * @param viewportRect The window has to contain this
+     * @param pixels How many scene pixels the window may cover
+     * @param velocity Which way the viewport is going, from {@link #getVelocity};
+     * zero for the same margin all round
+     * @param size The size of the scene
+     * @param out Gets the window
+     */
+    static void calculate(Rect viewportRect, long pixels, PointF velocity, Point size, Rect out){
+        int vw = viewportRect.width();
+        int vh = viewportRect.height();
+        float ax = Math.abs(velocity.x);
+        float ay = Math.abs(velocity.y);
+        boolean moving = Math.max(ax, ay) >= MIN_SPEED;
+        float shareX = moving ? ax / (ax + ay) : 0.5f;
+        float shareY = moving ? ay / (ax + ay) : 0.5f;
+
+        // The biggest margins, weighted by axis, that fit the budget:
+        // (vw + k*wx) * (vh + k*wy) = pixels
+        double wx = moving ? Math.max(shareX, MIN_AXIS_WEIGHT) : 1;
+        double wy = moving ? Math.max(shareY, MIN_AXIS_WEIGHT) : 1;
+        double a = wx * wy;
+        double b = vw * wy + vh * wx;
+        double c = (double) vw * vh - pixels;
+        double k = c >= 0 ? 0 : (-b + Math.sqrt(b * b - 4 * a * c)) / (2 * a);
+        long mw = (long) (k * wx);
+        long mh = (long) (k * wy);
+
+        // Trim the margins if they're too big, and give what an axis can't use to the other
+        long maxW = Math.max(0, size.x - vw);
+        long maxH = Math.max(0, size.y - vh);
+        mw = Math.min(mw, maxW);
+        mh = Math.min(maxH, Math.max(mh, pixels / (vw + mw) - vh));
+        mw = Math.min(maxW, Math.max(mw, pixels / (vh + mh) - vw));
+
+        // Most of each margin goes ahead of the motion along that axis
+        long right = (long) (mw * (0.5f + (MAX_AHEAD - 0.5f) * (moving ? shareX : 0)));
+        long bottom = (long) (mh * (0.5f + (MAX_AHEAD - 0.5f) * (moving ? shareY : 0)));
+        if (velocity.x < 0)
+            right = mw - right;
+        if (velocity.y < 0)
+            bottom = mh - bottom;
+        out.set(
+                (int) (viewportRect.left - (mw - right)),
+                (int) (viewportRect.top - (mh - bottom)),
+                (int) (viewportRect.right + right),
+                (int) (viewportRect.bottom + bottom));
+
+        // Shift it back inside the scene. The margins were trimmed to fit, so it does.
+        if (out.left < 0)
+            out.offset(-out.left, 0);
+        if (out.right > size.x)
+            out.offset(size.x - out.right, 0);
+        if (out.top < 0)
+            out.offset(0, -out.top);
+        if (out.bottom > size.y)
+            out.offset(0, size.y - out.bottom);
+    }
+}
@@ -0,0 +1,83 @@
+package com.sigseg.android.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * A {@link TileSource} over pixels already in memory, as an array of ARGB
+ * ints. There's no codec involved, just a copy, so it runs anywhere Bitmap
+ * does, stand-ins on the JVM included, which makes it the source to test the
+ * Scene against. Smaller levels take every 2^level-th pixel.
+ */
+public class RasterTileSource implements TileSource {
+    private final int[] pixels;
+    private final int width;
+    private final int height;
+    private final int levels;
+    /** One row of a tile, for every thread that decodes */
+    private final ThreadLocal<int[]> rows = new ThreadLocal<int[]>(){
+        @Override
+        protected int[] initialValue() {
+            return new int[width];
+        }
+    };
+
+    /**
+     * @param pixels The image, a row at a time. It is not copied, so don't
+     * modify it while it's being decoded.
+     */
+    public RasterTileSource(int[] pixels, int width, int height){
+        if (pixels.length < width * height)
+            throw new IllegalArgumentException("not enough pixels for " + width + "x" + height);
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+
+        // Down to the level at which one tile covers the whole image
+        int level = 0;
+        while ((TileCache.TILE_SIZE << level) < Math.max(width, height))
+            level++;
+        levels = level + 1;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getLevels() {
+        return levels;
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
+
+    @Override
+    public boolean isRandomAccess() {
+        return true;
+    }
+
+    @Override
+    public Bitmap decodeTile(Rect rect, int level, Bitmap into) {
+        int step = 1 << level;
+        int w = (rect.width() + step - 1) >> level;
+        int h = (rect.height() + step - 1) >> level;
+        Bitmap bitmap = into!=null ? into : Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
+        int[] row = rows.get();
+        for (int y = 0; y < h; y++){
+            int offset = (rect.top + (y << level)) * width + rect.left;
+            for (int x = 0; x < w; x++)
+                row[x] = pixels[offset + (x << level)];
+            bitmap.setPixels(row, 0, w, 0, y, w, 1);
+        }
+        return bitmap;
+    }
+}
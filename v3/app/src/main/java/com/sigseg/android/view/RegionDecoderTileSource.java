@@ -0,0 +1,107 @@
+package com.sigseg.android.view;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link TileSource} over an encoded image, a JPEG say, that's decoded a
+ * region at a time by a {@link DecoderPool}. Any level can be decoded by
+ * subsampling, but a region costs about as much to decode whatever the
+ * level, so it isn't random access.
+ */
+public class RegionDecoderTileSource implements TileSource {
+    private final DecoderPool decoders;
+    private final long fingerprint;
+    private final int levels;
+
+    /** @param source The encoded image. It is not copied, so don't modify it. */
+    public RegionDecoderTileSource(byte[] source) throws IOException {
+        this.decoders = new DecoderPool(source);
+        CRC32 crc = new CRC32();
+        crc.update(source, 0, source.length);
+        fingerprint = ((long) source.length << 32) | crc.getValue();
+
+        // Down to the level at which one tile covers the whole image
+        int level = 0;
+        while ((TileCache.TILE_SIZE << level) < Math.max(getWidth(), getHeight()))
+            level++;
+        levels = level + 1;
+    }
+
+    /**
+     * Read a whole stream and decode from that. Every decoder in the pool
+     * needs its own view of the source, so it's read once, up front.
+     * @param progress How much has been read, against what the stream said it had
+     */
+    public static RegionDecoderTileSource read(InputStream inputStream, Scene.OpenProgress progress) throws IOException {
+        int expected = inputStream.available();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(expected, 64 * 1024));
+        byte[] buffer = new byte[16 * 1024];
+        int n;
+        while ((n = inputStream.read(buffer)) != -1) {
+            Scene.checkCancelled();
+            out.write(buffer, 0, n);
+            if (expected > 0)
+                progress.onProgress(Math.min(1f, (float) out.size() / expected));
+        }
+        progress.onProgress(1);
+        return new RegionDecoderTileSource(out.toByteArray());
+    }
+
+    /** The decoder pool, for its throughput statistics */
+    public DecoderPool getDecoderPool(){
+        return decoders;
+    }
+
+    @Override
+    public int getWidth() {
+        return decoders.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return decoders.getHeight();
+    }
+
+    @Override
+    public int getLevels() {
+        return levels;
+    }
+
+    /** Each decode borrows a decoder of its own from the pool */
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        decoders.recycle();
+    }
+
+    /** The source's length and CRC */
+    @Override
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public Bitmap decodeTile(Rect rect, int level, Bitmap into) throws IOException {
+        // Options get written to by the decoder, so each call needs its own
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inSampleSize = 1 << level;
+        options.inBitmap = into;
+        Bitmap bitmap = decoders.decodeRegion(rect, options);
+        if (bitmap==null && Thread.currentThread().isInterrupted())
+            throw new InterruptedIOException("interrupted waiting for a decoder");
+        return bitmap;
+    }
+}
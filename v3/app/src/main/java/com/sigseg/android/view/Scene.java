@@ -5,6 +5,17 @@ import android.graphics.Bitmap.Config;
 import android.os.Debug;
 import android.util.Log;
 
+import com.sigseg.android.view.layer.Layer;
+import com.sigseg.android.view.layer.LayerIndex;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 /*
  * +-------------------------------------------------------------------+
  * |                                        |                          |
@@ -30,12 +41,15 @@ import android.util.Log;
 /**
  * Keeps track of an entire Scene -- a bitmap (or virtual bitmap) that is much too large
  * to fit into memory. Clients subclass this class and extend its abstract methods to
- * actually return the necessary bitmaps.
+ * actually return the necessary bitmaps, or hand a {@link TileSourceScene} a
+ * {@link TileSource} that knows how to decode them.
  */
 public abstract class Scene {
     private final String TAG = "Scene";
 
     private final static int MINIMUM_PIXELS_IN_VIEW = 50;
+    private final static long DEFAULT_TILE_CACHE_BYTES = 8 * 1024 * 1024;
+    private final static long DEFAULT_BITMAP_POOL_BYTES = 2 * 1024 * 1024;
 
     /** The size of the Scene */
     private Point size = new Point();
@@ -43,6 +57,71 @@ public abstract class Scene {
     private final Viewport viewport = new Viewport();
     /** The cache */
     private final Cache cache = new Cache();
+    /** Where the viewport has been panned to lately */
+    private final MotionWindow motion = new MotionWindow();
+    /** Idle bitmaps waiting to be decoded into again */
+    private final BitmapPool bitmapPool = new BitmapPool(DEFAULT_BITMAP_POOL_BYTES);
+    /** The decoded tiles, shared by the decodes and the viewport */
+    private final TileCache tileCache = new TileCache(DEFAULT_TILE_CACHE_BYTES, bitmapPool);
+    /** Decoded tiles kept on disk across restarts, if the scene has one */
+    private volatile DiskTileCache diskCache;
+    /** What's composited into the tiles as they're decoded */
+    private volatile LayerIndex layers = LayerIndex.EMPTY;
+    /** Who to tell when the scene needs to be redrawn */
+    private volatile Listener listener;
+    /** What the hot paths have been up to */
+    private final Metrics metrics = new Metrics();
+    /** How much memory the caches may hold */
+    private volatile MemoryGovernor memoryGovernor = MemoryGovernor.forHeap();
+    /** How frames get onto the canvas */
+    private volatile RenderMode renderMode = RenderMode.DIRECT;
+
+    /** How {@link #draw(Canvas)} gets a frame onto its canvas */
+    public enum RenderMode {
+        /** Tiles and sample are drawn straight onto the canvas, with no copy in between */
+        DIRECT,
+        /**
+         * The frame is composed into a screen sized bitmap, and that is drawn
+         * onto the canvas. That's one more full screen copy per frame, for
+         * scenes whose {@link #drawComplete(Canvas)} needs a buffer of its own
+         * to draw into.
+         */
+        OFFSCREEN
+    }
+
+    /**
+     * Notified whenever something that shows on screen changes: the viewport
+     * moved or zoomed, or new tiles became resident. This is called from
+     * whatever thread made the change, so keep it short.
+     */
+    public interface Listener {
+        void onSceneChanged();
+    }
+
+    /**
+     * Where a scene that takes a while to open says how far along it is.
+     * Scenes are opened off the UI thread; interrupting the thread that's
+     * opening one cancels it, and its constructor throws an
+     * {@link InterruptedIOException}.
+     */
+    public interface OpenProgress {
+        /** For when nobody is watching */
+        OpenProgress NONE = fraction -> {};
+
+        /** @param fraction How much of the work is done, from 0 to 1 */
+        void onProgress(float fraction);
+
+        /** Progress through one step of the work, which takes it from one fraction to another */
+        default OpenProgress part(float from, float to){
+            return fraction -> onProgress(from + (to - from) * fraction);
+        }
+    }
+
+    /** Give up opening the scene if the thread opening it has been interrupted */
+    protected static void checkCancelled() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted())
+            throw new InterruptedIOException("opening the scene was cancelled");
+    }
     
     //region [gs]etSceneSize
     /** Set the size of the scene */
@@ -63,6 +142,137 @@ public abstract class Scene {
     public Viewport getViewport(){return viewport;}
     //endregion
 
+    //region setListener()/markDirty()
+    public void setListener(Listener listener){
+        this.listener = listener;
+    }
+    /**
+     * Tell the listener the scene needs to be drawn again. The Scene calls this
+     * itself for viewport and cache changes; subclasses call it when whatever
+     * they draw in {@link #drawComplete(Canvas)} changes.
+     */
+    public void markDirty(){
+        Listener l = listener;
+        if (l!=null)
+            l.onSceneChanged();
+    }
+    //endregion
+
+    //region [gs]etRenderMode()
+    /** Choose how frames get onto the canvas. The default is {@link RenderMode#DIRECT}. */
+    public void setRenderMode(RenderMode mode){
+        if (renderMode==mode)
+            return;
+        renderMode = mode;
+        viewport.updateBitmap();
+    }
+    public RenderMode getRenderMode(){return renderMode;}
+    //endregion
+
+    //region getTileCache()
+    /** The tile cache. Subclasses size it; clients may read its statistics. */
+    public TileCache getTileCache(){return tileCache;}
+    //endregion
+
+    //region getBitmapPool()
+    /**
+     * The bitmap pool. Subclasses take the bitmaps they decode into from here,
+     * and the Scene gives them back when the tiles are evicted.
+     */
+    public BitmapPool getBitmapPool(){return bitmapPool;}
+    //endregion
+
+    //region [gs]etMemoryGovernor()/applyMemoryBudget()
+    /**
+     * Take the budgets for the tile cache and the bitmap pool from a governor,
+     * applying them straight away. By default a scene has one of its own,
+     * sized from the heap, that never changes stage.
+     */
+    public void setMemoryGovernor(MemoryGovernor governor){
+        memoryGovernor = governor;
+        applyMemoryBudget();
+    }
+    public MemoryGovernor getMemoryGovernor(){return memoryGovernor;}
+    /**
+     * Size the caches to the governor's budgets as they are now, evicting
+     * whatever is over. Call it whenever the governor's stage changes. A
+     * smaller budget means a smaller cache window too, so the window is
+     * worked out again.
+     */
+    public void applyMemoryBudget(){
+        MemoryGovernor governor = memoryGovernor;
+        long evictions = tileCache.getEvictionCount();
+        long bytes = tileCache.getBytes() + bitmapPool.getBytes();
+        // The pool first, so that evicted tiles it has no room for are recycled
+        bitmapPool.setMaxBytes(governor.getPoolBytes());
+        tileCache.setMaxBytes(governor.getTileCacheBytes());
+        governor.released(tileCache.getEvictionCount() - evictions,
+                Math.max(0, bytes - tileCache.getBytes() - bitmapPool.getBytes()));
+        synchronized(cache){
+            if (cache.getState()==CacheState.READY)
+                cache.setState(CacheState.INITIALIZED);
+        }
+        markDirty();
+    }
+    //endregion
+
+    //region getMetrics()
+    /** Frame times, decode latencies and cache hit rates, for clients to export */
+    public Metrics getMetrics(){return metrics;}
+    //endregion
+
+    //region [gs]etDiskCache()/getSourceFingerprint()
+    /**
+     * Keep decoded tiles on disk too. Tiles found there are copied back instead
+     * of going to {@link #fillCache(Rect, int)}, and every tile decoded is
+     * written there. Open the cache with {@link #getSourceFingerprint()}.
+     */
+    public void setDiskCache(DiskTileCache diskCache){
+        this.diskCache = diskCache;
+    }
+    public DiskTileCache getDiskCache(){return diskCache;}
+    /**
+     * Identifies what the scene is showing, so that a {@link DiskTileCache}
+     * filled from something else isn't trusted.
+     * @return 0 if the scene can't tell, in which case it shouldn't have a disk cache
+     */
+    public long getSourceFingerprint(){
+        return 0;
+    }
+    /**
+     * Identifies what's in the tiles: the source, and the layers composited
+     * into them. This is what to open a {@link DiskTileCache} with.
+     * @return 0 if the scene can't tell, in which case it shouldn't have a disk cache
+     */
+    public long getTileFingerprint(){
+        long source = getSourceFingerprint();
+        LayerIndex l = layers;
+        if (source==0 || l.isEmpty())
+            return source;
+        return source * 0x9E3779B97F4A7C15L + l.getFingerprint();
+    }
+    //endregion
+
+    //region [gs]etLayers()
+    /**
+     * Draw layers over the scene. They're composited into every tile they
+     * touch as it's decoded, and cached that way, so they don't cost anything
+     * per frame. Set them before the disk cache: the tiles already decoded are
+     * thrown away, and a disk cache full of tiles composited with the old
+     * layers isn't used any more.
+     */
+    public void setLayers(LayerIndex layers){
+        long fingerprint = getTileFingerprint();
+        this.layers = layers;
+        if (diskCache!=null && getTileFingerprint()!=fingerprint){
+            Log.w(TAG, "the layers changed, so the disk cache is out of date");
+            diskCache = null;
+        }
+        invalidate();
+    }
+    public LayerIndex getLayers(){return layers;}
+    //endregion
+
     //region initialize/start/stop/suspend/invalidate the cache
     /** Initializes the cache */
     public void initialize(){
@@ -72,16 +282,54 @@ public abstract class Scene {
             }
         }
     }
-    /** Starts the cache thread */
+    /**
+     * Start keeping the cache up to date, on a pool of its own with a worker
+     * per {@link #getDecodeParallelism()}. {@link #stop()} shuts it down.
+     */
     public void start(){
-        cache.start();
+        cache.start(null);
     }
-    /** Stops the cache thread */
+    /**
+     * Start keeping the cache up to date on a pool that is shared, with the
+     * view that shows the scene, say. No more than
+     * {@link #getDecodeParallelism()} tiles are decoded at once, however
+     * many workers it has, and {@link #stop()} leaves it running.
+     */
+    public void start(WorkerPool workers){
+        cache.start(workers);
+    }
+    /** Stop updating the cache. Its jobs that haven't started are dropped. */
     public void stop(){
         cache.stop();
     }
+    /**
+     * Let go of everything the scene holds, once it's no longer shown: the
+     * cache is stopped, the decodes that were already running are waited
+     * for, the disk cache is closed, and the tiles and idle bitmaps are given
+     * back. Call it when no frame can be drawing the scene any more, and
+     * don't draw it afterwards. Subclasses let go of their sources too.
+     */
+    public void release(){
+        stop();
+        Semaphore permits = cache.decodePermits;
+        if (permits!=null){
+            int parallelism = Math.max(1, getDecodeParallelism());
+            permits.acquireUninterruptibly(parallelism);
+            permits.release(parallelism);
+        }
+        DiskTileCache disk = diskCache;
+        diskCache = null;
+        if (disk!=null)
+            disk.close();
+        cache.invalidate();
+        Bitmap scratch = sampleScratch;
+        sampleScratch = null;
+        if (scratch!=null)
+            scratch.recycle();
+        bitmapPool.setMaxBytes(0);
+    }
     /** 
-     * Suspends or unsuspends the cache thread. This can be
+     * Suspends or unsuspends cache updates. This can be
      * used to temporarily stop the cache from updating
      * during a fling event.
      * @param suspend True to suspend the cache. False to unsuspend.
@@ -96,44 +344,101 @@ public abstract class Scene {
                 synchronized(cache){
                     cache.setState(CacheState.INITIALIZED);
                 }
+                // The cache only wakes up when the next frame is drawn
+                markDirty();
             }
         }
     }
+    /**
+     * The viewport is about to fling from one origin to another. Rather than
+     * stopping, the cache prefetches along the fling's path -- the place it
+     * will come to rest first, since that's where it slows down, and then
+     * backwards towards where it started -- so the full resolution tiles are
+     * resident by the time the fling slows down. The viewport may leave the
+     * cache window while the fling lasts without restarting the cache.
+     * @param fromX The viewport origin when the fling starts
+     * @param fromY The viewport origin when the fling starts
+     * @param toX The viewport origin when the fling ends
+     * @param toY The viewport origin when the fling ends
+     */
+    public void startFling(int fromX, int fromY, int toX, int toY){
+        synchronized(cache){
+            cache.flinging = true;
+            cache.flingFrom.set(fromX, fromY);
+            cache.flingTo.set(toX, toY);
+            if (cache.getState()!=CacheState.UNINITIALIZED && cache.getState()!=CacheState.SUSPEND)
+                cache.requestUpdate();
+        }
+    }
+    /**
+     * The fling is over (or was interrupted by a touch). The cache goes back to
+     * following the viewport.
+     */
+    public void endFling(){
+        synchronized(cache){
+            if (!cache.flinging)
+                return;
+            cache.flinging = false;
+            if (cache.getState()==CacheState.READY)
+                cache.setState(CacheState.INITIALIZED);
+        }
+        markDirty();
+    }
+    /** How many tile decodes were dropped before they started because the viewport had moved on */
+    public long getDroppedDecodeCount(){
+        return metrics.decodesDropped.get();
+    }
+    /** Milliseconds spent decoding tiles that had been superseded and were off screen once decoded */
+    public long getWastedDecodeMillis(){
+        return metrics.decodeWasted.get() / 1000000;
+    }
     /** Invalidate the cache. This causes it to refill */
     @SuppressWarnings("unused")
     public void invalidate(){
         cache.invalidate();
+        markDirty();
     }
     //endregion
 
     //region void draw(Canvas c)
     /**
      * Draw the scene to the canvas. This operation fills the canvas with
-     * the bitmap referenced by the viewport's location within the Scene.
-     * If the cache already has the data (and is not suspended), then the
-     * high resolution bitmap from the cache is used. If it's not available,
-     * then the lower resolution bitmap from the sample is used.
+     * the part of the Scene the viewport is looking at. Wherever the cache
+     * already has tiles resident, the high resolution tiles are used. Where
+     * they're not available, the lower resolution bitmap from the sample is
+     * used. How the frame gets there depends on the {@link RenderMode}.
      */
     public void draw(Canvas c){
+        long start = System.nanoTime();
         viewport.draw(c);
+        metrics.frameDraw.record(System.nanoTime() - start);
     }
     //endregion
 
     //region protected abstract
     /**
      * This method must return a high resolution Bitmap that the Scene 
-     * will use to fill out the viewport bitmap upon request. This bitmap
-     * is normally larger than the viewport so that the viewport can be
-     * scrolled without having to refresh the cache. This method runs
-     * on a thread other than the UI thread, and it is not under a lock, so
-     * it is expected that this method can run for a long time (seconds?). 
+     * will use to fill out the viewport bitmap upon request. The Scene
+     * asks for one tile at a time and keeps the results in its
+     * {@link TileCache}, so the same pixels are never requested twice while
+     * they're resident. A tile at level L covers {@link TileCache#TILE_SIZE}&lt;&lt;L
+     * scene pixels (clipped to the scene) and is decoded at 1/2^L, so every
+     * tile is at most TILE_SIZE square whatever the zoom.
+     * The returned bitmap may be larger than the decoded region, as long as
+     * the region starts at its top left corner; take it from
+     * {@link #getBitmapPool()} and it is returned there once evicted.
+     * This method runs on a thread other than the UI thread, and it is not
+     * under a lock, so it is expected that this method can take a while.
      * @param rectOfCache The Rect representing the area of the Scene that
      * the Scene wants cached.
+     * @param level Decode at 1/2^level: 0=full resolution, 1=1/2, 2=1/4, etc
      * @return the Bitmap representing the requested area of the larger bitmap
      */
-    protected abstract Bitmap fillCache(Rect rectOfCache);
+    protected abstract Bitmap fillCache(Rect rectOfCache, int level);
     /**
      * The memory allocation you just did in fillCache caused an OutOfMemoryError.
+     * That shouldn't happen within the {@link MemoryGovernor}'s budgets, so
+     * it's a last resort rather than how the cache is sized.
      * You can attempt to recover. Experience shows that when we get an 
      * OutOfMemoryError, we're pretty hosed and are going down. For instance, if
      * we're trying to decode a bitmap region with
@@ -148,9 +453,24 @@ public abstract class Scene {
      * larger if the system believes a bitmap of the returned size will fit into
      * memory. This function must be fast as it happens while the cache lock is held.
      * @param viewportRect The returned must be able to contain this Rect
+     * @param level The level the window will be decoded at. Each scene pixel
+     * costs 1/4^level as much memory as it does at full resolution.
      * @return The Rect that will be used to fill the cache
      */
-    protected abstract Rect calculateCacheWindow(Rect viewportRect);
+    protected abstract Rect calculateCacheWindow(Rect viewportRect, int level);
+    /**
+     * Which way, and how fast, the viewport has been panning lately, in scene
+     * pixels a second, for shaping the cache window; zero if it's standing
+     * still. Zooming starts it afresh, and a fling counts as standing still,
+     * because the window is laid out round where it will come to rest. Call
+     * it from {@link #calculateCacheWindow(Rect, int)}.
+     */
+    protected void getPanVelocity(PointF out){
+        if (cache.flinging)
+            out.set(0, 0);
+        else
+            motion.getVelocity(System.nanoTime(), out);
+    }
     /**
      * This method fills the passed-in bitmap with sample data. This function must
      * return as fast as possible so it shouldn't have to do any IO at all -- the
@@ -160,158 +480,432 @@ public abstract class Scene {
      */
     protected abstract void drawSampleRectIntoBitmap(Bitmap bitmap, Rect rectOfSample);
     /**
-     * The Cache is done drawing the bitmap -- time to add the finishing touches
-     * @param canvas a canvas on which to draw
+     * Draw the sample straight onto a canvas, scaled to fill dst. This has the
+     * same constraints as {@link #drawSampleRectIntoBitmap(Bitmap, Rect)}. By
+     * default it goes through that method and a bitmap kept for the purpose,
+     * which costs an extra copy, so scenes that can draw their sample onto a
+     * canvas should override it.
+     * @param canvas The canvas to draw on
+     * @param dst Where on the canvas the sample goes
+     * @param rectOfSample Rectangle within the Scene that dst represents.
+     */
+    protected void drawSampleRectOntoCanvas(Canvas canvas, Rect dst, Rect rectOfSample){
+        Bitmap bitmap = sampleScratch;
+        if (bitmap==null || bitmap.getWidth()!=dst.width() || bitmap.getHeight()!=dst.height()){
+            if (bitmap!=null)
+                bitmapPool.release(bitmap);
+            bitmap = sampleScratch = bitmapPool.get(dst.width(), dst.height(), Config.RGB_565);
+        }
+        drawSampleRectIntoBitmap(bitmap, rectOfSample);
+        canvas.drawBitmap(bitmap, dst.left, dst.top, null);
+    }
+    /**
+     * How many calls to {@link #fillCache(Rect, int)} may run at the same time. The
+     * default of 1 is right for a Scene whose fillCache is not thread safe.
+     * Scenes that can decode independent regions in parallel should return
+     * how many they can usefully run at once.
+     */
+    protected int getDecodeParallelism(){
+        return 1;
+    }
+    /**
+     * The smallest the scene may be decoded at, as a level: 1=1/2, 2=1/4, etc. By
+     * default this is the level at which one tile covers the whole scene.
+     */
+    protected int getMaxLevel(){
+        int level = 0;
+        while ((TileCache.TILE_SIZE << level) < Math.max(size.x, size.y))
+            level++;
+        return level;
+    }
+    /**
+     * The level to decode at for a zoom: the smallest decode that still has at
+     * least one decoded pixel for every pixel on screen.
+     */
+    int levelForZoom(float zoom){
+        int level = 0;
+        int max = getMaxLevel();
+        while (level < max && (2 << level) <= zoom)
+            level++;
+        return level;
+    }
+    /**
+     * The Cache is done drawing the frame -- time to add the finishing touches
+     * @param canvas a canvas on which to draw: the canvas passed to
+     * {@link #draw(Canvas)}, or in {@link RenderMode#OFFSCREEN} one on the
+     * screen sized bitmap, which is drawn onto that canvas afterwards
      */
     protected abstract void drawComplete(Canvas canvas);
     //endregion
 
+    //region protected helpers
+    /** Only used on the draw thread, so a frame allocates nothing */
+    private final Canvas sampleCanvas = new Canvas();
+    private final Rect sampleSrc = new Rect();
+    private final Rect sampleDst = new Rect();
+    /** What the default {@link #drawSampleRectOntoCanvas} draws the sample into */
+    private Bitmap sampleScratch;
+    /**
+     * A ready made {@link #drawSampleRectIntoBitmap(Bitmap, Rect)} for scenes that
+     * keep their sample as a single bitmap, 1/2^shift the size of the scene.
+     * It draws with a canvas it keeps for the purpose, so only call it from
+     * drawSampleRectIntoBitmap, on the draw thread.
+     * @param sample The whole scene, scaled down
+     * @param shift How far the sample is scaled down: 1=1/2, 2=1/4, etc
+     * @param bitmap The Bitmap to fill
+     * @param rectOfSample Rectangle within the Scene that this bitmap represents.
+     */
+    protected void drawSampleRect(Bitmap sample, int shift, Bitmap bitmap, Rect rectOfSample){
+        if (bitmap!=null && sample!=null){
+            sampleDst.set(0,0,bitmap.getWidth(),bitmap.getHeight());
+            sampleCanvas.setBitmap(bitmap);
+            drawSampleRect(sample, shift, sampleCanvas, sampleDst, rectOfSample);
+            sampleCanvas.setBitmap(null);
+        }
+    }
+    /**
+     * A ready made {@link #drawSampleRectOntoCanvas(Canvas, Rect, Rect)} to go
+     * with {@link #drawSampleRect(Bitmap, int, Bitmap, Rect)}.
+     * @param sample The whole scene, scaled down
+     * @param shift How far the sample is scaled down: 1=1/2, 2=1/4, etc
+     * @param canvas The canvas to draw on
+     * @param dst Where on the canvas the sample goes
+     * @param rectOfSample Rectangle within the Scene that dst represents.
+     */
+    protected void drawSampleRect(Bitmap sample, int shift, Canvas canvas, Rect dst, Rect rectOfSample){
+        if (sample!=null){
+            int left   = (rectOfSample.left>> shift);
+            int top    = (rectOfSample.top>> shift);
+            int right  = left + (rectOfSample.width()>> shift);
+            int bottom = top + (rectOfSample.height()>> shift);
+            sampleSrc.set( left, top, right, bottom );
+            canvas.drawBitmap(
+                sample,
+                sampleSrc,
+                dst,
+                null
+                );
+        }
+    }
+    //endregion
+
+    //region compositeLayers()
+    /**
+     * Draw every layer that touches a tile into it, on the decode thread
+     * that decoded it, so the tile is cached with its layers.
+     * @return The tile, or a mutable copy of it if it couldn't be drawn on
+     */
+    Bitmap compositeLayers(Bitmap bitmap, Rect tileRect, int level){
+        LayerIndex index = layers;
+        if (index.isEmpty())
+            return bitmap;
+        List<Layer> touching = new ArrayList<>();
+        index.query(tileRect, touching);
+        if (touching.isEmpty())
+            return bitmap;
+        if (!bitmap.isMutable()){
+            Bitmap copy = bitmapPool.get(bitmap.getWidth(), bitmap.getHeight(), Config.RGB_565);
+            new Canvas(copy).drawBitmap(bitmap, 0, 0, null);
+            bitmap.recycle();
+            bitmap = copy;
+        }
+        Canvas c = new Canvas(bitmap);
+        // Scene coordinates onto the tile, which starts at its top left corner
+        float scale = 1f / (1 << level);
+        c.scale(scale, scale);
+        c.translate(-tileRect.left, -tileRect.top);
+        c.clipRect(tileRect);
+        for (Layer layer : touching)
+            layer.draw(c, tileRect, level);
+        return bitmap;
+    }
+    //endregion
+
     //region class Viewport
 
-    public class Viewport {
-        /** The bitmap of the current viewport */
-        Bitmap bitmap = null;
+    /**
+     * A copy of where the viewport is, taken with {@link Viewport#read}. Every
+     * reader keeps one of its own and reads into it again when it needs to, so
+     * it sees a window, zoom and bitmap that belong together without holding
+     * a lock or allocating anything.
+     */
+    static final class ViewportState {
         /** A Rect that defines where the Viewport is within the scene */
-        final Rect window = new Rect(0,0,0,0);
-        float zoom = 1.0f;
+        final Rect window = new Rect();
+        float zoom;
+        /** The size of the screen */
+        int width;
+        int height;
+        /** The bitmap the viewport is composed into in {@link RenderMode#OFFSCREEN}, otherwise null */
+        Bitmap bitmap;
+    }
+
+    /**
+     * Where the viewport is, and how big the screen it's drawn on is,
+     * guarded by a sequence lock: a writer makes the
+     * sequence odd, changes the fields and makes it even again, and a reader
+     * that saw it odd or changed reads again. Readers never block writers,
+     * writers only wait for each other for the few stores a write takes, and
+     * nothing on either side allocates.
+     */
+    public class Viewport {
+        /** Odd while a writer is part way through */
+        private final AtomicInteger sequence = new AtomicInteger();
+        private volatile int left = 0;
+        private volatile int top = 0;
+        private volatile int right = 0;
+        private volatile int bottom = 0;
+        private volatile float zoom = 1.0f;
+        private volatile int width = 0;
+        private volatile int height = 0;
+        private volatile Bitmap bitmap;
+        /** What the draw thread reads into */
+        private final ViewportState drawState = new ViewportState();
+        /** What the draw thread composes into the bitmap with */
+        private final Canvas offscreen = new Canvas();
+        /**
+         * A bitmap {@link #setSize} replaced. The draw thread may still be
+         * composing into it, so it goes back to the pool from the draw thread,
+         * once that frame is done.
+         */
+        private final AtomicReference<Bitmap> retired = new AtomicReference<>();
+
+        /** Copy the viewport into state */
+        void read(ViewportState state){
+            int seq;
+            do {
+                seq = sequence.get();
+                state.window.set(left, top, right, bottom);
+                state.zoom = zoom;
+                state.width = width;
+                state.height = height;
+                state.bitmap = bitmap;
+            } while ((seq & 1)!=0 || seq!=sequence.get());
+        }
+
+        /** Does the viewport's window overlap rect? */
+        boolean intersects(Rect rect){
+            int seq;
+            boolean intersects;
+            do {
+                seq = sequence.get();
+                intersects = rect.left < right && left < rect.right
+                        && rect.top < bottom && top < rect.bottom;
+            } while ((seq & 1)!=0 || seq!=sequence.get());
+            return intersects;
+        }
+
+        /**
+         * Wait for any other writer to finish, then make the sequence odd
+         * @return the odd sequence, for {@link #endWrite(int)}
+         */
+        private int beginWrite(){
+            int seq;
+            do {
+                seq = sequence.get();
+            } while ((seq & 1)!=0 || !sequence.compareAndSet(seq, seq + 1));
+            return seq + 1;
+        }
+
+        private void endWrite(int seq){
+            sequence.set(seq + 1);
+        }
+
+        /** Only call this between beginWrite and endWrite */
+        private void write(int left, int top, int right, int bottom, float zoom){
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.zoom = zoom;
+        }
 
         public void setOrigin(int x, int y){
-            synchronized(this){
-                int w = window.width();
-                int h = window.height();
-    
+            int seq = beginWrite();
+            try {
+                int w = right - left;
+                int h = bottom - top;
+                int l = x;
+                int t = y;
+
                 // check bounds
-                if (x < 0)
-                    x = 0;
-    
-                if (y < 0)
-                    y = 0;
-    
-                if (x + w > size.x)
-                    x = size.x - w;
-    
-                if (y + h > size.y)
-                    y = size.y - h;
-    
-                window.set(x, y, x+w, y+h);
+                if (l < 0)
+                    l = 0;
+
+                if (t < 0)
+                    t = 0;
+
+                if (l + w > size.x)
+                    l = size.x - w;
+
+                if (t + h > size.y)
+                    t = size.y - h;
+
+                if (l==left && t==top)
+                    return;
+                write(l, t, l+w, t+h, zoom);
+                motion.record(l, t, System.nanoTime());
+            } finally {
+                endWrite(seq);
             }
+            markDirty();
         }
         public void setSize( int w, int h ){
-            synchronized (this) {
-                if (bitmap !=null){
-                    bitmap.recycle();
-                    bitmap = null;
+            Bitmap newBitmap = renderMode==RenderMode.OFFSCREEN ? bitmapPool.get(w, h, Config.RGB_565) : null;
+            Bitmap old;
+            int seq = beginWrite();
+            try {
+                old = bitmap;
+                write(left, top, left + w, top + h, zoom);
+                width = w;
+                height = h;
+                bitmap = newBitmap;
+            } finally {
+                endWrite(seq);
+            }
+            retire(old);
+            markDirty();
+        }
+        /** Take a bitmap for the current size, or give it up, to suit the render mode */
+        void updateBitmap(){
+            int w = width;
+            int h = height;
+            Bitmap newBitmap = renderMode==RenderMode.OFFSCREEN && w>0 && h>0
+                    ? bitmapPool.get(w, h, Config.RGB_565) : null;
+            Bitmap old = null;
+            boolean resized;
+            int seq = beginWrite();
+            try {
+                resized = width!=w || height!=h;
+                if (!resized){
+                    old = bitmap;
+                    bitmap = newBitmap;
                 }
-                bitmap = Bitmap.createBitmap(w, h, Config.RGB_565);
-                window.set(
-                        window.left,
-                        window.top,
-                        window.left + w,
-                        window.top + h);
+            } finally {
+                endWrite(seq);
             }
+            if (resized){
+                // setSize got there first, and took care of it
+                if (newBitmap!=null)
+                    bitmapPool.release(newBitmap);
+                return;
+            }
+            retire(old);
+            markDirty();
+        }
+        private void retire(Bitmap old){
+            // If an older bitmap was never picked up, the garbage collector can have it
+            if (old!=null)
+                retired.set(old);
         }
         public void getOrigin(Point p){
-            synchronized (this) {
-                p.set(window.left, window.top);
-            }
+            int seq;
+            do {
+                seq = sequence.get();
+                p.set(left, top);
+            } while ((seq & 1)!=0 || seq!=sequence.get());
         }
         public void getSize(Point p){
-            synchronized (this) {
-                p.x = window.width();
-                p.y = window.height();
-            }
+            int seq;
+            do {
+                seq = sequence.get();
+                p.set(right - left, bottom - top);
+            } while ((seq & 1)!=0 || seq!=sequence.get());
         }
         public void getPhysicalSize(Point p){
-            synchronized (this){
-                p.x = getPhysicalWidth();
-                p.y = getPhysicalHeight();
-            }
+            int seq;
+            do {
+                seq = sequence.get();
+                p.set(width, height);
+            } while ((seq & 1)!=0 || seq!=sequence.get());
         }
         public int getPhysicalWidth(){
-            return bitmap.getWidth();
+            return width;
         }
         public int getPhysicalHeight(){
-            return bitmap.getHeight();
+            return height;
         }
         public float getZoom(){
             return zoom;
         }
         public void zoom(float factor, PointF screenFocus){
             if (factor!=1.0){
-
-                PointF screenSize = new PointF(bitmap.getWidth(),bitmap.getHeight());
-                PointF sceneSize = new PointF(getSceneSize());
-                float screenWidthToHeight = screenSize.x / screenSize.y;
-                float screenHeightToWidth = screenSize.y / screenSize.x;
-                synchronized (this){
+                float sceneWidth = size.x;
+                float sceneHeight = size.y;
+                int seq = beginWrite();
+                try {
+                    if (width==0 || height==0)
+                        return;
+                    float screenWidth = width;
+                    float screenHeight = height;
+                    float screenWidthToHeight = screenWidth / screenHeight;
+                    float screenHeightToWidth = screenHeight / screenWidth;
                     float newZoom = zoom * factor;
-                    RectF w1 = new RectF(window);
-                    RectF w2 = new RectF();
-                    PointF sceneFocus = new PointF(
-                            w1.left + (screenFocus.x/screenSize.x)*w1.width(),
-                            w1.top + (screenFocus.y/screenSize.y)*w1.height()
-                    );
-                    float w2Width = getPhysicalWidth() * newZoom;
-                    if (w2Width > sceneSize.x){
-                        w2Width = sceneSize.x;
-                        newZoom = w2Width / getPhysicalWidth();
+                    float sceneFocusX = left + (screenFocus.x/screenWidth)*(right - left);
+                    float sceneFocusY = top + (screenFocus.y/screenHeight)*(bottom - top);
+                    float w2Width = screenWidth * newZoom;
+                    if (w2Width > sceneWidth){
+                        w2Width = sceneWidth;
+                        newZoom = w2Width / screenWidth;
                     }
                     if (w2Width < MINIMUM_PIXELS_IN_VIEW){
                         w2Width = MINIMUM_PIXELS_IN_VIEW;
-                        newZoom = w2Width / getPhysicalWidth();
+                        newZoom = w2Width / screenWidth;
                     }
                     float w2Height = w2Width * screenHeightToWidth;
-                    if (w2Height > sceneSize.y){
-                        w2Height = sceneSize.y;
+                    if (w2Height > sceneHeight){
+                        w2Height = sceneHeight;
                         w2Width = w2Height * screenWidthToHeight;
-                        newZoom = w2Width / getPhysicalWidth();
+                        newZoom = w2Width / screenWidth;
                     }
                     if (w2Height < MINIMUM_PIXELS_IN_VIEW){
                         w2Height = MINIMUM_PIXELS_IN_VIEW;
                         w2Width = w2Height * screenWidthToHeight;
-                        newZoom = w2Width / getPhysicalWidth();
+                        newZoom = w2Width / screenWidth;
                     }
-                    w2.left = sceneFocus.x - ((screenFocus.x/screenSize.x) * w2Width);
-                    w2.top = sceneFocus.y - ((screenFocus.y/screenSize.y) * w2Height);
-                    if (w2.left<0)
-                        w2.left=0;
-                    if (w2.top<0)
-                        w2.top=0;
-                    w2.right = w2.left+w2Width;
-                    w2.bottom= w2.top+w2Height;
-                    if (w2.right>sceneSize.x){
-                        w2.right=sceneSize.x;
-                        w2.left=w2.right-w2Width;
+                    float w2Left = sceneFocusX - ((screenFocus.x/screenWidth) * w2Width);
+                    float w2Top = sceneFocusY - ((screenFocus.y/screenHeight) * w2Height);
+                    if (w2Left<0)
+                        w2Left=0;
+                    if (w2Top<0)
+                        w2Top=0;
+                    float w2Right = w2Left+w2Width;
+                    float w2Bottom = w2Top+w2Height;
+                    if (w2Right>sceneWidth){
+                        w2Right=sceneWidth;
+                        w2Left=w2Right-w2Width;
                     }
-                    if (w2.bottom>sceneSize.y){
-                        w2.bottom=sceneSize.y;
-                        w2.top=w2.bottom-w2Height;
+                    if (w2Bottom>sceneHeight){
+                        w2Bottom=sceneHeight;
+                        w2Top=w2Bottom-w2Height;
                     }
-                    window.set((int)w2.left,(int)w2.top,(int)w2.right,(int)w2.bottom);
-                    zoom = newZoom;
-//                    Log.d(TAG,String.format(
-//                            "f=%.2f, z=%.2f, scrf(%.0f,%.0f), scnf(%.0f,%.0f) w1s(%.0f,%.0f) w2s(%.0f,%.0f) w1(%.0f,%.0f,%.0f,%.0f) w2(%.0f,%.0f,%.0f,%.0f)",
-//                            factor,
-//                            zoom,
-//                            screenFocus.x,
-//                            screenFocus.y,
-//                            sceneFocus.x,
-//                            sceneFocus.y,
-//                            w1.width(),w1.height(),
-//                            w2Width, w2Height,
-//                            w1.left,w1.top,w1.right,w1.bottom,
-//                            w2.left,w2.top,w2.right,w2.bottom
-//                            ));
+                    write((int)w2Left,(int)w2Top,(int)w2Right,(int)w2Bottom, newZoom);
+                    motion.clear();
+                } finally {
+                    endWrite(seq);
                 }
+                markDirty();
             }
         }
         void draw(Canvas c){
-            cache.update(this);
-            synchronized (this){
-                if (c!=null && bitmap !=null){
-                    c.drawBitmap(bitmap, 0F, 0F, null);
+            // Whatever setSize replaced, no frame is using any more
+            Bitmap old = retired.getAndSet(null);
+            if (old!=null)
+                bitmapPool.release(old);
+            ViewportState s = drawState;
+            read(s);
+            if (s.bitmap!=null){
+                // Compose offscreen, then copy the whole frame across
+                offscreen.setBitmap(s.bitmap);
+                cache.update(s, offscreen);
+                drawComplete(offscreen);
+                offscreen.setBitmap(null);
+                if (c!=null)
+                    c.drawBitmap(s.bitmap, 0F, 0F, null);
+            } else {
+                cache.update(s, c);
+                if (c!=null)
                     drawComplete(c);
-                }
             }
         }
     }
@@ -321,61 +915,112 @@ public abstract class Scene {
 
     private enum CacheState {UNINITIALIZED,INITIALIZED,START_UPDATE,IN_UPDATE,READY,SUSPEND}
     /**
-     * Keep track of the cached bitmap
+     * Keep track of the window of the scene that the {@link CacheUpdater} keeps
+     * resident in the {@link TileCache}, and compose the viewport from
+     * those tiles.
      */
     private class Cache {
         /** A Rect that defines where the Cache is within the scene */
         final Rect window = new Rect(0,0,0,0);
-        /** The bitmap of the current cache */
-        Bitmap bitmapRef = null;
-        CacheState state = CacheState.UNINITIALIZED;
+        /** Written with the cache locked, but read by the draw thread without */
+        volatile CacheState state = CacheState.UNINITIALIZED;
+        /**
+         * Bumped every time an update is requested. A decode submitted for an
+         * older generation has been superseded and is dropped if it hasn't started.
+         */
+        volatile int generation = 0;
+        /** Set from {@link Scene#startFling} until {@link Scene#endFling} */
+        boolean flinging = false;
+        final Point flingFrom = new Point();
+        final Point flingTo = new Point();
+        /** The level the window is being decoded at */
+        int level = 0;
+        /**
+         * The window has been filled again because tiles on screen had been
+         * evicted, and isn't filled again for that until it changes
+         */
+        boolean refilled = false;
 
         void setState(CacheState newState){
             if (Debug.isDebuggerConnected())
                 Log.i(TAG,String.format("cacheState old=%s new=%s",state.toString(),newState.toString()));
+            if (newState==CacheState.START_UPDATE)
+                generation++;
             state = newState;
         }
         CacheState getState(){ return state; }
         
-        /** Our load from disk thread */
-        CacheThread cacheThread;
-        
-        void start(){
-            if (cacheThread!=null){
-                cacheThread.setRunning(false);
-                cacheThread.interrupt();
-                cacheThread = null;
+        /** Where the updates and the decodes run; null while the cache is stopped */
+        volatile WorkerPool workers;
+        /** Whether the pool was made by {@link #start}, and so is shut down by {@link #stop} */
+        boolean ownsWorkers;
+        /** Keeps the decodes down to {@link #getDecodeParallelism()} on a pool with more workers */
+        volatile Semaphore decodePermits;
+        volatile boolean running = false;
+        /** Works out the window and submits its tiles; there's only ever one */
+        final CacheUpdater updater = new CacheUpdater(this);
+        /** The updater has been submitted and hasn't started */
+        boolean updateQueued = false;
+
+        /** @param shared A pool to run on, or null to make one */
+        void start(WorkerPool shared){
+            stop();
+            int parallelism = Math.max(1, getDecodeParallelism());
+            synchronized(this){
+                ownsWorkers = shared==null;
+                decodePermits = new Semaphore(parallelism);
+                workers = shared!=null ? shared : new WorkerPool("decodeThread", parallelism);
+                running = true;
+                // An update that was under way when the cache stopped never finished
+                updateQueued = false;
+                if (state==CacheState.START_UPDATE || state==CacheState.IN_UPDATE)
+                    setState(CacheState.INITIALIZED);
             }
-            cacheThread = new CacheThread(this);
-            cacheThread.setName("cacheThread");
-            cacheThread.start();
         }
         
         void stop(){
-            cacheThread.running = false;
-            cacheThread.interrupt();
-
-            boolean retry = true;
-            while (retry) {
-                try {
-                    cacheThread.join();
-                    retry = false;
-                } catch (InterruptedException e) {
-                    // we will try it again and again...
-                }
+            WorkerPool pool;
+            boolean owned;
+            synchronized(this){
+                running = false;
+                pool = workers;
+                owned = ownsWorkers;
+                workers = null;
             }
-            cacheThread = null;
+            if (pool==null)
+                return;
+            if (owned)
+                pool.shutdown();
+            else
+                pool.cancel(this);
         }
         void invalidate(){
             synchronized(this){
+                tileCache.clear();
+                // Anything still queued was for what's just been thrown away
+                generation++;
                 setState(CacheState.INITIALIZED);
-                cacheThread.interrupt();
             }
         }
-        
-        /** Fill the bitmap with the part of the scene referenced by the viewport Rect */
-        void update(Viewport viewport){
-            Bitmap bitmap = null;    // If this is null at the bottom, then load from the sample
+
+        /**
+         * Have the updater work out the window again, superseding the decodes
+         * for the last one. Call with the cache locked.
+         */
+        void requestUpdate(){
+            setState(CacheState.START_UPDATE);
+            WorkerPool pool = workers;
+            if (pool!=null && !updateQueued){
+                updateQueued = true;
+                pool.submit(updater);
+            }
+        }
+
+        /**
+         * Draw the part of the scene referenced by the viewport Rect onto a canvas
+         * @param canvas null to only keep the cache up to date
+         */
+        void update(ViewportState viewport, Canvas canvas){
             synchronized(this){
                 switch(getState()){
                 case UNINITIALIZED:
@@ -383,174 +1028,454 @@ public abstract class Scene {
                     return;
                 case INITIALIZED:
                     // time to cache some data
-                    setState(CacheState.START_UPDATE);
-                    cacheThread.interrupt();
+                    refilled = false;
+                    requestUpdate();
                     break;
                 case START_UPDATE:
-                    // I already told the thread to start
+                    // The updater has already been asked
                     break;
                 case IN_UPDATE:
-                    // Already reading some data, just use the sample 
+                    // Already reading some data, show what we have so far. But if
+                    // the viewport has left the window, or zoomed far enough for
+                    // another level, the latest request wins.
+                    if (!flinging && (!window.contains(viewport.window) || level!=levelForZoom(viewport.zoom))){
+                        refilled = false;
+                        requestUpdate();
+                    }
                     break;
                 case SUSPEND:
                     // Loading from cache suspended.
                     break;
                 case READY:
                     // I have some data to show
-                    if (bitmapRef==null){
-                        // Start the cache off right
-                        if (Debug.isDebuggerConnected())
-                            Log.d(TAG,"bitmapRef is null");
-                        setState(CacheState.START_UPDATE);
-                        cacheThread.interrupt();
-                    } else if (!window.contains(viewport.window)){
+                    if (!flinging && (!window.contains(viewport.window) || level!=levelForZoom(viewport.zoom))){
                         if (Debug.isDebuggerConnected())
                             Log.d(TAG,"viewport not in cache");
-                        setState(CacheState.START_UPDATE);
-                        cacheThread.interrupt();
-                    } else {
-                        // Happy case -- the cache already contains the Viewport
-                        bitmap = bitmapRef;
+                        refilled = false;
+                        requestUpdate();
                     }
                     break;
                 }
             }
-            if (bitmap==null)
-                loadSampleIntoViewport();
-            else
-                loadBitmapIntoViewport(bitmap);
+            if (!loadTilesIntoViewport(viewport, canvas)){
+                synchronized(this){
+                    if (getState()==CacheState.READY && !refilled){
+                        // Some of the tiles we need have been evicted. If they
+                        // have been again after a refill, the budget can't hold
+                        // them: decoding them once more would only evict them once
+                        // more, so make do until the viewport or the budget changes.
+                        refilled = true;
+                        requestUpdate();
+                    }
+                }
+            }
         }
-        
-        void loadBitmapIntoViewport(Bitmap bitmap){
-            if (bitmap!=null){
-                synchronized(viewport){
-                    int left   = viewport.window.left - window.left;
-                    int top    = viewport.window.top  - window.top;
-                    int right  = left + viewport.window.width();
-                    int bottom = top  + viewport.window.height();
-                    viewport.getPhysicalSize(dstSize);
-                    srcRect.set( left, top, right, bottom );
-                    dstRect.set(0, 0, dstSize.x, dstSize.y);
-                    Canvas c = new Canvas(viewport.bitmap);
-                    c.drawBitmap(
-                            bitmap,
-                            srcRect,
-                            dstRect,
-                            null);
-//                    try {
-//                        FileOutputStream fos = new FileOutputStream("/sdcard/viewport.png");
-//                        viewport.bitmap.compress(Bitmap.CompressFormat.PNG, 99, fos);
-//                        Thread.sleep(1000);
-//                    } catch  (Exception e){
-//                        System.out.print(e.getMessage());
-//                    }
+
+        /**
+         * Draw every resident tile that the viewport can see onto the canvas,
+         * at the level that suits the viewport's zoom. Tiles are drawn as soon
+         * as they're resident, so the screen sharpens a tile at a time. Where
+         * one is missing, the best substitute goes down in its place: the
+         * nearest coarser tile that covers it, with any finer tiles that are
+         * still resident on top. Only where there is no coarser tile does the
+         * sample go down first, so that there are no holes.
+         * @param canvas null to only check whether the tiles are resident
+         * @return false if any tile at the viewport's level was missing
+         */
+        boolean loadTilesIntoViewport(ViewportState viewport, Canvas canvas){
+            boolean covered = true;
+            boolean patched = true;
+            Rect vw = viewport.window;
+            if (vw.isEmpty() || viewport.width==0 || viewport.height==0)
+                return true;
+            int level = levelForZoom(viewport.zoom);
+            int maxLevel = getMaxLevel();
+            int span = TileCache.tileSpan(level);
+            int tx0 = vw.left / span;
+            int ty0 = vw.top / span;
+            int tx1 = (vw.right - 1) / span;
+            int ty1 = (vw.bottom - 1) / span;
+            float scaleX = (float) viewport.width / vw.width();
+            float scaleY = (float) viewport.height / vw.height();
+            synchronized (tileCache){
+                tileCache.setMinBytes((long) (tx1 - tx0 + 1) * (ty1 - ty0 + 1) * TileCache.TILE_BYTES);
+                for (int ty = ty0; ty <= ty1 && patched; ty++){
+                    for (int tx = tx0; tx <= tx1 && patched; tx++){
+                        if (tileCache.peek(level, tx, ty)==null){
+                            covered = false;
+                            patched = coarser(level, maxLevel, tx, ty)!=null;
+                        }
+                    }
+                }
+                if (canvas==null)
+                    return covered;
+                if (!patched){
+                    long start = System.nanoTime();
+                    loadSampleIntoViewport(viewport, canvas);
+                    metrics.sampleDraw.record(System.nanoTime() - start);
+                    metrics.sampleFrames.increment();
+                }
+
+                for (int ty = ty0; ty <= ty1; ty++){
+                    for (int tx = tx0; tx <= tx1; tx++){
+                        TileCache.Tile tile = tileCache.peek(level, tx, ty);
+                        if (tile!=null){
+                            drawTile(canvas, tile, vw, vw, scaleX, scaleY);
+                            continue;
+                        }
+                        TileCache.tileRect(level, tx, ty, size, holeRect);
+                        if (!holeRect.intersect(vw))
+                            continue;
+                        tile = coarser(level, maxLevel, tx, ty);
+                        if (tile!=null)
+                            drawTile(canvas, tile, holeRect, vw, scaleX, scaleY);
+                        if (level > 0){
+                            for (int cy = ty * 2; cy <= ty * 2 + 1; cy++){
+                                for (int cx = tx * 2; cx <= tx * 2 + 1; cx++){
+                                    tile = tileCache.peek(level - 1, cx, cy);
+                                    if (tile!=null)
+                                        drawTile(canvas, tile, holeRect, vw, scaleX, scaleY);
+                                }
+                            }
+                        }
+                    }
                 }
             }
+            return covered;
+        }
+
+        /** The nearest resident tile above level that covers tile (tx,ty), or null */
+        TileCache.Tile coarser(int level, int maxLevel, int tx, int ty){
+            for (int l = level + 1; l <= maxLevel; l++){
+                TileCache.Tile tile = tileCache.peek(l, tx >> (l - level), ty >> (l - level));
+                if (tile!=null)
+                    return tile;
+            }
+            return null;
+        }
+
+        /** Draw the part of a tile that's inside clip, a rect within the viewport's window */
+        void drawTile(Canvas canvas, TileCache.Tile tile, Rect clip, Rect vw, float scaleX, float scaleY){
+            if (!srcRect.setIntersect(tile.rect, clip))
+                return;
+            dstRect.set(
+                    (srcRect.left - vw.left) * scaleX,
+                    (srcRect.top - vw.top) * scaleY,
+                    (srcRect.right - vw.left) * scaleX,
+                    (srcRect.bottom - vw.top) * scaleY);
+            // The tile's bitmap holds its rect at 1/2^level
+            int level = tile.level;
+            int round = (1 << level) - 1;
+            srcRect.set(
+                    (srcRect.left - tile.rect.left) >> level,
+                    (srcRect.top - tile.rect.top) >> level,
+                    (srcRect.right - tile.rect.left + round) >> level,
+                    (srcRect.bottom - tile.rect.top + round) >> level);
+            canvas.drawBitmap(tile.bitmap, srcRect, dstRect, null);
         }
         final Rect srcRect = new Rect(0,0,0,0);
-        final Rect dstRect = new Rect(0,0,0,0);
-        final Point dstSize = new Point();
+        final RectF dstRect = new RectF(0,0,0,0);
+        final Rect holeRect = new Rect(0,0,0,0);
+        final Rect sampleRect = new Rect(0,0,0,0);
         
-        void loadSampleIntoViewport(){
+        void loadSampleIntoViewport(ViewportState viewport, Canvas canvas){
             if (getState()!=CacheState.UNINITIALIZED){
-                synchronized(viewport){
-                    drawSampleRectIntoBitmap(
-                        viewport.bitmap,
-                        viewport.window
-                        );
-                }
+                sampleRect.set(0, 0, viewport.width, viewport.height);
+                drawSampleRectOntoCanvas(
+                    canvas,
+                    sampleRect,
+                    viewport.window
+                    );
             }
         }
     }
     //endregion
 
-    //region class CacheThread
+    //region class CacheUpdater
     /**
-     * <p>The CacheThread's job is to wait until the {@link Cache#state} is 
-     * {@link CacheState#START_UPDATE} and then update the {@link Cache} given
-     * the current {@link Viewport#window}. It does not want to hold the cache
-     * lock during the call to {@link Scene#fillCache(Rect)} because the call 
-     * can take a long time. If we hold the lock, the user experience is very 
-     * jumpy.</p>
-     * <p>The CacheThread and the {@link Cache} work hand in hand, both using the 
+     * <p>The CacheUpdater runs on the {@link WorkerPool} whenever the
+     * {@link Cache#state} goes to {@link CacheState#START_UPDATE}. It works out
+     * the {@link Cache} window, given the current {@link Viewport#window}, and
+     * submits a {@link DecodeTile} for every tile of it that isn't resident
+     * in the {@link TileCache}: the tiles on screen as
+     * {@link WorkerPool.Priority#VISIBLE}, the rest as
+     * {@link WorkerPool.Priority#PREFETCH}. It runs as
+     * {@link WorkerPool.Priority#INPUT} itself, since it's the response to the
+     * viewport moving, so a new window is worked out ahead of any tile of the
+     * old one. The last of a window's tiles to finish makes the cache
+     * {@link CacheState#READY}.</p>
+     * <p>The CacheUpdater and the {@link Cache} work hand in hand, both using the 
      * cache itself to synchronize on and using the {@link Cache#state}. 
      * The {@link Cache} is free to update any part of the cache object as long 
-     * as it holds the lock. The CacheThread is careful to make sure that it is
-     * the {@link Cache#state} is {@link CacheState#IN_UPDATE} as it updates
-     * the {@link Cache}. It locks and unlocks the cache all along the way, but
-     * makes sure that the cache is not locked when it calls 
-     * {@link Scene#fillCache(Rect)}. 
+     * as it holds the lock. Nothing holds the lock while
+     * {@link Scene#fillCache(Rect, int)} runs, because it can take a long
+     * time. Tiles that are already resident are not decoded again, so only
+     * the part of the window that is new costs anything.</p>
      */
-    class CacheThread extends Thread {
+    class CacheUpdater extends WorkerPool.Job {
         final Cache cache;
-        boolean running = false;
-        void setRunning(boolean value){ running = value; }
-        
-        CacheThread(Cache cache){ this.cache = cache; }
+        /** The tiles submitted for the current window */
+        final HashSet<Long> submitted = new HashSet<>();
+        final Rect pathRect = new Rect();
+        /** What the updater reads the viewport into */
+        final ViewportState viewportState = new ViewportState();
+        final Rect viewportRect = new Rect(0,0,0,0);
+        final Rect windowRect = new Rect(0,0,0,0);
+        final Point flingFrom = new Point();
+        final Point flingTo = new Point();
         
-        @Override
-        public void run() {
-            running=true;
-            Rect viewportRect = new Rect(0,0,0,0);
-            while(running){
-                while(running && cache.getState()!=CacheState.START_UPDATE)
-                    try {
-                        // Sleep until we have something to do
-                        Thread.sleep(Integer.MAX_VALUE);
-                    } catch (InterruptedException ignored) {}
-                if (!running)
+        CacheUpdater(Cache cache){
+            super(cache, WorkerPool.Priority.INPUT);
+            this.cache = cache;
+        }
+
+        /**
+         * The tiles of one window that haven't finished. The updater holds one
+         * itself while it's submitting them, so the window can't be finished
+         * before all of it has been submitted.
+         */
+        class Fill {
+            final int generation;
+            final long start;
+            final AtomicInteger remaining = new AtomicInteger(1);
+            Fill(int generation, long start){
+                this.generation = generation;
+                this.start = start;
+            }
+            /** One tile (or the updater) is done; the last one makes the cache ready */
+            void done(){
+                if (remaining.decrementAndGet()!=0)
                     return;
-                long start = System.currentTimeMillis();
-                boolean cont = false;
-                synchronized (cache) {
-                    if (cache.getState()==CacheState.START_UPDATE){
-                        cache.setState(CacheState.IN_UPDATE);
-                        cache.bitmapRef = null;
-                        cont = true;
+                synchronized (cache){
+                    if (cache.getState()==CacheState.IN_UPDATE && cache.generation==generation){
+                        cache.setState(CacheState.READY);
+                        metrics.cacheFill.record(System.nanoTime() - start);
+                        if (Debug.isDebuggerConnected())
+                            Log.d(TAG,String.format("fillCache in %dms",(System.nanoTime()-start)/1000000));
                     }
                 }
-                if (cont){
-                    synchronized(viewport){
-                        viewportRect.set(viewport.window);
+            }
+        }
+
+        /**
+         * Decodes one tile and makes it resident. Each tile is a small piece of
+         * the window, so when the window is superseded only the tiles already
+         * running are finished; the rest are dropped.
+         */
+        class DecodeTile extends WorkerPool.Job {
+            final int level;
+            final int tx;
+            final int ty;
+            final Fill fill;
+            DecodeTile(WorkerPool.Priority priority, int level, int tx, int ty, Fill fill){
+                super(cache, priority);
+                this.level = level;
+                this.tx = tx;
+                this.ty = ty;
+                this.fill = fill;
+            }
+            @Override
+            public void run() {
+                try {
+                    decode();
+                } catch (OutOfMemoryError e){
+                    Log.d(TAG,"out of memory decoding a tile");
+                    /*
+                     *  Attempt to recover. Experience shows that if we
+                     *  do get an OutOfMemoryError, we're pretty hosed and are going down.
+                     */
+                    synchronized (cache){
+                        fillCacheOutOfMemoryError(e);
+                        if (cache.getState()==CacheState.IN_UPDATE && cache.generation==fill.generation)
+                            cache.requestUpdate();
                     }
-                    synchronized (cache) {
-                        if (cache.getState()==CacheState.IN_UPDATE)
-                            //cache.setWindowRect(viewportRect);
-                            cache.window.set(calculateCacheWindow(viewportRect));
-                        else
-                            cont = false;
+                } finally {
+                    fill.done();
+                }
+            }
+            private void decode(){
+                // Don't start on a window that has been superseded
+                if (!cache.running || cache.generation!=fill.generation){
+                    metrics.decodesDropped.increment();
+                    return;
+                }
+                Rect tileRect = new Rect();
+                TileCache.tileRect(level, tx, ty, size, tileRect);
+                long start = System.nanoTime();
+                DiskTileCache disk = diskCache;
+                Bitmap bitmap = disk!=null ? disk.get(level, tx, ty, bitmapPool) : null;
+                if (disk!=null){
+                    if (bitmap!=null)
+                        metrics.diskHits.increment();
+                    else
+                        metrics.diskMisses.increment();
+                }
+                if (bitmap==null){
+                    long decodedBytes = 0;
+                    Semaphore permits = cache.decodePermits;
+                    try {
+                        permits.acquire();
+                    } catch (InterruptedException e) {
+                        // The pool is shutting down
+                        return;
                     }
-                    if (cont){
-                        try{
-                            Bitmap bitmap = fillCache(cache.window);
-                            if (bitmap!=null){
-                                synchronized (cache){
-                                    if (cache.getState()==CacheState.IN_UPDATE){
-                                        cache.bitmapRef = bitmap;
-                                        cache.setState(CacheState.READY);
-                                    } else {
-                                        Log.w(TAG,"fillCache operation aborted");
-                                    }
-                                }
-                            }
-                            long done = System.currentTimeMillis();
-                            if (Debug.isDebuggerConnected())
-                                Log.d(TAG,String.format("fillCache in %dms",done-start));
-                        } catch (OutOfMemoryError e){
-                                    Log.d(TAG,"CacheThread out of memory");
-                            /*
-                             *  Attempt to recover. Experience shows that if we
-                             *  do get an OutOfMemoryError, we're pretty hosed and are going down.
-                             */
-                            synchronized (cache){
-                                fillCacheOutOfMemoryError(e);
-                                if (cache.getState()==CacheState.IN_UPDATE){
-                                    cache.setState(CacheState.START_UPDATE);
-                                }
-                            }
+                    try {
+                        // The scene may have been released while this waited
+                        if (cache.running){
+                            long decodeStart = System.nanoTime();
+                            bitmap = fillCache(tileRect, level);
+                            metrics.decodeLatency.record(System.nanoTime() - decodeStart);
                         }
+                    } finally {
+                        permits.release();
+                    }
+                    if (bitmap!=null){
+                        // What was decoded, not the bitmap: a pooled one is a whole tile even at the edges
+                        int sample = 1 << level;
+                        long pixels = (long) ((tileRect.width() + sample - 1) / sample)
+                                * ((tileRect.height() + sample - 1) / sample);
+                        decodedBytes = pixels * (bitmap.getRowBytes() / Math.max(1, bitmap.getWidth()));
+                        bitmap = compositeLayers(bitmap, tileRect, level);
+                    }
+                    if (bitmap!=null){
+                        metrics.decodes.increment();
+                        metrics.decodeBytes.add(decodedBytes);
+                        if (disk!=null)
+                            disk.put(level, tx, ty, bitmap);
+                    }
+                }
+                if (cache.generation!=fill.generation){
+                    if (!viewport.intersects(tileRect))
+                        metrics.decodeWasted.add(System.nanoTime() - start);
+                }
+                if (bitmap!=null){
+                    tileCache.put(new TileCache.Tile(level, tx, ty, tileRect, bitmap));
+                    markDirty();
+                }
+            }
+        }
+
+        /**
+         * Submit every tile of the rect that isn't resident and hasn't been submitted
+         * already, in rings from the tile under (centerX,centerY) outward. The pool
+         * runs jobs of a priority in that order, so the middle of the screen sharpens first.
+         * @return false once the limit on the number of submitted tiles is reached
+         */
+        boolean submitTiles(WorkerPool pool, WorkerPool.Priority priority, Fill fill,
+                            Rect rect, int level, int limit, int centerX, int centerY){
+            if (rect.isEmpty())
+                return true;
+            int span = TileCache.tileSpan(level);
+            int tx0 = rect.left / span;
+            int ty0 = rect.top / span;
+            int tx1 = (rect.right - 1) / span;
+            int ty1 = (rect.bottom - 1) / span;
+            int cx = Math.max(tx0, Math.min(tx1, centerX / span));
+            int cy = Math.max(ty0, Math.min(ty1, centerY / span));
+            int rings = Math.max(Math.max(cx - tx0, tx1 - cx), Math.max(cy - ty0, ty1 - cy));
+            for (int r = 0; r <= rings; r++){
+                for (int ty = Math.max(ty0, cy - r); ty <= Math.min(ty1, cy + r); ty++){
+                    // The ring's top and bottom rows are whole, the rows in between just their ends
+                    int step = ty==cy - r || ty==cy + r ? 1 : 2 * r;
+                    for (int tx = cx - r; tx <= cx + r; tx += step){
+                        if (tx < tx0 || tx > tx1)
+                            continue;
+                        if (!submitTile(pool, priority, fill, level, tx, ty, limit))
+                            return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /** @return false once the limit on the number of submitted tiles is reached */
+        boolean submitTile(WorkerPool pool, WorkerPool.Priority priority, Fill fill,
+                           int level, int tx, int ty, int limit){
+            if (submitted.size() >= limit)
+                return false;
+            if (!submitted.add(TileCache.key(level, tx, ty)))
+                return true;
+            if (tileCache.get(level, tx, ty)==null){
+                metrics.tileMisses.increment();
+                fill.remaining.incrementAndGet();
+                pool.submit(new DecodeTile(priority, level, tx, ty, fill));
+            } else
+                metrics.tileHits.increment();
+            return true;
+        }
+
+        /**
+         * Submit the tiles along a fling's path, starting where it ends and walking
+         * back towards where it started, half a viewport at a time. We stop well
+         * short of the tile cache's budget so the prefetch can't evict itself.
+         */
+        void submitFlingPath(WorkerPool pool, Fill fill,
+                             Point from, Point to, int viewportWidth, int viewportHeight, int level){
+            int limit = (int) Math.max(1, tileCache.getMaxBytes() * 3 / 4 / TileCache.TILE_BYTES);
+            int dx = to.x - from.x;
+            int dy = to.y - from.y;
+            int step = Math.max(1, Math.min(viewportWidth, viewportHeight) / 2);
+            int steps = (int) Math.ceil(Math.hypot(dx, dy) / step);
+            for (int i = steps; i >= 0; i--){
+                int x = from.x + (steps==0 ? 0 : dx * i / steps);
+                int y = from.y + (steps==0 ? 0 : dy * i / steps);
+                pathRect.set(x, y, x + viewportWidth, y + viewportHeight);
+                if (!pathRect.intersect(0, 0, size.x, size.y)
+                        || !submitTiles(pool, WorkerPool.Priority.PREFETCH, fill,
+                                pathRect, level, limit, pathRect.centerX(), pathRect.centerY()))
+                    return;
+            }
+        }
+
+        /**
+         * Work out the window and submit its tiles. Only one update runs at a
+         * time; if another is requested meanwhile it runs once this one is done.
+         */
+        @Override
+        public void run() {
+            synchronized (this){
+                long start = System.nanoTime();
+                WorkerPool pool;
+                Fill fill;
+                boolean flinging;
+                int level;
+                synchronized (cache) {
+                    cache.updateQueued = false;
+                    pool = cache.workers;
+                    if (pool==null || cache.getState()!=CacheState.START_UPDATE)
+                        return;
+                    cache.setState(CacheState.IN_UPDATE);
+                    fill = new Fill(cache.generation, start);
+                }
+                viewport.read(viewportState);
+                viewportRect.set(viewportState.window);
+                level = levelForZoom(viewportState.zoom);
+                synchronized (cache) {
+                    if (cache.getState()!=CacheState.IN_UPDATE || cache.generation!=fill.generation)
+                        return;
+                    cache.level = level;
+                    flinging = cache.flinging;
+                    flingFrom.set(cache.flingFrom.x, cache.flingFrom.y);
+                    flingTo.set(cache.flingTo.x, cache.flingTo.y);
+                    if (flinging){
+                        // Cache around where the fling will come to rest
+                        viewportRect.offsetTo(flingTo.x, flingTo.y);
                     }
+                    cache.window.set(calculateCacheWindow(viewportRect, level));
+                    windowRect.set(cache.window);
                 }
+                submitted.clear();
+                // First come the tiles on screen (or where the fling will come
+                // to rest), then the rest of the window
+                int centerX = viewportRect.centerX();
+                int centerY = viewportRect.centerY();
+                submitTiles(pool, WorkerPool.Priority.VISIBLE, fill,
+                        viewportRect, level, Integer.MAX_VALUE, centerX, centerY);
+                if (flinging)
+                    submitFlingPath(pool, fill, flingFrom, flingTo, viewportRect.width(), viewportRect.height(), level);
+                submitTiles(pool, WorkerPool.Priority.PREFETCH, fill,
+                        windowRect, level, Integer.MAX_VALUE, centerX, centerY);
+                fill.done();
             }
         }
     }
@@ -0,0 +1,21 @@
+package com.sigseg.android.view;
+
+import com.sigseg.android.view.archive.TileArchive;
+
+import java.io.IOException;
+
+/**
+ * A {@link TileSourceScene} read out of a {@link TileArchive} made by the
+ * tiler, through an {@link ArchiveTileSource}. Neither opening the scene nor
+ * panning depends on how big the original image was.
+ */
+public class TileArchiveScene extends TileSourceScene {
+    public TileArchiveScene(TileArchive archive) throws IOException {
+        this(archive, OpenProgress.NONE);
+    }
+
+    /** Open a scene, saying how much of the sample has been read as it goes */
+    public TileArchiveScene(TileArchive archive, OpenProgress progress) throws IOException {
+        super(new ArchiveTileSource(archive), progress);
+    }
+}
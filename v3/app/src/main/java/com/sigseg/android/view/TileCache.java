@@ -0,0 +1,252 @@
+package com.sigseg.android.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.graphics.Rect;
+
+import java.util.Arrays;
+
+/**
+ * A least-recently-used cache of decoded tiles. Tiles are keyed by
+ * (level, tileX, tileY) and the cache is bounded by the number of bytes
+ * held in the tile bitmaps rather than by the number of tiles.
+ *
+ * All methods synchronize on the TileCache itself, so a caller that needs
+ * to look at several tiles consistently (e.g. to draw a frame) can simply
+ * hold that same lock. Evicted bitmaps are handed to the {@link BitmapPool}
+ * while the lock is held, so a tile bitmap is never reused while someone
+ * holding the lock is drawing it.
+ *
+ * Looking a tile up allocates nothing -- the keys are never boxed and the
+ * LRU order is a list threaded through the tiles themselves -- because the
+ * draw thread looks up every tile on screen on every frame.
+ */
+public class TileCache {
+    /** The width and height of a tile in scene pixels at level 0 */
+    public static final int TILE_SIZE = 256;
+    /** The bytes a whole RGB_565 tile takes */
+    static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 2;
+
+    /** A decoded piece of the scene */
+    static class Tile {
+        final int level;
+        final int x;
+        final int y;
+        final long key;
+        /** Where the tile lives within the scene */
+        final Rect rect = new Rect();
+        final Bitmap bitmap;
+        final int bytes;
+
+        Tile(int level, int x, int y, Rect rect, Bitmap bitmap){
+            this.level = level;
+            this.x = x;
+            this.y = y;
+            this.key = key(level, x, y);
+            this.rect.set(rect);
+            this.bitmap = bitmap;
+            this.bytes = bitmap.getRowBytes() * bitmap.getHeight();
+        }
+
+        /** The LRU list, only touched while the TileCache is locked */
+        private Tile older;
+        private Tile newer;
+    }
+
+    /**
+     * The tiles, open addressed by key with linear probing. It's never more
+     * than half full, so a miss ends at an empty slot after a probe or two.
+     */
+    private Tile[] table = new Tile[64];
+    private int count = 0;
+    /** The ends of the LRU list: eviction starts at the eldest */
+    private Tile eldest;
+    private Tile youngest;
+    /** Where evicted tile bitmaps go, so their pixels can be decoded into again */
+    private final BitmapPool pool;
+    private long maxBytes;
+    /** What the tiles on screen take; they're kept even if that's more than maxBytes */
+    private long minBytes = 0;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    TileCache(long maxBytes, BitmapPool pool){
+        this.maxBytes = maxBytes;
+        this.pool = pool;
+    }
+
+    static long key(int level, int x, int y){
+        return ((long)level << 48) | ((long)(x & 0xffffff) << 24) | (y & 0xffffff);
+    }
+
+    /** How many scene pixels a tile spans at a level */
+    static int tileSpan(int level){
+        return TILE_SIZE << level;
+    }
+
+    /** Set the scene rect covered by tile (x,y) at a level, clipped to the scene */
+    static void tileRect(int level, int x, int y, Point sceneSize, Rect rect){
+        int span = tileSpan(level);
+        int left = x * span;
+        int top = y * span;
+        rect.set(left, top,
+                Math.min(left + span, sceneSize.x),
+                Math.min(top + span, sceneSize.y));
+    }
+
+    /**
+     * Look up a tile for the cache updater. This counts as a hit or a miss and
+     * refreshes the tile's position in the LRU order.
+     */
+    synchronized Tile get(int level, int x, int y){
+        Tile tile = touch(key(level, x, y));
+        if (tile==null)
+            misses++;
+        else
+            hits++;
+        return tile;
+    }
+
+    /**
+     * Look up a tile for drawing. This does not count towards the statistics, but it
+     * does refresh the LRU order -- tiles on screen are the last ones we want evicted.
+     */
+    synchronized Tile peek(int level, int x, int y){
+        return touch(key(level, x, y));
+    }
+
+    synchronized void put(Tile tile){
+        Tile old = remove(tile.key);
+        if (old!=null){
+            bytes -= old.bytes;
+            pool.release(old.bitmap);
+        }
+        if ((count + 1) * 2 > table.length)
+            resize(table.length * 2);
+        table[find(tile.key)] = tile;
+        count++;
+        link(tile);
+        bytes += tile.bytes;
+        trimTo(Math.max(maxBytes, minBytes));
+    }
+
+    synchronized void setMaxBytes(long maxBytes){
+        this.maxBytes = maxBytes;
+        trimTo(Math.max(maxBytes, minBytes));
+    }
+
+    /**
+     * Keep at least this many bytes of tiles, however small the budget: the
+     * tiles on screen. A budget that couldn't hold them would evict each one
+     * as soon as it was decoded, and the screen would never sharpen.
+     */
+    synchronized void setMinBytes(long minBytes){
+        this.minBytes = minBytes;
+    }
+
+    synchronized void clear(){
+        for (Tile tile = eldest; tile!=null; tile = tile.newer)
+            pool.release(tile.bitmap);
+        Arrays.fill(table, null);
+        count = 0;
+        eldest = youngest = null;
+        bytes = 0;
+    }
+
+    private void trimTo(long limit){
+        while (bytes > limit && eldest!=null){
+            Tile tile = remove(eldest.key);
+            bytes -= tile.bytes;
+            evictions++;
+            pool.release(tile.bitmap);
+        }
+    }
+
+    //region the table and the LRU list
+    private static int hash(long key){
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /** The slot holding key, or the empty slot where it would go */
+    private int find(long key){
+        int mask = table.length - 1;
+        int i = hash(key) & mask;
+        while (table[i]!=null && table[i].key!=key)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    /** Look a tile up and make it the youngest */
+    private Tile touch(long key){
+        Tile tile = table[find(key)];
+        if (tile!=null && tile!=youngest){
+            unlink(tile);
+            link(tile);
+        }
+        return tile;
+    }
+
+    private Tile remove(long key){
+        int mask = table.length - 1;
+        int i = find(key);
+        Tile tile = table[i];
+        if (tile==null)
+            return null;
+        // Shift the rest of the run back so that no probe stops short at the hole
+        int hole = i;
+        for (int j = (i + 1) & mask; table[j]!=null; j = (j + 1) & mask){
+            int home = hash(table[j].key) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)){
+                table[hole] = table[j];
+                hole = j;
+            }
+        }
+        table[hole] = null;
+        count--;
+        unlink(tile);
+        return tile;
+    }
+
+    private void resize(int length){
+        Tile[] old = table;
+        table = new Tile[length];
+        for (Tile tile : old)
+            if (tile!=null)
+                table[find(tile.key)] = tile;
+    }
+
+    private void link(Tile tile){
+        tile.older = youngest;
+        tile.newer = null;
+        if (youngest!=null)
+            youngest.newer = tile;
+        else
+            eldest = tile;
+        youngest = tile;
+    }
+
+    private void unlink(Tile tile){
+        if (tile.older!=null)
+            tile.older.newer = tile.newer;
+        else
+            eldest = tile.newer;
+        if (tile.newer!=null)
+            tile.newer.older = tile.older;
+        else
+            youngest = tile.older;
+        tile.older = tile.newer = null;
+    }
+    //endregion
+
+    //region statistics
+    public synchronized long getHitCount(){ return hits; }
+    public synchronized long getMissCount(){ return misses; }
+    public synchronized long getEvictionCount(){ return evictions; }
+    public synchronized long getBytes(){ return bytes; }
+    public synchronized long getMaxBytes(){ return maxBytes; }
+    public synchronized int getTileCount(){ return count; }
+    //endregion
+}
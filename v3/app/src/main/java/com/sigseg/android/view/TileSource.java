@@ -0,0 +1,77 @@
+package com.sigseg.android.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where a {@link TileSourceScene} gets its pixels. A source knows how big the
+ * image is and how small it can be decoded, and decodes any region of it at
+ * 1/2^level into a bitmap the caller hands it. The rest of what it says about
+ * itself is how the scene tunes its cache: how many decodes to run at once,
+ * and how far ahead of the viewport it's worth reading.
+ */
+public interface TileSource extends Closeable {
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * How many levels the source can be decoded at: level L is 1/2^L of full
+     * size, and the last level should be about a tile.
+     */
+    int getLevels();
+
+    /**
+     * The size of the tiles the source is stored in, or 0 if it isn't stored
+     * as tiles. Regions that are whole stored tiles decode fastest.
+     */
+    default int getTileSize(){
+        return 0;
+    }
+
+    /** Whether {@link #decodeTile} may be called from more than one thread at a time */
+    default boolean isConcurrent(){
+        return false;
+    }
+
+    /**
+     * Whether any tile can be read at any level in about the same time,
+     * without decoding the image around it. A source that can doesn't need
+     * a cache window much bigger than the viewport.
+     */
+    default boolean isRandomAccess(){
+        return false;
+    }
+
+    /**
+     * Something that changes whenever the pixels do, so decoded tiles can be
+     * kept on disk between runs; 0 if there's no telling.
+     */
+    default long getFingerprint(){
+        return 0;
+    }
+
+    /**
+     * Decode a region of the source at 1/2^level into the top left corner of
+     * a bitmap. This is called off the UI thread and may take a while.
+     * @param rect The region, in full resolution pixels, within the source
+     * @param level Decode at 1/2^level: 0=full resolution, 1=1/2, 2=1/4, etc
+     * @param into A mutable RGB_565 bitmap at least as big as the decoded
+     * region, or null to have the source make one the size of the region
+     * @return The bitmap holding the region: into if it could be used,
+     * otherwise a new one; null if it couldn't be decoded
+     */
+    Bitmap decodeTile(Rect rect, int level, Bitmap into) throws IOException;
+
+    /**
+     * Let go of whatever the source decodes with: decoders, open files.
+     * The scene calls it once it's no longer shown and its decodes are done,
+     * and nothing is decoded afterwards.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,275 @@
+package com.sigseg.android.view;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.graphics.*;
+import android.util.Log;
+
+/**
+ * A Scene over any {@link TileSource}. Tiles are decoded straight into
+ * bitmaps from the pool, and the sample is one of the source's smaller levels
+ * decoded up front. How the cache is tuned follows from what the source says
+ * about itself: a concurrent source gets a decode per core, and a random
+ * access one a cache window of one tile round the viewport instead of as much
+ * as the memory budget allows.
+ */
+public class TileSourceScene extends Scene {
+    private static final String TAG=TileSourceScene.class.getSimpleName();
+
+    private static final boolean DEBUG = false;
+
+    /**
+     * Which level the sample comes from: 1=1/2, 2=1/4, etc. A smaller level is
+     * used if that one doesn't fit the governor's sample budget.
+     */
+    private static final int SAMPLE_LEVEL = 2;
+
+    /** How many bytes does one pixel use? */
+    private final int BYTES_PER_PIXEL = 4;
+
+    private final TileSource source;
+    private final int sampleShift;
+    private final Bitmap sampleBitmap;
+
+    public TileSourceScene(TileSource source) throws IOException {
+        this(source, OpenProgress.NONE);
+    }
+
+    /**
+     * Open a scene, saying how much of the sample has been decoded as it goes.
+     * That takes a while, so call it off the UI thread.
+     */
+    public TileSourceScene(TileSource source, OpenProgress progress) throws IOException {
+        this(source, progress, MemoryGovernor.forHeap());
+    }
+
+    /**
+     * Open a scene whose sample and caches are sized by a governor, usually
+     * one made from the ActivityManager's memory class. The scene owns the
+     * source from here on: if it can't be opened -- cancelled included --
+     * the source is closed before this throws.
+     */
+    public TileSourceScene(TileSource source, OpenProgress progress, MemoryGovernor governor) throws IOException {
+        this.source = source;
+        Bitmap sample = null;
+        try {
+            setSceneSize(source.getWidth(), source.getHeight());
+
+            sampleShift = sampleLevel(source, governor.getSampleBytes());
+            sampleBitmap = sample = decodeSample(progress);
+
+            setMemoryGovernor(governor);
+            initialize();
+        } catch (IOException | RuntimeException | Error e) {
+            if (sample!=null)
+                sample.recycle();
+            try {
+                source.close();
+            } catch (IOException closing) {
+                e.addSuppressed(closing);
+            }
+            throw e;
+        }
+    }
+
+    public TileSource getTileSource(){
+        return source;
+    }
+
+    /** The level nearest {@link #SAMPLE_LEVEL} at which the sample fits the budget */
+    private static int sampleLevel(TileSource source, long sampleBytes){
+        int level = Math.min(SAMPLE_LEVEL, source.getLevels() - 1);
+        while (level < source.getLevels() - 1
+                && (long) (source.getWidth() >> level) * (source.getHeight() >> level) * 2 > sampleBytes)
+            level++;
+        return level;
+    }
+
+    /**
+     * The whole scene at 1/2^sampleShift. A tiled source is read a stored
+     * tile at a time; anything else in one horizontal band per decode thread.
+     * The regions are decoded all at once if the source allows it, and
+     * stitched together on this thread. If that fails, the half drawn sample
+     * and any region not yet drawn into it are recycled.
+     */
+    private Bitmap decodeSample(OpenProgress progress) throws IOException {
+        final int shift = sampleShift;
+        Point size = getSceneSize();
+        Bitmap sample = Bitmap.createBitmap(
+                (size.x + (1 << shift) - 1) >> shift,
+                (size.y + (1 << shift) - 1) >> shift,
+                Bitmap.Config.RGB_565);
+        // Regions start on a multiple of the sample size, so they line up exactly
+        int parallelism = getDecodeParallelism();
+        int regionWidth = source.getTileSize()==0 ? size.x : source.getTileSize() << shift;
+        int regionHeight = source.getTileSize()==0
+                ? ((size.y + parallelism - 1) / parallelism + (1 << shift) - 1) >> shift << shift
+                : source.getTileSize() << shift;
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        List<Rect> rects = new ArrayList<>();
+        List<Future<Bitmap>> regions = new ArrayList<>();
+        int drawn = 0;
+        try {
+            for (int top = 0; top < size.y; top += regionHeight){
+                for (int left = 0; left < size.x; left += regionWidth){
+                    final Rect rect = new Rect(left, top,
+                            Math.min(size.x, left + regionWidth), Math.min(size.y, top + regionHeight));
+                    rects.add(rect);
+                    regions.add(executor.submit(() -> source.decodeTile(rect, shift, null)));
+                }
+            }
+            Canvas c = new Canvas(sample);
+            for (int i = 0; i < regions.size(); i++){
+                Bitmap region = regions.get(i).get();
+                if (region==null)
+                    throw new IOException("can't decode the sample");
+                c.drawBitmap(region, rects.get(i).left >> shift, rects.get(i).top >> shift, null);
+                region.recycle();
+                drawn = i + 1;
+                progress.onProgress((float) drawn / regions.size());
+            }
+            drawn = -1;
+            return sample;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("opening the scene was cancelled");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof OutOfMemoryError)
+                throw (OutOfMemoryError) e.getCause();
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("can't decode the sample", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            if (drawn >= 0){
+                sample.recycle();
+                recycleRegions(regions.subList(drawn, regions.size()));
+            }
+        }
+    }
+
+    /** Recycle whichever regions finished decoding; the rest were cancelled */
+    private static void recycleRegions(List<Future<Bitmap>> regions){
+        for (Future<Bitmap> region : regions){
+            if (!region.isDone() || region.isCancelled())
+                continue;
+            try {
+                Bitmap bitmap = region.get();
+                if (bitmap!=null)
+                    bitmap.recycle();
+            } catch (InterruptedException | ExecutionException ignored) {
+                // Done, so get() doesn't wait; a failed decode left nothing to recycle
+            }
+        }
+    }
+
+    @Override
+    protected int getDecodeParallelism() {
+        return source.isConcurrent() ? Runtime.getRuntime().availableProcessors() : 1;
+    }
+
+    @Override
+    public long getSourceFingerprint() {
+        return source.getFingerprint();
+    }
+
+    @Override
+    protected int getMaxLevel() {
+        return source.getLevels() - 1;
+    }
+
+    /**
+     * Every tile decodes into a full tile sized bitmap from the pool -- edge
+     * tiles just leave some of it unused -- so there's only one bucket to
+     * reuse. Zoomed out, the source decodes smaller, so a tile never costs
+     * more than that.
+     */
+    @Override
+    protected Bitmap fillCache(Rect rectOfCache, int level) {
+        Bitmap bitmap = getBitmapPool().get(TileCache.TILE_SIZE, TileCache.TILE_SIZE, Bitmap.Config.RGB_565);
+        Bitmap decoded = null;
+        try {
+            decoded = source.decodeTile(rectOfCache, level, bitmap);
+        } catch (InterruptedIOException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            Log.e(TAG, "can't read tile at " + rectOfCache.toShortString(), e);
+        }
+        if (decoded!=bitmap)
+            getBitmapPool().release(bitmap);
+        return decoded;
+    }
+
+    @Override
+    protected void fillCacheOutOfMemoryError(OutOfMemoryError error) {
+        if (getMemoryGovernor().onOutOfMemory())
+            applyMemoryBudget();
+        Log.e(TAG,"caught oom -- " + getMemoryGovernor());
+    }
+
+    private final Rect calculatedCacheWindowRect = new Rect();
+    private final PointF panVelocity = new PointF();
+    @Override
+    protected Rect calculateCacheWindow(Rect viewportRect, int level) {
+        if (source.isRandomAccess())
+            return calculateTileMarginWindow(viewportRect, level);
+        // Decoded at 1/2^level, each scene pixel costs a quarter as much per level
+        long bytesToUse = getMemoryGovernor().getWindowBytes() << (2 * level);
+
+        // Most of the margin goes where the viewport is heading
+        getPanVelocity(panVelocity);
+        MotionWindow.calculate(viewportRect, bytesToUse / BYTES_PER_PIXEL, panVelocity,
+                getSceneSize(), calculatedCacheWindowRect);
+        if (DEBUG) Log.d(TAG,"new cache.originRect = "+calculatedCacheWindowRect.toShortString()+" velocity="+panVelocity);
+        return calculatedCacheWindowRect;
+    }
+
+    /**
+     * Tiles come out of a random access source in O(1) without decoding
+     * anything else, so there's no need for a big cache window; one tile of
+     * margin all round keeps ahead of ordinary panning.
+     */
+    private Rect calculateTileMarginWindow(Rect viewportRect, int level) {
+        Point size = getSceneSize();
+        int margin = TileCache.TILE_SIZE << level;
+        calculatedCacheWindowRect.set(
+                Math.max(0, viewportRect.left - margin),
+                Math.max(0, viewportRect.top - margin),
+                Math.min(size.x, viewportRect.right + margin),
+                Math.min(size.y, viewportRect.bottom + margin));
+        return calculatedCacheWindowRect;
+    }
+
+    @Override
+    protected void drawSampleRectIntoBitmap(Bitmap bitmap, Rect rectOfSample) {
+        drawSampleRect(sampleBitmap, sampleShift, bitmap, rectOfSample);
+    }
+
+    @Override
+    protected void drawSampleRectOntoCanvas(Canvas canvas, Rect dst, Rect rectOfSample) {
+        drawSampleRect(sampleBitmap, sampleShift, canvas, dst, rectOfSample);
+    }
+
+    @Override
+    protected void drawComplete(Canvas canvas) {
+    }
+
+    /** Closes the source and recycles the sample too */
+    @Override
+    public void release() {
+        super.release();
+        try {
+            source.close();
+        } catch (IOException e) {
+            Log.w(TAG, "can't close the tile source", e);
+        }
+        sampleBitmap.recycle();
+    }
+}
@@ -0,0 +1,207 @@
+package com.sigseg.android.view;
+
+import android.util.Log;
+
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed number of worker threads that run {@link Job}s by priority: work
+ * that reacts to input first, then the tiles on screen, then prefetching.
+ * Jobs of the same priority run in the order they were submitted. Several
+ * scenes can share a pool; each tags its jobs with itself, so it can take
+ * back the ones that haven't started when it stops.
+ *
+ * <p>The pool counts how deep its queue is, how busy its workers are and how
+ * long jobs wait for one, so that the number of workers can be tuned.</p>
+ */
+public class WorkerPool {
+    private static final String TAG = WorkerPool.class.getSimpleName();
+
+    /** What a job is for, most urgent first */
+    public enum Priority {
+        /** Responding to the user: working out what the viewport needs now that it's moved */
+        INPUT,
+        /** Decoding tiles that are on screen */
+        VISIBLE,
+        /** Decoding tiles that might be, soon */
+        PREFETCH
+    }
+
+    /**
+     * Something for a worker to do. A job may be submitted again once it has
+     * started, so one that's submitted over and over needn't be allocated
+     * every time.
+     */
+    public abstract static class Job implements Runnable {
+        final Object owner;
+        final Priority priority;
+        /** Set on submit, for first in first out within a priority */
+        long sequence;
+        long submitted;
+
+        /** @param owner Whoever can {@link #cancel(Object)} the job */
+        protected Job(Object owner, Priority priority){
+            this.owner = owner;
+            this.priority = priority;
+        }
+    }
+
+    private static final Comparator<Job> ORDER = (a, b) -> {
+        int c = a.priority.compareTo(b.priority);
+        return c!=0 ? c : Long.compare(a.sequence, b.sequence);
+    };
+
+    private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<>(64, ORDER);
+    private final Thread[] workers;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicIntegerArray queued = new AtomicIntegerArray(Priority.values().length);
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final Metrics.Histogram queueWait = new Metrics.Histogram();
+    private final long startNanos = System.nanoTime();
+    private volatile boolean shutdown = false;
+
+    /**
+     * Start the workers
+     * @param name What to call them; each gets its number on the end
+     */
+    public WorkerPool(String name, int threads){
+        workers = new Thread[Math.max(1, threads)];
+        for (int i=0; i<workers.length; i++){
+            workers[i] = new Thread(this::work, name + "-" + i);
+            workers[i].start();
+        }
+    }
+
+    /** Queue a job. It's dropped if the pool has been shut down. */
+    public void submit(Job job){
+        if (shutdown)
+            return;
+        job.sequence = sequence.getAndIncrement();
+        job.submitted = System.nanoTime();
+        queued.incrementAndGet(job.priority.ordinal());
+        queue.offer(job);
+    }
+
+    /**
+     * Take back every job of an owner that hasn't started yet. Jobs that are
+     * running are left to finish.
+     */
+    public void cancel(Object owner){
+        queue.removeIf(job -> {
+            if (job.owner!=owner)
+                return false;
+            queued.decrementAndGet(job.priority.ordinal());
+            return true;
+        });
+    }
+
+    /**
+     * Stop the pool: drop every job that hasn't started, interrupt the ones
+     * that have, and wait for every worker to finish. Nothing runs once this
+     * returns.
+     */
+    public void shutdown(){
+        shutdown = true;
+        queue.clear();
+        for (Thread worker : workers)
+            worker.interrupt();
+        for (Thread worker : workers){
+            boolean retry = true;
+            while (retry) {
+                try {
+                    worker.join();
+                    retry = false;
+                } catch (InterruptedException e) {
+                    // we will try it again and again...
+                }
+            }
+        }
+        for (int i=0; i<queued.length(); i++)
+            queued.set(i, 0);
+    }
+
+    public boolean isShutdown(){
+        return shutdown;
+    }
+
+    private void work(){
+        while (!shutdown){
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queued.decrementAndGet(job.priority.ordinal());
+            long start = System.nanoTime();
+            queueWait.record(start - job.submitted);
+            active.incrementAndGet();
+            try {
+                job.run();
+            } catch (Throwable t) {
+                Log.e(TAG, "job failed", t);
+            } finally {
+                active.decrementAndGet();
+                busyNanos.addAndGet(System.nanoTime() - start);
+                completed.incrementAndGet();
+                // A job that was interrupted by a shutdown mustn't leave it set for the next
+                Thread.interrupted();
+            }
+        }
+    }
+
+    //region statistics
+    public int getThreadCount(){
+        return workers.length;
+    }
+
+    /** How many jobs are waiting for a worker */
+    public int getQueueDepth(){
+        int depth = 0;
+        for (int i=0; i<queued.length(); i++)
+            depth += queued.get(i);
+        return depth;
+    }
+
+    /** How many jobs of one priority are waiting for a worker */
+    public int getQueueDepth(Priority priority){
+        return queued.get(priority.ordinal());
+    }
+
+    /** How many workers are running a job right now */
+    public int getActiveCount(){
+        return active.get();
+    }
+
+    /** How many jobs have run */
+    public long getCompletedCount(){
+        return completed.get();
+    }
+
+    /** Nanoseconds the workers have spent running jobs, counting the ones that have finished */
+    public long getBusyNanos(){
+        return busyNanos.get();
+    }
+
+    /**
+     * How much of the workers' time has gone into running jobs since the pool
+     * started, from 0 to 1. For a shorter interval, compare two readings of
+     * {@link #getBusyNanos()}.
+     */
+    public double getUtilization(){
+        long elapsed = System.nanoTime() - startNanos;
+        return elapsed<=0 ? 0 : Math.min(1, (double) busyNanos.get() / ((double) elapsed * workers.length));
+    }
+
+    /** Nanoseconds jobs waited between being submitted and a worker starting them */
+    public Metrics.Histogram.Snapshot getQueueWait(){
+        return queueWait.snapshot(false);
+    }
+    //endregion
+}
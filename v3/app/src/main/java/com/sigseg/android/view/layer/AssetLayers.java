@@ -0,0 +1,71 @@
+package com.sigseg.android.view.layer;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Raster patches shipped in the app's assets. Every image in a directory is
+ * a {@link BitmapLayer}, placed by its name: {@code 4973-1209-east-sea.jpg}
+ * has its top left corner at (4973,1209) in the scene. They're drawn in the
+ * order of their names.
+ */
+public final class AssetLayers {
+    private static final String TAG = AssetLayers.class.getSimpleName();
+    private static final Pattern NAME = Pattern.compile("(\\d+)-(\\d+)(-.*)?\\.(jpg|jpeg|png)", Pattern.CASE_INSENSITIVE);
+
+    private AssetLayers(){}
+
+    /**
+     * @param dir The asset directory, layers/ko say. It's fine if it doesn't exist.
+     * @return The patches, or {@link LayerIndex#EMPTY} if there aren't any
+     */
+    public static LayerIndex open(AssetManager assets, String dir) throws IOException {
+        String[] names = assets.list(dir);
+        if (names==null || names.length==0)
+            return LayerIndex.EMPTY;
+        Arrays.sort(names);
+        List<Layer> layers = new ArrayList<>();
+        for (String name : names){
+            Matcher m = NAME.matcher(name);
+            if (!m.matches()){
+                Log.w(TAG, "not a layer: " + dir + "/" + name);
+                continue;
+            }
+            byte[] data = read(assets, dir + "/" + name);
+            Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+            if (bitmap==null)
+                throw new IOException("can't decode layer " + dir + "/" + name);
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            layers.add(new BitmapLayer(bitmap,
+                    Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), crc.getValue()));
+        }
+        return new LayerIndex(layers);
+    }
+
+    private static byte[] read(AssetManager assets, String name) throws IOException {
+        InputStream in = assets.open(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            int n;
+            while ((n = in.read(buffer)) != -1)
+                out.write(buffer, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
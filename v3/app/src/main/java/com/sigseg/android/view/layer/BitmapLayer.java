@@ -0,0 +1,46 @@
+package com.sigseg.android.view.layer;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * A raster patch drawn over the scene at full resolution: a correction to
+ * the map, or a label baked into a picture. It's scaled down with the tile
+ * it's drawn into.
+ */
+public class BitmapLayer implements Layer {
+    private final Bitmap bitmap;
+    private final Rect bounds;
+    private final long fingerprint;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * @param bitmap The patch. It's drawn from every decode thread, so don't
+     * change or recycle it while the scene is showing it.
+     * @param left Where its top left corner goes, in scene coordinates
+     * @param top
+     * @param fingerprint Something that identifies the patch's pixels
+     */
+    public BitmapLayer(Bitmap bitmap, int left, int top, long fingerprint){
+        this.bitmap = bitmap;
+        this.bounds = new Rect(left, top, left + bitmap.getWidth(), top + bitmap.getHeight());
+        this.fingerprint = fingerprint * 31 + ((long) left << 32 | top);
+    }
+
+    @Override
+    public Rect getBounds() {
+        return bounds;
+    }
+
+    @Override
+    public void draw(Canvas canvas, Rect rectOfTile, int level) {
+        canvas.drawBitmap(bitmap, bounds.left, bounds.top, paint);
+    }
+
+    @Override
+    public long getFingerprint() {
+        return fingerprint;
+    }
+}
@@ -0,0 +1,36 @@
+package com.sigseg.android.view.layer;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+/**
+ * Something drawn over the scene: a raster patch, say, or vector overlay. A
+ * layer is composited into each tile it touches when the tile is decoded, and
+ * cached with it, so it costs nothing while panning. That means what a layer
+ * draws can't change once the scene has tiles; hand the scene a new
+ * {@link LayerIndex} instead.
+ */
+public interface Layer {
+    /**
+     * Where the layer is, in scene coordinates. It's only drawn into the
+     * tiles this touches, and must not draw outside it.
+     */
+    Rect getBounds();
+
+    /**
+     * Draw the layer. This is called on the decode threads, so it must be
+     * thread safe.
+     * @param canvas A canvas on the tile, set up so that scene coordinates
+     * land in the right place on it whatever the level
+     * @param rectOfTile The part of the scene the tile covers
+     * @param level The tile is at 1/2^level, for layers that draw less detail
+     * zoomed out
+     */
+    void draw(Canvas canvas, Rect rectOfTile, int level);
+
+    /**
+     * Something that changes whenever what the layer draws does, so tiles
+     * composited with it can be kept on disk between runs.
+     */
+    long getFingerprint();
+}
@@ -0,0 +1,154 @@
+package com.sigseg.android.view.layer;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The layers over a scene, in a quadtree by their bounds, so a tile or the
+ * viewport only ever looks at the layers it touches however many there are.
+ * A layer goes in the smallest quadrant that holds all of it, so big layers
+ * stay near the root and small ones sink. An index never changes once it's
+ * built, so the decode threads can share it without locking; to change the
+ * layers, build a new one.
+ */
+public final class LayerIndex {
+    /** How many layers a node holds before it splits into quadrants */
+    private static final int MAX_ENTRIES = 8;
+    /** How deep the tree goes; a quadrant at the bottom holds whatever lands in it */
+    private static final int MAX_DEPTH = 12;
+
+    public static final LayerIndex EMPTY = new LayerIndex(Collections.<Layer>emptyList());
+
+    /** A layer and where it came in the list, since that's the order they're drawn in */
+    private static final class Entry {
+        final Layer layer;
+        final Rect bounds;
+        final int order;
+
+        Entry(Layer layer, int order){
+            this.layer = layer;
+            this.bounds = new Rect(layer.getBounds());
+            this.order = order;
+        }
+    }
+
+    private static final Comparator<Entry> DRAW_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.order < b.order ? -1 : a.order==b.order ? 0 : 1;
+        }
+    };
+
+    private static final class Node {
+        final Rect bounds;
+        final int depth;
+        final List<Entry> entries = new ArrayList<>();
+        /** Null until the node splits */
+        Node[] quadrants;
+
+        Node(Rect bounds, int depth){
+            this.bounds = bounds;
+            this.depth = depth;
+        }
+
+        void insert(Entry entry){
+            if (quadrants!=null){
+                for (Node q : quadrants){
+                    if (q.bounds.contains(entry.bounds)){
+                        q.insert(entry);
+                        return;
+                    }
+                }
+            }
+            entries.add(entry);
+            if (quadrants==null && entries.size() > MAX_ENTRIES && depth < MAX_DEPTH
+                    && bounds.width() > 1 && bounds.height() > 1)
+                split();
+        }
+
+        private void split(){
+            int cx = bounds.centerX();
+            int cy = bounds.centerY();
+            quadrants = new Node[]{
+                    new Node(new Rect(bounds.left, bounds.top, cx, cy), depth + 1),
+                    new Node(new Rect(cx, bounds.top, bounds.right, cy), depth + 1),
+                    new Node(new Rect(bounds.left, cy, cx, bounds.bottom), depth + 1),
+                    new Node(new Rect(cx, cy, bounds.right, bounds.bottom), depth + 1),
+            };
+            List<Entry> old = new ArrayList<>(entries);
+            entries.clear();
+            for (Entry e : old)
+                insert(e);
+        }
+
+        void query(Rect rect, List<Entry> out){
+            if (!Rect.intersects(bounds, rect))
+                return;
+            for (Entry e : entries){
+                if (Rect.intersects(e.bounds, rect))
+                    out.add(e);
+            }
+            if (quadrants!=null){
+                for (Node q : quadrants)
+                    q.query(rect, out);
+            }
+        }
+    }
+
+    private final Node root;
+    private final int size;
+    private final long fingerprint;
+
+    /** @param layers Drawn in this order, the first at the bottom */
+    public LayerIndex(Collection<? extends Layer> layers){
+        List<Entry> entries = new ArrayList<>(layers.size());
+        Rect bounds = new Rect();
+        long fingerprint = 0;
+        for (Layer layer : layers){
+            Entry e = new Entry(layer, entries.size());
+            if (e.bounds.isEmpty())
+                continue;
+            entries.add(e);
+            bounds.union(e.bounds);
+            fingerprint = fingerprint * 31 + layer.getFingerprint();
+        }
+        root = new Node(bounds, 0);
+        for (Entry e : entries)
+            root.insert(e);
+        this.size = entries.size();
+        this.fingerprint = fingerprint;
+    }
+
+    public boolean isEmpty(){
+        return size==0;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    /** Changes whenever the layers, or what any of them draws, or their order does */
+    public long getFingerprint(){
+        return fingerprint;
+    }
+
+    /**
+     * Every layer that touches a rect, in the order they're drawn
+     * @param rect In scene coordinates
+     * @param out The layers are added to this
+     */
+    public void query(Rect rect, List<Layer> out){
+        if (size==0)
+            return;
+        List<Entry> found = new ArrayList<>();
+        root.query(rect, found);
+        Collections.sort(found, DRAW_ORDER);
+        for (Entry e : found)
+            out.add(e.layer);
+    }
+}
@@ -0,0 +1,52 @@
+package com.sigseg.android.view.layer;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * A vector overlay: a path in scene coordinates, drawn with a paint. Like
+ * the rest of the scene, it's scaled down with the tile it's drawn into, so
+ * a stroke width is in scene pixels too.
+ */
+public class PathLayer implements Layer {
+    private final Path path;
+    private final Paint paint;
+    private final Rect bounds = new Rect();
+    private final long fingerprint;
+
+    /**
+     * @param path The overlay, in scene coordinates. It's drawn from every
+     * decode thread, so don't change it while the scene is showing it.
+     * @param paint How to draw it; don't change that either
+     * @param fingerprint Something that identifies the path and paint
+     */
+    public PathLayer(Path path, Paint paint, long fingerprint){
+        this.path = path;
+        this.paint = paint;
+        this.fingerprint = fingerprint;
+        RectF b = new RectF();
+        path.computeBounds(b, true);
+        b.roundOut(bounds);
+        // Leave room for half the stroke either side of the path
+        int margin = (int) Math.ceil(paint.getStrokeWidth() / 2);
+        bounds.inset(-margin, -margin);
+    }
+
+    @Override
+    public Rect getBounds() {
+        return bounds;
+    }
+
+    @Override
+    public void draw(Canvas canvas, Rect rectOfTile, int level) {
+        canvas.drawPath(path, paint);
+    }
+
+    @Override
+    public long getFingerprint() {
+        return fingerprint;
+    }
+}
@@ -0,0 +1,236 @@
+package com.sigseg.android.view.archive;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/*
+ * +------------------------------------------------------------------+
+ * | header   magic "WMTA", version, width, height, tileSize, levels, |
+ * |          tileFormat                                              |
+ * | index    for every level, for every tile row by row:             |
+ * |          offset (long), length (int)                             |
+ * | tiles    encoded tiles, in whatever order they were written      |
+ * +------------------------------------------------------------------+
+ */
+/**
+ * A single file holding a multi-resolution pyramid of fixed size tiles, with
+ * an offset index in its header so any tile can be found in O(1).
+ *
+ * Level 0 is the full resolution image; every level after that is half the
+ * size of the one before, down to the first level that fits in one tile.
+ * Every tile is exactly tileSize square -- the tiles on the right and bottom
+ * edges are padded -- so decoded tiles are all the same size.
+ *
+ * Reads are positional (or straight out of a mapping), so a TileArchive may be
+ * read from any number of threads at once.
+ */
+public class TileArchive implements Closeable {
+    static final int MAGIC = 0x574d5441; // "WMTA"
+    static final int VERSION = 1;
+    /** magic, version, width, height, tileSize, levels, tileFormat */
+    static final int HEADER_BYTES = 7 * 4;
+    /** offset, length */
+    static final int INDEX_ENTRY_BYTES = 8 + 4;
+
+    /** Tiles are baseline JPEGs */
+    public static final int FORMAT_JPEG = 1;
+
+    private final FileChannel channel;
+    private final Closeable owner;
+    /** Where the archive starts within the channel */
+    private final long base;
+    /** null if the archive is too big to map */
+    private final MappedByteBuffer mapped;
+
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int levels;
+    private final int tileFormat;
+    private final int[] columns;
+    private final int[] rows;
+    /** Where each level's entries start in offsets[] and lengths[] */
+    private final int[] firstTile;
+    private final long[] offsets;
+    private final int[] lengths;
+    /** The archive's length and the CRC of its header and index */
+    private final long fingerprint;
+
+    /** Open an archive file */
+    public static TileArchive open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new TileArchive(raf.getChannel(), raf, 0, raf.length());
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read an archive that is embedded in a larger file, such as an uncompressed
+     * asset in an APK.
+     * @param owner Closed when the archive is
+     */
+    public static TileArchive open(FileChannel channel, Closeable owner, long offset, long length) throws IOException {
+        return new TileArchive(channel, owner, offset, length);
+    }
+
+    private TileArchive(FileChannel channel, Closeable owner, long base, long length) throws IOException {
+        this.channel = channel;
+        this.owner = owner;
+        this.base = base;
+        this.mapped = length <= Integer.MAX_VALUE
+                ? channel.map(FileChannel.MapMode.READ_ONLY, base, length)
+                : null;
+
+        ByteBuffer header = read(0, HEADER_BYTES);
+        if (header.getInt()!=MAGIC)
+            throw new IOException("not a tile archive");
+        int version = header.getInt();
+        if (version!=VERSION)
+            throw new IOException("unsupported tile archive version " + version);
+        width = header.getInt();
+        height = header.getInt();
+        tileSize = header.getInt();
+        levels = header.getInt();
+        tileFormat = header.getInt();
+        if (width<=0 || height<=0 || tileSize<=0 || levels<=0)
+            throw new IOException("corrupt tile archive header");
+
+        columns = new int[levels];
+        rows = new int[levels];
+        firstTile = new int[levels];
+        int tiles = layout(width, height, tileSize, levels, columns, rows, firstTile);
+        offsets = new long[tiles];
+        lengths = new int[tiles];
+        ByteBuffer index = read(HEADER_BYTES, tiles * INDEX_ENTRY_BYTES);
+        for (int i=0; i<tiles; i++){
+            offsets[i] = index.getLong();
+            lengths[i] = index.getInt();
+        }
+
+        // Every tile's offset and length are in the index, so it changes whenever the tiles do
+        byte[] bytes = new byte[HEADER_BYTES + tiles * INDEX_ENTRY_BYTES];
+        read(0, bytes.length).get(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        fingerprint = (length << 32) ^ crc.getValue();
+    }
+
+    /**
+     * How many levels a pyramid needs: halve the image until it fits in one tile.
+     */
+    public static int levelsFor(int width, int height, int tileSize){
+        int levels = 1;
+        while (width > tileSize || height > tileSize){
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+            levels++;
+        }
+        return levels;
+    }
+
+    /**
+     * Work out how many tiles each level has and where its entries start in the
+     * index.
+     * @return the total number of tiles
+     */
+    static int layout(int width, int height, int tileSize, int levels, int[] columns, int[] rows, int[] firstTile){
+        int tiles = 0;
+        for (int level=0; level<levels; level++){
+            int w = levelSize(width, level);
+            int h = levelSize(height, level);
+            columns[level] = (w + tileSize - 1) / tileSize;
+            rows[level] = (h + tileSize - 1) / tileSize;
+            firstTile[level] = tiles;
+            tiles += columns[level] * rows[level];
+        }
+        return tiles;
+    }
+
+    /** The size of a dimension at a level, rounding up like the tiler does */
+    public static int levelSize(int size, int level){
+        for (int i=0; i<level; i++)
+            size = (size + 1) / 2;
+        return size;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        if (mapped!=null){
+            ByteBuffer view = mapped.duplicate();
+            view.position((int) position);
+            view.limit((int) position + length);
+            return view.slice();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()){
+            if (channel.read(buffer, base + position + buffer.position()) < 0)
+                throw new IOException("tile archive truncated");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private int entry(int level, int x, int y){
+        if (level<0 || level>=levels || x<0 || x>=columns[level] || y<0 || y>=rows[level])
+            throw new IndexOutOfBoundsException(String.format("no tile (%d,%d) at level %d", x, y, level));
+        return firstTile[level] + y * columns[level] + x;
+    }
+
+    /** The encoded length of a tile, so callers can size their buffers */
+    public int getTileLength(int level, int x, int y){
+        return lengths[entry(level, x, y)];
+    }
+
+    /**
+     * Copy a tile's encoded bytes into dst. This is safe to call from several
+     * threads at once.
+     * @return the tile's length
+     */
+    public int readTile(int level, int x, int y, byte[] dst) throws IOException {
+        int i = entry(level, x, y);
+        int length = lengths[i];
+        if (dst.length < length)
+            throw new IllegalArgumentException("buffer too small for tile: " + length);
+        read(offsets[i], length).get(dst, 0, length);
+        return length;
+    }
+
+    /**
+     * A tile's encoded bytes. If the archive is mapped this is a view of the
+     * mapping and nothing is copied.
+     */
+    public ByteBuffer getTile(int level, int x, int y) throws IOException {
+        int i = entry(level, x, y);
+        return read(offsets[i], lengths[i]);
+    }
+
+    public int getWidth(){ return width; }
+    public int getHeight(){ return height; }
+    public int getTileSize(){ return tileSize; }
+    public int getLevels(){ return levels; }
+    public int getTileFormat(){ return tileFormat; }
+    /** Tells one archive from another, say for a cache of decoded tiles */
+    public long getFingerprint(){ return fingerprint; }
+    public int getColumns(int level){ return columns[level]; }
+    public int getRows(int level){ return rows[level]; }
+    /** The largest encoded tile in the archive */
+    public int getMaxTileLength(){
+        int max = 0;
+        for (int length : lengths)
+            max = Math.max(max, length);
+        return max;
+    }
+
+    @Override
+    public void close() throws IOException {
+        owner.close();
+    }
+}
@@ -0,0 +1,109 @@
+package com.sigseg.android.view.archive;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a {@link TileArchive}. The header and index are reserved up front;
+ * tiles are appended in whatever order they arrive, from any number of
+ * threads, and the index is filled in by {@link #close()}. An archive that
+ * can't be finished is thrown away with {@link #abort()}.
+ */
+public class TileArchiveWriter implements Closeable {
+    private final File path;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int levels;
+    private final int tileFormat;
+    private final int[] columns;
+    private final int[] rows;
+    private final int[] firstTile;
+    private final long[] offsets;
+    private final int[] lengths;
+    /** Where the next tile goes */
+    private long end;
+
+    public TileArchiveWriter(File file, int width, int height, int tileSize, int tileFormat) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.tileFormat = tileFormat;
+        this.levels = TileArchive.levelsFor(width, height, tileSize);
+        columns = new int[levels];
+        rows = new int[levels];
+        firstTile = new int[levels];
+        int tiles = TileArchive.layout(width, height, tileSize, levels, columns, rows, firstTile);
+        offsets = new long[tiles];
+        lengths = new int[tiles];
+        end = TileArchive.HEADER_BYTES + (long) tiles * TileArchive.INDEX_ENTRY_BYTES;
+
+        this.path = file;
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        this.channel = this.file.getChannel();
+    }
+
+    public int getLevels(){ return levels; }
+    public int getColumns(int level){ return columns[level]; }
+    public int getRows(int level){ return rows[level]; }
+
+    /** Write one encoded tile. This may be called from several threads at once. */
+    public void writeTile(int level, int x, int y, byte[] data, int length) throws IOException {
+        if (level<0 || level>=levels || x<0 || x>=columns[level] || y<0 || y>=rows[level])
+            throw new IndexOutOfBoundsException(String.format("no tile (%d,%d) at level %d", x, y, level));
+        int i = firstTile[level] + y * columns[level] + x;
+        long offset;
+        synchronized (this){
+            offset = end;
+            end += length;
+            offsets[i] = offset;
+            lengths[i] = length;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining())
+            channel.write(buffer, offset + buffer.position());
+    }
+
+    /** Write the header and index, and close the file */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            for (int i=0; i<lengths.length; i++){
+                if (lengths[i]==0)
+                    throw new IOException("tile " + i + " was never written");
+            }
+            ByteBuffer header = ByteBuffer.allocate(TileArchive.HEADER_BYTES + lengths.length * TileArchive.INDEX_ENTRY_BYTES);
+            header.putInt(TileArchive.MAGIC)
+                    .putInt(TileArchive.VERSION)
+                    .putInt(width)
+                    .putInt(height)
+                    .putInt(tileSize)
+                    .putInt(levels)
+                    .putInt(tileFormat);
+            for (int i=0; i<lengths.length; i++)
+                header.putLong(offsets[i]).putInt(lengths[i]);
+            header.flip();
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+        } finally {
+            file.close();
+        }
+    }
+
+    /** Give up on the archive: close the file and delete what was written of it */
+    public synchronized void abort() throws IOException {
+        try {
+            file.close();
+        } finally {
+            if (!path.delete() && path.exists())
+                throw new IOException("can't delete " + path);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.sigseg.android.view;
+
+import com.sigseg.android.benchmark.Raster;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/** The scenes the benchmarks run against */
+final class BenchmarkScenes {
+    /** The size of the NASA Blue Marble image the app ships with */
+    static final int WORLD_WIDTH = 21600;
+    static final int WORLD_HEIGHT = 10800;
+    /** A landscape 1080p screen */
+    static final int SCREEN_WIDTH = 1920;
+    static final int SCREEN_HEIGHT = 1080;
+
+    private BenchmarkScenes(){}
+
+    /** A world sized InputStreamScene over a stand-in raster, its viewport the size of the screen */
+    static InputStreamScene world() throws IOException {
+        InputStreamScene scene = new InputStreamScene(
+                new ByteArrayInputStream(Raster.encode(WORLD_WIDTH, WORLD_HEIGHT)));
+        scene.getViewport().setSize(SCREEN_WIDTH, SCREEN_HEIGHT);
+        scene.getViewport().setOrigin(WORLD_WIDTH / 2, WORLD_HEIGHT / 2);
+        return scene;
+    }
+}
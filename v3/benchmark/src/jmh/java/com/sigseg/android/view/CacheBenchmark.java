@@ -0,0 +1,55 @@
+package com.sigseg.android.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+
+/**
+ * A frame: move the viewport and draw the scene, with the cache updates and
+ * decodes running on their worker pool as they do on a device. The stand-in decoders don't
+ * touch any pixels, so this is the cost of the cache state machine and of
+ * composing the viewport from the tile cache.
+ */
+@State(Scope.Thread)
+public class CacheBenchmark {
+    private Scene scene;
+    private Scene.Viewport viewport;
+    private final Canvas canvas = new Canvas(
+            Bitmap.createBitmap(BenchmarkScenes.SCREEN_WIDTH, BenchmarkScenes.SCREEN_HEIGHT, Bitmap.Config.RGB_565));
+    private int step;
+
+    @Setup
+    public void setUp() throws IOException {
+        scene = BenchmarkScenes.world();
+        viewport = scene.getViewport();
+        scene.start();
+    }
+
+    @TearDown
+    public void tearDown(){
+        scene.stop();
+    }
+
+    /** Small pans that stay inside the cache window, drawn from resident tiles */
+    @Benchmark
+    public void drawInWindow(){
+        step = (step + 1) & 15;
+        viewport.setOrigin(10000 + step, 5000 + step);
+        scene.draw(canvas);
+    }
+
+    /** Jumps that leave the cache window on every frame, so every frame restarts the cache */
+    @Benchmark
+    public void drawAcrossWindow(){
+        step = (step + 1) & 1;
+        viewport.setOrigin(step==0 ? 2000 : 16000, step==0 ? 2000 : 7000);
+        scene.draw(canvas);
+    }
+}
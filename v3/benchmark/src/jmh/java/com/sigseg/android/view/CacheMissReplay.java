@@ -0,0 +1,217 @@
+package com.sigseg.android.view;
+
+import android.graphics.Point;
+import android.graphics.PointF;
+import android.graphics.Rect;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Replays pan traces against the cache window, laid out two ways: with the
+ * same margin all round, as it was, and shaped by {@link MotionWindow} to
+ * where the viewport is heading. It counts the frames that miss, when the
+ * viewport isn't inside a window that's been decoded, and how many pixels had
+ * to be decoded. Run by {@code ./gradlew :benchmark:cacheMissReplay}.
+ *
+ * <p>The decoder is modelled rather than run: a window is ready once the
+ * pixels that weren't in the last one have been decoded, at a fixed rate.
+ * Traces recorded on a device, a line of "nanos x y" per viewport origin, can
+ * be replayed by passing their files with {@code --args}; otherwise it
+ * replays the built in ones, made from drags at finger speeds.</p>
+ */
+public final class CacheMissReplay {
+    private static final long FRAME_NANOS = 1000000000L / 60;
+    /** What TileSourceScene lets a window have out of a typical phone's 256MB heap, at level 0 */
+    private static final long WINDOW_PIXELS = (256L * 1024 * 1024 * 10 / 200) / 4;
+    /** About what BitmapRegionDecoder manages on a phone */
+    private static final long DECODE_PIXELS_PER_SECOND = 40000000L;
+    private static final long DECODE_PIXELS_PER_FRAME = DECODE_PIXELS_PER_SECOND / 60;
+
+    private static final Point SIZE = new Point(BenchmarkScenes.WORLD_WIDTH, BenchmarkScenes.WORLD_HEIGHT);
+    private static final int VW = BenchmarkScenes.SCREEN_WIDTH;
+    private static final int VH = BenchmarkScenes.SCREEN_HEIGHT;
+
+    /** Viewport origins, one a frame */
+    private static final class Trace {
+        final List<long[]> origins = new ArrayList<>();
+        long time = 0;
+        float x;
+        float y;
+
+        Trace(float x, float y){
+            this.x = x;
+            this.y = y;
+        }
+
+        /** Drag at a velocity, in pixels a second, for a while, wobbling as a finger does */
+        Trace drag(Random random, float vx, float vy, long millis){
+            for (long t = 0; t < millis * 1000000L; t += FRAME_NANOS){
+                x = clamp(x + vx / 60 + random.nextInt(5) - 2, SIZE.x - VW);
+                y = clamp(y + vy / 60 + random.nextInt(5) - 2, SIZE.y - VH);
+                add();
+            }
+            return this;
+        }
+
+        /** Hold still */
+        Trace pause(long millis){
+            for (long t = 0; t < millis * 1000000L; t += FRAME_NANOS)
+                add();
+            return this;
+        }
+
+        private void add(){
+            origins.add(new long[]{time, (long) x, (long) y});
+            time += FRAME_NANOS;
+        }
+
+        private static float clamp(float v, int max){
+            return Math.max(0, Math.min(max, v));
+        }
+    }
+
+    /** The built in traces */
+    private static Map<String, Trace> traces(){
+        Map<String, Trace> traces = new LinkedHashMap<>();
+        Random random = new Random(23);
+
+        // Flicking east along the equator, a drag at a time
+        Trace swipes = new Trace(2000, 4800);
+        for (int i = 0; i < 12; i++)
+            swipes.drag(random, 2400, 0, 300).pause(150);
+        traces.put("swipe east", swipes);
+
+        // Scrolling north, slower
+        Trace scroll = new Trace(9000, 9000);
+        for (int i = 0; i < 10; i++)
+            scroll.drag(random, 0, -1500, 400).pause(200);
+        traces.put("scroll north", scroll);
+
+        // Following a coastline to the south east
+        Trace diagonal = new Trace(1000, 1000);
+        for (int i = 0; i < 10; i++)
+            diagonal.drag(random, 1400, 900, 500).pause(100);
+        traces.put("diagonal", diagonal);
+
+        // Reading across a row, then back to the start of the next
+        Trace rows = new Trace(0, 1000);
+        for (int row = 0; row < 3; row++){
+            rows.drag(random, 1200, 0, 4000).pause(300);
+            rows.drag(random, -6000, 300, 800).pause(300);
+        }
+        traces.put("read rows", rows);
+
+        // Browsing: a new direction and speed now and then, with pauses
+        Trace browse = new Trace(10000, 5000);
+        for (int i = 0; i < 25; i++){
+            double angle = random.nextDouble() * 2 * Math.PI;
+            float speed = 300 + random.nextInt(2000);
+            browse.drag(random, (float) (speed * Math.cos(angle)), (float) (speed * Math.sin(angle)),
+                    300 + random.nextInt(900));
+            if (random.nextBoolean())
+                browse.pause(random.nextInt(600));
+        }
+        traces.put("browse", browse);
+        return traces;
+    }
+
+    /** A trace recorded on a device: "nanos x y" a line */
+    private static Trace read(String file) throws IOException {
+        Trace trace = new Trace(0, 0);
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))){
+            String line;
+            while ((line = reader.readLine()) != null){
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length == 3)
+                    trace.origins.add(new long[]{Long.parseLong(fields[0]),
+                            Long.parseLong(fields[1]), Long.parseLong(fields[2])});
+            }
+        }
+        return trace;
+    }
+
+    /** What a replay came to */
+    private static final class Result {
+        int frames;
+        int misses;
+        long decoded;
+    }
+
+    /** Replay a trace, with windows shaped by the motion or not */
+    private static Result replay(Trace trace, boolean shaped){
+        Result result = new Result();
+        MotionWindow motion = new MotionWindow();
+        PointF velocity = new PointF();
+        Rect viewport = new Rect();
+        Rect window = new Rect();
+        Rect pending = new Rect();
+        Rect kept = new Rect();
+        int readyFrame = -1;
+        for (long[] origin : trace.origins){
+            int frame = result.frames++;
+            viewport.set((int) origin[1], (int) origin[2], (int) origin[1] + VW, (int) origin[2] + VH);
+            motion.record(viewport.left, viewport.top, origin[0]);
+            if (readyFrame >= 0 && frame >= readyFrame){
+                window.set(pending);
+                readyFrame = -1;
+            }
+            if (!window.contains(viewport))
+                result.misses++;
+            // Start again whenever the viewport is outside where the cache is going
+            Rect target = readyFrame >= 0 ? pending : window;
+            if (!target.contains(viewport)){
+                if (shaped)
+                    motion.getVelocity(origin[0], velocity);
+                else
+                    velocity.set(0, 0);
+                MotionWindow.calculate(viewport, WINDOW_PIXELS, velocity, SIZE, pending);
+                long cost = (long) pending.width() * pending.height();
+                if (kept.setIntersect(pending, window))
+                    cost -= (long) kept.width() * kept.height();
+                result.decoded += cost;
+                readyFrame = frame + 1 + (int) ((cost + DECODE_PIXELS_PER_FRAME - 1) / DECODE_PIXELS_PER_FRAME);
+            }
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, Trace> traces;
+        if (args.length > 0){
+            traces = new LinkedHashMap<>();
+            for (String file : args)
+                traces.put(file, read(file));
+        } else
+            traces = traces();
+
+        System.out.printf("%dx%d viewport, %.1f Mpixel window, decoding %.0f Mpixel/s%n",
+                VW, VH, WINDOW_PIXELS / 1e6, DECODE_PIXELS_PER_SECOND / 1e6);
+        System.out.printf("%-14s %7s %18s %18s %20s%n", "trace", "frames",
+                "missed (centred)", "missed (shaped)", "Mpixels decoded");
+        int frames = 0;
+        int centredMisses = 0;
+        int shapedMisses = 0;
+        for (Map.Entry<String, Trace> entry : traces.entrySet()){
+            Result centred = replay(entry.getValue(), false);
+            Result shaped = replay(entry.getValue(), true);
+            frames += centred.frames;
+            centredMisses += centred.misses;
+            shapedMisses += shaped.misses;
+            System.out.printf("%-14s %7d %11d %5.1f%% %11d %5.1f%% %9.1f -> %7.1f%n",
+                    entry.getKey(), centred.frames,
+                    centred.misses, 100.0 * centred.misses / centred.frames,
+                    shaped.misses, 100.0 * shaped.misses / shaped.frames,
+                    centred.decoded / 1e6, shaped.decoded / 1e6);
+        }
+        System.out.printf("%-14s %7d %11d %5.1f%% %11d %5.1f%%%n", "all", frames,
+                centredMisses, 100.0 * centredMisses / frames,
+                shapedMisses, 100.0 * shapedMisses / frames);
+    }
+}
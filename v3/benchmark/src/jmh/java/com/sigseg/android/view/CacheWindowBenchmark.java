@@ -0,0 +1,38 @@
+package com.sigseg.android.view;
+
+import android.graphics.Rect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * How long it takes to work out the cache window around a viewport. This runs
+ * with the cache lock held every time the cache restarts. The budget depends
+ * on the heap, so the benchmark JVM's heap is fixed by the build.
+ */
+@State(Scope.Thread)
+public class CacheWindowBenchmark {
+    @Param({"0", "2"})
+    public int level;
+
+    private InputStreamScene scene;
+    private final Rect viewportRect = new Rect();
+
+    @Setup
+    public void setUp() throws IOException {
+        scene = BenchmarkScenes.world();
+        int w = BenchmarkScenes.SCREEN_WIDTH << level;
+        int h = BenchmarkScenes.SCREEN_HEIGHT << level;
+        viewportRect.set(4000, 2000, 4000 + w, 2000 + h);
+    }
+
+    @Benchmark
+    public Rect calculateCacheWindow(){
+        return scene.calculateCacheWindow(viewportRect, level);
+    }
+}
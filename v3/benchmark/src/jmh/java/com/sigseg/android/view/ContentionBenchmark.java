@@ -0,0 +1,65 @@
+package com.sigseg.android.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A touch thread moving the viewport while the draw thread draws frames as
+ * fast as it can. The touch thread's latency, especially its tail, is how
+ * long it waits on anything the draw thread holds. Blits cost what they
+ * would on a device, about a nanosecond a pixel, so a lock held across one
+ * shows up.
+ */
+@State(Scope.Group)
+@Fork(jvmArgsAppend = "-Dstandin.blitNanosPerPixel=1")
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ContentionBenchmark {
+    private Scene scene;
+    private Scene.Viewport viewport;
+    private final Canvas canvas = new Canvas(
+            Bitmap.createBitmap(BenchmarkScenes.SCREEN_WIDTH, BenchmarkScenes.SCREEN_HEIGHT, Bitmap.Config.RGB_565));
+    private int step;
+
+    @Setup
+    public void setUp() throws IOException {
+        scene = BenchmarkScenes.world();
+        viewport = scene.getViewport();
+        scene.start();
+    }
+
+    @TearDown
+    public void tearDown(){
+        scene.stop();
+    }
+
+    @Benchmark
+    @Group("touchWhileDrawing")
+    @GroupThreads(1)
+    public void touch(){
+        step = (step + 1) & 63;
+        viewport.setOrigin(10000 + step, 5000 + step);
+    }
+
+    @Benchmark
+    @Group("touchWhileDrawing")
+    @GroupThreads(1)
+    public void draw(){
+        scene.draw(canvas);
+    }
+}
@@ -0,0 +1,100 @@
+package com.sigseg.android.view;
+
+import android.graphics.Point;
+import android.widget.Scroller;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How much CPU a fling costs the thread that animates it, two ways: the way
+ * the old TouchThread did it, calling the Scroller and moving the viewport in
+ * a loop until the fling is over, and the way the draw thread does it now, a
+ * step per 60Hz frame. Drawing the frames costs the same either way, so it's
+ * left out. Run by {@code ./gradlew :benchmark:flingCpu}.
+ */
+public final class FlingCpuMeasurement {
+    private static final long FRAME_NANOS = 1000000000L / 60;
+    /** A hard fling, in pixels a second */
+    private static final int VELOCITY = 8000;
+    private static final int FLINGS = 5;
+
+    private final Scene scene;
+    private final Scroller scroller = new Scroller();
+    private final Point origin = new Point();
+    private final Point viewSize = new Point();
+    private final Point sceneSize = new Point();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private FlingCpuMeasurement(Scene scene){
+        this.scene = scene;
+    }
+
+    private void startFling(int direction){
+        scene.getViewport().getOrigin(origin);
+        scene.getViewport().getSize(viewSize);
+        scene.getSceneSize(sceneSize);
+        scroller.fling(origin.x, origin.y, direction * VELOCITY, direction * VELOCITY / 2,
+                0, sceneSize.x - viewSize.x, 0, sceneSize.y - viewSize.y);
+        scene.startFling(origin.x, origin.y, scroller.getFinalX(), scroller.getFinalY());
+    }
+
+    /** The old TouchThread: step until the fling is over. @return steps taken */
+    private long spin(){
+        long steps = 0;
+        while (!scroller.isFinished()){
+            scroller.computeScrollOffset();
+            scene.getViewport().setOrigin(scroller.getCurrX(), scroller.getCurrY());
+            steps++;
+        }
+        scene.endFling();
+        return steps;
+    }
+
+    /** The draw thread: one step a frame, sleeping in between. @return steps taken */
+    private long perFrame(){
+        long steps = 0;
+        long frame = System.nanoTime();
+        while (!scroller.isFinished()){
+            frame += FRAME_NANOS;
+            LockSupport.parkNanos(frame - System.nanoTime());
+            scroller.computeScrollOffset();
+            scene.getViewport().setOrigin(scroller.getCurrX(), scroller.getCurrY());
+            steps++;
+        }
+        scene.endFling();
+        return steps;
+    }
+
+    /** Fling back and forth, and say what it cost */
+    private void measure(String name, boolean spin){
+        long steps = 0;
+        long millis = 0;
+        long cpu = threads.getCurrentThreadCpuTime();
+        long wall = System.nanoTime();
+        for (int i=0; i<FLINGS; i++){
+            startFling((i & 1)==0 ? 1 : -1);
+            millis += scroller.getDuration();
+            steps += spin ? spin() : perFrame();
+        }
+        cpu = threads.getCurrentThreadCpuTime() - cpu;
+        wall = System.nanoTime() - wall;
+        System.out.printf("%-10s %d flings over %d ms: %9d steps, %7.1f ms CPU (%5.1f%% of a core)%n",
+                name, FLINGS, millis, steps, cpu / 1e6, 100.0 * cpu / wall);
+    }
+
+    public static void main(String[] args) throws Exception {
+        FlingCpuMeasurement measurement = new FlingCpuMeasurement(BenchmarkScenes.world());
+        measurement.scene.start();
+        try {
+            // Once each to warm up, then for real
+            measurement.measure("spinning", true);
+            measurement.measure("per frame", false);
+            measurement.measure("spinning", true);
+            measurement.measure("per frame", false);
+        } finally {
+            measurement.scene.stop();
+        }
+    }
+}
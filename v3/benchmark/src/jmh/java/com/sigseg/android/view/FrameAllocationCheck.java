@@ -0,0 +1,92 @@
+package com.sigseg.android.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.PointF;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Fails if a steady-state frame allocates anything on the draw thread. A
+ * frame here is what a drag or a pinch costs: move or zoom the viewport, then
+ * draw the scene from tiles that are already resident. Run by
+ * {@code ./gradlew :benchmark:check}.
+ */
+public final class FrameAllocationCheck {
+    private static final int WARMUP_FRAMES = 50000;
+    private static final int FRAMES = 10000;
+    /** How long the decodes get to make the window resident */
+    private static final long SETTLE_MILLIS = 30000;
+
+    private final Scene scene;
+    private final Scene.Viewport viewport;
+    private final Canvas canvas = new Canvas(
+            Bitmap.createBitmap(BenchmarkScenes.SCREEN_WIDTH, BenchmarkScenes.SCREEN_HEIGHT, Bitmap.Config.RGB_565));
+    private final PointF focus = new PointF(BenchmarkScenes.SCREEN_WIDTH / 2, BenchmarkScenes.SCREEN_HEIGHT / 2);
+    private int step;
+
+    private FrameAllocationCheck(Scene scene){
+        this.scene = scene;
+        this.viewport = scene.getViewport();
+    }
+
+    /** One frame: a pan, and every fourth frame a little pinch in or out as well */
+    private void frame(){
+        step = (step + 1) & 15;
+        viewport.setOrigin(10000 + step, 5000 + step);
+        if ((step & 3)==0)
+            viewport.zoom((step & 4)==0 ? 1.01f : 1 / 1.01f, focus);
+        scene.draw(canvas);
+    }
+
+    /** Draw until a whole run of frames was drawn without falling back on the sample */
+    private void settle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        Metrics metrics = scene.getMetrics();
+        long fallbacks;
+        do {
+            if (System.currentTimeMillis() > deadline)
+                throw new IllegalStateException("the cache never caught up with the viewport");
+            Thread.sleep(10);
+            fallbacks = metrics.getCount(Metrics.SAMPLE_FRAMES);
+            for (int i=0; i<1000; i++)
+                frame();
+        } while (metrics.getCount(Metrics.SAMPLE_FRAMES)!=fallbacks);
+    }
+
+    private static long allocatedBytes(com.sun.management.ThreadMXBean threads, long thread){
+        return threads.getThreadAllocatedBytes(thread);
+    }
+
+    public static void main(String[] args) throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        FrameAllocationCheck check = new FrameAllocationCheck(BenchmarkScenes.world());
+        check.scene.start();
+        try {
+            check.settle();
+            for (int i=0; i<WARMUP_FRAMES; i++)
+                check.frame();
+
+            // Whatever asking costs, so that it isn't blamed on the frames
+            long overhead = allocatedBytes(threads, thread);
+            overhead = allocatedBytes(threads, thread) - overhead;
+
+            long fallbacks = check.scene.getMetrics().getCount(Metrics.SAMPLE_FRAMES);
+            long before = allocatedBytes(threads, thread);
+            for (int i=0; i<FRAMES; i++)
+                check.frame();
+            long allocated = allocatedBytes(threads, thread) - before - overhead;
+            fallbacks = check.scene.getMetrics().getCount(Metrics.SAMPLE_FRAMES) - fallbacks;
+
+            System.out.printf("%d frames (%d fell back on the sample), %d bytes allocated%n",
+                    FRAMES, fallbacks, allocated);
+            if (allocated > 0)
+                throw new AssertionError(String.format("a steady-state frame allocated %.1f bytes",
+                        (double) allocated / FRAMES));
+        } finally {
+            check.scene.stop();
+        }
+    }
+}
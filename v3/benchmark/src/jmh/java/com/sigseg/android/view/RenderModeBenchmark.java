@@ -0,0 +1,58 @@
+package com.sigseg.android.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A frame drawn from resident tiles in each {@link Scene.RenderMode}, with
+ * blits costing what they would on a device, about a nanosecond a pixel.
+ * Composing offscreen costs a second full screen copy on top of the tiles.
+ */
+@State(Scope.Thread)
+@Fork(jvmArgsAppend = "-Dstandin.blitNanosPerPixel=1")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RenderModeBenchmark {
+    @Param({"DIRECT", "OFFSCREEN"})
+    public Scene.RenderMode renderMode;
+
+    private Scene scene;
+    private Scene.Viewport viewport;
+    private final Canvas canvas = new Canvas(
+            Bitmap.createBitmap(BenchmarkScenes.SCREEN_WIDTH, BenchmarkScenes.SCREEN_HEIGHT, Bitmap.Config.RGB_565));
+    private int step;
+
+    @Setup
+    public void setUp() throws IOException {
+        scene = BenchmarkScenes.world();
+        scene.setRenderMode(renderMode);
+        viewport = scene.getViewport();
+        scene.start();
+    }
+
+    @TearDown
+    public void tearDown(){
+        scene.stop();
+    }
+
+    @Benchmark
+    public void drawFrame(){
+        step = (step + 1) & 15;
+        viewport.setOrigin(10000 + step, 5000 + step);
+        scene.draw(canvas);
+    }
+}
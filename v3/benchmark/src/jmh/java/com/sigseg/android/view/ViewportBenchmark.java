@@ -0,0 +1,42 @@
+package com.sigseg.android.view;
+
+import android.graphics.PointF;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * What a touch event costs the Viewport: panning moves the window, pinching
+ * resizes it around a focus point.
+ */
+@State(Scope.Thread)
+public class ViewportBenchmark {
+    private Scene.Viewport viewport;
+    private final PointF focus = new PointF(BenchmarkScenes.SCREEN_WIDTH / 3, BenchmarkScenes.SCREEN_HEIGHT / 3);
+    private int step;
+    private float factor = 1.25f;
+
+    @Setup
+    public void setUp() throws IOException {
+        viewport = BenchmarkScenes.world().getViewport();
+    }
+
+    /** A drag: every call moves the origin, so none of them are no-ops */
+    @Benchmark
+    public void setOrigin(){
+        step = (step + 1) & 1023;
+        viewport.setOrigin(8000 + step * 3, 4000 + step * 2);
+    }
+
+    /** A pinch, alternately in and out so the zoom stays in range */
+    @Benchmark
+    public float zoom(){
+        factor = 1 / factor;
+        viewport.zoom(factor, focus);
+        return viewport.getZoom();
+    }
+}
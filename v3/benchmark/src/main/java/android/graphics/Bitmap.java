@@ -0,0 +1,72 @@
+package android.graphics;
+
+/**
+ * JVM stand-in for android.graphics.Bitmap: a raster with a size and a config
+ * but no pixels, so nothing the benchmarks allocate is dominated by pixel
+ * memory the device would have held natively anyway.
+ */
+public final class Bitmap {
+    public enum Config {
+        ALPHA_8(1), RGB_565(2), ARGB_4444(2), ARGB_8888(4);
+
+        final int bytesPerPixel;
+        Config(int bytesPerPixel){ this.bytesPerPixel = bytesPerPixel; }
+    }
+
+    private final int width;
+    private final int height;
+    private final Config config;
+    private final boolean mutable;
+    private boolean recycled;
+
+    Bitmap(int width, int height, Config config, boolean mutable){
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("width and height must be > 0");
+        this.width = width;
+        this.height = height;
+        this.config = config;
+        this.mutable = mutable;
+    }
+
+    public static Bitmap createBitmap(int width, int height, Config config){
+        return new Bitmap(width, height, config, true);
+    }
+
+    public int getWidth(){ return width; }
+    public int getHeight(){ return height; }
+    public Config getConfig(){ return config; }
+    public boolean isMutable(){ return mutable; }
+    public int getRowBytes(){ return width * config.bytesPerPixel; }
+    public int getByteCount(){ return getRowBytes() * height; }
+    public int getAllocationByteCount(){ return getByteCount(); }
+
+    /** There are no pixels to copy, but the buffer moves on like the framework's does */
+    public void copyPixelsToBuffer(java.nio.Buffer dst){
+        move(dst);
+    }
+
+    public void copyPixelsFromBuffer(java.nio.Buffer src){
+        move(src);
+    }
+
+    private void move(java.nio.Buffer buffer){
+        if (buffer.remaining() < getByteCount())
+            throw new RuntimeException("Buffer not large enough for pixels");
+        buffer.position(buffer.position() + getByteCount());
+    }
+
+    /** There are no pixels to set, but the bounds are checked like the framework's */
+    public void setPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height){
+        if (recycled)
+            throw new IllegalStateException("Can't call setPixels() on a recycled bitmap");
+        if (!mutable)
+            throw new IllegalStateException();
+        if (x < 0 || y < 0 || width < 0 || height < 0 || x + width > this.width || y + height > this.height)
+            throw new IllegalArgumentException("x + width must be <= bitmap.width()");
+        if (height > 0 && (offset < 0 || offset + (height - 1) * stride + width > pixels.length))
+            throw new ArrayIndexOutOfBoundsException();
+    }
+
+    public void recycle(){ recycled = true; }
+    public boolean isRecycled(){ return recycled; }
+}
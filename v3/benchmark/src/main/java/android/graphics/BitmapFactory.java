@@ -0,0 +1,54 @@
+package android.graphics;
+
+import com.sigseg.android.benchmark.Raster;
+
+/** JVM stand-in for android.graphics.BitmapFactory that decodes {@link Raster}s */
+public class BitmapFactory {
+    public static class Options {
+        public Bitmap inBitmap;
+        public boolean inMutable;
+        public boolean inJustDecodeBounds;
+        public int inSampleSize;
+        public Bitmap.Config inPreferredConfig = Bitmap.Config.ARGB_8888;
+        public int outWidth;
+        public int outHeight;
+    }
+
+    /** The size of a dimension decoded with inSampleSize, rounding up like the codecs do */
+    static int sampled(int size, Options opts){
+        int sample = opts==null || opts.inSampleSize <= 1 ? 1 : opts.inSampleSize;
+        return (size + sample - 1) / sample;
+    }
+
+    /** Honour inBitmap the way the framework does: reuse it if it's big enough */
+    static Bitmap decodeInto(int width, int height, Options opts, boolean mutable){
+        Bitmap.Config config = opts==null ? Bitmap.Config.ARGB_8888 : opts.inPreferredConfig;
+        if (opts!=null && opts.inBitmap!=null){
+            Bitmap in = opts.inBitmap;
+            if (in.isRecycled() || !in.isMutable() || in.getConfig()!=config
+                    || in.getByteCount() < width * height * config.bytesPerPixel)
+                throw new IllegalArgumentException("Problem decoding into existing bitmap");
+            return in;
+        }
+        return new Bitmap(width, height, config, mutable);
+    }
+
+    public static Bitmap decodeByteArray(byte[] data, int offset, int length, Options opts){
+        int[] size = Raster.size(data, offset, length);
+        if (size==null)
+            return null;
+        int width = sampled(size[0], opts);
+        int height = sampled(size[1], opts);
+        if (opts!=null){
+            opts.outWidth = width;
+            opts.outHeight = height;
+            if (opts.inJustDecodeBounds)
+                return null;
+        }
+        return decodeInto(width, height, opts, opts!=null && opts.inMutable);
+    }
+
+    public static Bitmap decodeByteArray(byte[] data, int offset, int length){
+        return decodeByteArray(data, offset, length, null);
+    }
+}
@@ -0,0 +1,43 @@
+package android.graphics;
+
+import com.sigseg.android.benchmark.Raster;
+
+import java.io.IOException;
+
+/** JVM stand-in for android.graphics.BitmapRegionDecoder that decodes {@link Raster}s */
+public final class BitmapRegionDecoder {
+    private final int width;
+    private final int height;
+    private boolean recycled;
+
+    private BitmapRegionDecoder(int width, int height){
+        this.width = width;
+        this.height = height;
+    }
+
+    public static BitmapRegionDecoder newInstance(byte[] data, int offset, int length, boolean isShareable) throws IOException {
+        int[] size = Raster.size(data, offset, length);
+        if (size==null)
+            throw new IOException("Image format not supported");
+        return new BitmapRegionDecoder(size[0], size[1]);
+    }
+
+    public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options){
+        if (recycled)
+            throw new IllegalStateException("Cannot decode region after recycle");
+        if (rect.right <= 0 || rect.bottom <= 0 || rect.left >= width || rect.top >= height)
+            throw new IllegalArgumentException("rectangle is outside the image");
+        int w = BitmapFactory.sampled(rect.width(), options);
+        int h = BitmapFactory.sampled(rect.height(), options);
+        if (options!=null){
+            options.outWidth = w;
+            options.outHeight = h;
+        }
+        return BitmapFactory.decodeInto(w, h, options, true);
+    }
+
+    public int getWidth(){ return width; }
+    public int getHeight(){ return height; }
+    public void recycle(){ recycled = true; }
+    public boolean isRecycled(){ return recycled; }
+}
@@ -0,0 +1,64 @@
+package android.graphics;
+
+/**
+ * JVM stand-in for android.graphics.Canvas. Drawing is a no-op, so the
+ * benchmarks measure the work done to decide what to draw -- unless
+ * -Dstandin.blitNanosPerPixel is set, in which case drawing a bitmap keeps
+ * the CPU busy for as long as a device would take to scale and copy that
+ * many pixels.
+ */
+public class Canvas {
+    private static final double BLIT_NANOS_PER_PIXEL =
+            Double.parseDouble(System.getProperty("standin.blitNanosPerPixel", "0"));
+
+    private Bitmap bitmap;
+
+    public Canvas(){}
+
+    public Canvas(Bitmap bitmap){
+        setBitmap(bitmap);
+    }
+
+    public void setBitmap(Bitmap bitmap){
+        if (bitmap!=null && !bitmap.isMutable())
+            throw new IllegalStateException("Immutable bitmap passed to Canvas");
+        this.bitmap = bitmap;
+    }
+
+    public int getWidth(){ return bitmap==null ? 0 : bitmap.getWidth(); }
+    public int getHeight(){ return bitmap==null ? 0 : bitmap.getHeight(); }
+
+    public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint){
+        check(bitmap);
+        blit((double) bitmap.getWidth() * bitmap.getHeight());
+    }
+
+    public void drawBitmap(Bitmap bitmap, Rect src, Rect dst, Paint paint){
+        check(bitmap);
+        blit((double) dst.width() * dst.height());
+    }
+
+    public void drawBitmap(Bitmap bitmap, Rect src, RectF dst, Paint paint){
+        check(bitmap);
+        blit((double) dst.width() * dst.height());
+    }
+
+    /** Nothing is drawn, so there's no matrix or clip to keep */
+    public void scale(float sx, float sy){}
+    public void translate(float dx, float dy){}
+    public boolean clipRect(Rect rect){ return !rect.isEmpty(); }
+
+    private static void blit(double pixels){
+        if (BLIT_NANOS_PER_PIXEL <= 0)
+            return;
+        long end = System.nanoTime() + (long) (pixels * BLIT_NANOS_PER_PIXEL);
+        while (System.nanoTime() < end) {
+            // busy, like a CPU copying pixels
+        }
+    }
+
+    private static void check(Bitmap bitmap){
+        if (bitmap.isRecycled())
+            throw new RuntimeException("Canvas: trying to use a recycled bitmap " + bitmap);
+    }
+}
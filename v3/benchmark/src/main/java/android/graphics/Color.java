@@ -0,0 +1,11 @@
+package android.graphics;
+
+/** JVM stand-in for android.graphics.Color */
+public class Color {
+    public static final int BLACK = 0xFF000000;
+    public static final int WHITE = 0xFFFFFFFF;
+    public static final int RED = 0xFFFF0000;
+    public static final int GREEN = 0xFF00FF00;
+    public static final int BLUE = 0xFF0000FF;
+    public static final int TRANSPARENT = 0;
+}
@@ -0,0 +1,12 @@
+package android.graphics;
+
+/** JVM stand-in for android.graphics.Paint */
+public class Paint {
+    private int color;
+    private float strokeWidth;
+
+    public void setColor(int color){ this.color = color; }
+    public int getColor(){ return color; }
+    public void setStrokeWidth(float width){ this.strokeWidth = width; }
+    public float getStrokeWidth(){ return strokeWidth; }
+}
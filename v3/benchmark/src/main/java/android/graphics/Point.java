@@ -0,0 +1,37 @@
+package android.graphics;
+
+/** JVM stand-in for android.graphics.Point */
+public class Point {
+    public int x;
+    public int y;
+
+    public Point(){}
+
+    public Point(int x, int y){
+        this.x = x;
+        this.y = y;
+    }
+
+    public void set(int x, int y){
+        this.x = x;
+        this.y = y;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if (this == o) return true;
+        if (!(o instanceof Point)) return false;
+        Point p = (Point) o;
+        return x == p.x && y == p.y;
+    }
+
+    @Override
+    public int hashCode(){
+        return 31 * x + y;
+    }
+
+    @Override
+    public String toString(){
+        return "Point(" + x + ", " + y + ")";
+    }
+}
@@ -0,0 +1,48 @@
+package android.graphics;
+
+/** JVM stand-in for android.graphics.RectF */
+public class RectF {
+    public float left;
+    public float top;
+    public float right;
+    public float bottom;
+
+    public RectF(){}
+
+    public RectF(float left, float top, float right, float bottom){
+        set(left, top, right, bottom);
+    }
+
+    public RectF(Rect r){
+        set(r.left, r.top, r.right, r.bottom);
+    }
+
+    public final boolean isEmpty(){
+        return !(left < right && top < bottom);
+    }
+    public final float width(){ return right - left; }
+    public final float height(){ return bottom - top; }
+
+    public void set(float left, float top, float right, float bottom){
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    public void set(Rect src){
+        set(src.left, src.top, src.right, src.bottom);
+    }
+
+    public void offset(float dx, float dy){
+        left += dx;
+        top += dy;
+        right += dx;
+        bottom += dy;
+    }
+
+    @Override
+    public String toString(){
+        return "RectF(" + left + ", " + top + ", " + right + ", " + bottom + ")";
+    }
+}
@@ -0,0 +1,8 @@
+package android.os;
+
+/** JVM stand-in for android.os.Debug */
+public final class Debug {
+    public static boolean isDebuggerConnected(){
+        return false;
+    }
+}
@@ -0,0 +1,11 @@
+package android.util;
+
+/** JVM stand-in for android.util.Log. Logging is dropped so it can't skew a benchmark. */
+public final class Log {
+    public static int d(String tag, String msg){ return 0; }
+    public static int i(String tag, String msg){ return 0; }
+    public static int w(String tag, String msg){ return 0; }
+    public static int w(String tag, String msg, Throwable tr){ return 0; }
+    public static int e(String tag, String msg){ return 0; }
+    public static int e(String tag, String msg, Throwable tr){ return 0; }
+}
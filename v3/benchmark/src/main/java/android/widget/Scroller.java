@@ -0,0 +1,80 @@
+package android.widget;
+
+/**
+ * JVM stand-in for android.widget.Scroller's fling, on a 420dpi screen. How
+ * long a fling lasts and how far it goes follow android's own physics; the
+ * curve in between is an ease-out rather than android's spline.
+ */
+public class Scroller {
+    private static final float INFLEXION = 0.35f;
+    private static final float DECELERATION_RATE = (float) (Math.log(0.78) / Math.log(0.9));
+    /** ViewConfiguration.getScrollFriction() */
+    private static final float FRICTION = 0.015f;
+    /** gravity, in inches/s^2, times pixels per inch, times android's fudge factor */
+    private static final float PHYSICAL_COEFF = 9.80665f * 39.37f * 420 * 0.84f;
+
+    private int startX, startY, finalX, finalY, currX, currY;
+    private long startNanos;
+    private long durationNanos;
+    private boolean finished = true;
+
+    public void fling(int startX, int startY, int velocityX, int velocityY,
+                      int minX, int maxX, int minY, int maxY){
+        float velocity = (float) Math.hypot(velocityX, velocityY);
+        double l = Math.log(INFLEXION * velocity / (FRICTION * PHYSICAL_COEFF));
+        double distance = velocity==0 ? 0 : FRICTION * PHYSICAL_COEFF * Math.exp(DECELERATION_RATE / (DECELERATION_RATE - 1) * l);
+        this.startX = currX = startX;
+        this.startY = currY = startY;
+        finalX = Math.max(minX, Math.min(maxX, startX + (int) Math.round(distance * velocityX / Math.max(1, velocity))));
+        finalY = Math.max(minY, Math.min(maxY, startY + (int) Math.round(distance * velocityY / Math.max(1, velocity))));
+        durationNanos = velocity==0 ? 0 : (long) (1000000000 * Math.exp(l / (DECELERATION_RATE - 1)));
+        startNanos = System.nanoTime();
+        finished = false;
+    }
+
+    public boolean computeScrollOffset(){
+        if (finished)
+            return false;
+        long passed = System.nanoTime() - startNanos;
+        if (passed >= durationNanos){
+            currX = finalX;
+            currY = finalY;
+            finished = true;
+        } else {
+            double t = 1 - (double) passed / durationNanos;
+            double done = 1 - t * t * t;
+            currX = startX + (int) Math.round(done * (finalX - startX));
+            currY = startY + (int) Math.round(done * (finalY - startY));
+        }
+        return true;
+    }
+
+    public final int getCurrX(){
+        return currX;
+    }
+
+    public final int getCurrY(){
+        return currY;
+    }
+
+    public final int getFinalX(){
+        return finalX;
+    }
+
+    public final int getFinalY(){
+        return finalY;
+    }
+
+    public final boolean isFinished(){
+        return finished;
+    }
+
+    public final void forceFinished(boolean finished){
+        this.finished = finished;
+    }
+
+    /** In milliseconds */
+    public final int getDuration(){
+        return (int) (durationNanos / 1000000);
+    }
+}
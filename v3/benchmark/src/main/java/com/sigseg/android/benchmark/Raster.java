@@ -0,0 +1,38 @@
+package com.sigseg.android.benchmark;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A stand-in for an encoded image: just a header with the image's size. The
+ * stand-in decoders read the size back and hand out bitmaps of the right
+ * dimensions without touching any pixels, so the benchmarks measure the
+ * Scene's own work rather than a codec.
+ */
+public final class Raster {
+    private static final int MAGIC = 0x52415354; // "RAST"
+    private static final int HEADER_BYTES = 3 * 4;
+
+    private Raster(){}
+
+    /** An encoded stand-in image of the given size */
+    public static byte[] encode(int width, int height){
+        return ByteBuffer.allocate(HEADER_BYTES)
+                .putInt(MAGIC)
+                .putInt(width)
+                .putInt(height)
+                .array();
+    }
+
+    /**
+     * Read the size of an encoded stand-in image.
+     * @return {width, height}, or null if data isn't one
+     */
+    public static int[] size(byte[] data, int offset, int length){
+        if (length < HEADER_BYTES)
+            return null;
+        ByteBuffer header = ByteBuffer.wrap(data, offset, length);
+        if (header.getInt()!=MAGIC)
+            return null;
+        return new int[]{header.getInt(), header.getInt()};
+    }
+}
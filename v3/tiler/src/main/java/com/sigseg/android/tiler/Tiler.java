@@ -0,0 +1,225 @@
+package com.sigseg.android.tiler;
+
+import com.sigseg.android.view.archive.TileArchive;
+import com.sigseg.android.view.archive.TileArchiveWriter;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Turns a large image into a {@link TileArchive}: a pyramid of fixed size JPEG
+ * tiles, from full resolution down to a level that fits in a single tile, in
+ * one file with an offset index. The app reads tiles out of the archive
+ * directly, so neither startup nor panning depends on the size of the source.
+ *
+ * <pre>
+ * tiler [-tile 256] [-quality 0.85] world.jpg world.wmta
+ * </pre>
+ */
+public class Tiler {
+    private static final int DEFAULT_TILE_SIZE = 256;
+    private static final float DEFAULT_QUALITY = 0.85f;
+    /** Below this many tiles, a task stops splitting and encodes them itself */
+    private static final int TILES_PER_TASK = 4;
+
+    private final int tileSize;
+    private final float quality;
+
+    public Tiler(int tileSize, float quality){
+        this.tileSize = tileSize;
+        this.quality = quality;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int tileSize = DEFAULT_TILE_SIZE;
+        float quality = DEFAULT_QUALITY;
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-"); i++){
+                if (args[i].equals("-tile"))
+                    tileSize = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-quality"))
+                    quality = Float.parseFloat(args[++i]);
+                else
+                    usage();
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            usage();
+        }
+        if (args.length - i != 2 || tileSize <= 0 || quality <= 0 || quality > 1)
+            usage();
+
+        long start = System.currentTimeMillis();
+        File input = new File(args[i]);
+        File output = new File(args[i+1]);
+        BufferedImage source = ImageIO.read(input);
+        if (source == null)
+            throw new IOException("can't read " + input);
+        new Tiler(tileSize, quality).write(source, output);
+        System.out.printf("%s: %dx%d, %d levels, %d bytes in %dms%n",
+                output,
+                source.getWidth(), source.getHeight(),
+                TileArchive.levelsFor(source.getWidth(), source.getHeight(), tileSize),
+                output.length(),
+                System.currentTimeMillis() - start);
+    }
+
+    private static void usage(){
+        System.err.println("usage: tiler [-tile size] [-quality 0..1] input-image output-archive");
+        System.exit(2);
+    }
+
+    /**
+     * Write the whole pyramid of source to an archive file. If a tile can't
+     * be encoded, the half written file is deleted and that's what's thrown.
+     */
+    public void write(BufferedImage source, File output) throws IOException {
+        TileArchiveWriter writer = new TileArchiveWriter(
+                output, source.getWidth(), source.getHeight(), tileSize, TileArchive.FORMAT_JPEG);
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        try {
+            BufferedImage level = toRgb(source);
+            for (int l = 0; l < writer.getLevels(); l++){
+                if (l > 0)
+                    level = half(level);
+                int tiles = writer.getColumns(l) * writer.getRows(l);
+                pool.invoke(new EncodeTiles(writer, level, l, 0, tiles));
+            }
+        } catch (UncheckedIOException e) {
+            IOException cause = e.getCause();
+            abort(writer, cause);
+            throw cause;
+        } catch (RuntimeException | Error e) {
+            abort(writer, e);
+            throw e;
+        }
+        writer.close();
+    }
+
+    /** Throw a half written archive away, keeping whatever went wrong doing that with why it had to be */
+    private static void abort(TileArchiveWriter writer, Throwable cause){
+        try {
+            writer.abort();
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    /** Encodes tiles [from,to) of a level, splitting the range in two until it's small */
+    private class EncodeTiles extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final TileArchiveWriter writer;
+        final BufferedImage image;
+        final int level;
+        final int from;
+        final int to;
+
+        EncodeTiles(TileArchiveWriter writer, BufferedImage image, int level, int from, int to){
+            this.writer = writer;
+            this.image = image;
+            this.level = level;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > TILES_PER_TASK){
+                int middle = (from + to) >>> 1;
+                invokeAll(
+                        new EncodeTiles(writer, image, level, from, middle),
+                        new EncodeTiles(writer, image, level, middle, to));
+                return;
+            }
+            BufferedImage tile = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            int columns = writer.getColumns(level);
+            for (int i = from; i < to; i++){
+                int x = i % columns;
+                int y = i / columns;
+                try {
+                    render(image, x, y, tile);
+                    bytes.reset();
+                    encode(tile, bytes);
+                    writer.writeTile(level, x, y, bytes.toByteArray(), bytes.size());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    /** Copy tile (x,y) of image into tile, padding past the image's edges with black */
+    private void render(BufferedImage image, int x, int y, BufferedImage tile){
+        int left = x * tileSize;
+        int top = y * tileSize;
+        int w = Math.min(tileSize, image.getWidth() - left);
+        int h = Math.min(tileSize, image.getHeight() - top);
+        Graphics2D g = tile.createGraphics();
+        try {
+            if (w < tileSize || h < tileSize){
+                g.setColor(Color.BLACK);
+                g.fillRect(0, 0, tileSize, tileSize);
+            }
+            g.drawImage(image, 0, 0, w, h, left, top, left + w, top + h, null);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    private void encode(BufferedImage tile, ByteArrayOutputStream out) throws IOException {
+        // ImageWriters aren't thread safe, so every tile gets its own
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(tile, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static BufferedImage toRgb(BufferedImage image){
+        if (image.getType() == BufferedImage.TYPE_INT_RGB)
+            return image;
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgb.createGraphics();
+        try {
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return rgb;
+    }
+
+    /** The next level of the pyramid: half the size, rounding up */
+    private static BufferedImage half(BufferedImage image){
+        int w = TileArchive.levelSize(image.getWidth(), 1);
+        int h = TileArchive.levelSize(image.getHeight(), 1);
+        BufferedImage half = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = half.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        return half;
+    }
+}